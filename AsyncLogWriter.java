@@ -0,0 +1,422 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A writer for the transaction log that does not wait for the disk. The thread that writes the log (the producer)
+ * only encodes the characters into the byte buffers of a ring that is allocated once; a writer thread takes the
+ * filled buffers in batches, writes them to the file and gives them back. The output can be compressed with gzip on
+ * the writer thread, so the producer does not pay for the compression either.
+ *
+ * A buffer is handed to the writer thread when it is full, and it always ends at a line break if it has one, so every
+ * buffer is a record of whole lines. When all other buffers of the ring are waiting to be written, the {@link FullPolicy}
+ * decides whether the producer waits or the record is dropped; dropped lines are counted and reported when the
+ * writer is closed. A line is dropped whole or not at all: a line longer than a buffer, or one cut by a flush, spans
+ * several records, so a record that continues a written line is never dropped, and the rest of a dropped line is
+ * dropped from the next record too.
+ *
+ * Each thread waits for the other on a {@link Signal}: the writer thread for buffers and flush requests, the producer
+ * for free buffers and flushes. A thread with nothing to do blocks, so an idle log does not wake the writer thread.
+ *
+ * {@link #flush()} waits until everything written before it is in the file (as a gzip sync flush if the output is
+ * compressed), and {@link #sync()} until it is on the disk, so the checkpoints of {@link TransactionLog} keep their
+ * meaning. {@link #close()} writes every record that is left, finishes the gzip stream and stops the writer thread.
+ * Only one thread may write at a time.
+ */
+public class AsyncLogWriter extends Writer {
+    public static final int DEFAULT_SLOTS = 64;
+    public static final int DEFAULT_SLOT_SIZE = 64 * 1024; // Bytes in a buffer of the ring.
+
+    /**
+     * What the producer does when every buffer of the ring is waiting to be written.
+     */
+    public enum FullPolicy {
+        // Waits until the writer thread gives a buffer back, so no line is lost.
+        BLOCK,
+        // Drops the record and goes on, so the producer never waits for the disk.
+        DROP
+    }
+
+    private final byte[][] slots;
+    private final int[] offsets; // Index of the first byte to write of each published buffer.
+    private final int[] lengths; // Index after the last byte to write of each published buffer.
+    private final AtomicLong head = new AtomicLong(); // Number of buffers published by the producer.
+    private final AtomicLong tail = new AtomicLong(); // Number of buffers written by the writer thread.
+    private final AtomicLong flushRequest = new AtomicLong(); // Buffers that must be written before the next flush.
+    private final AtomicLong flushed = new AtomicLong(); // Buffers written and flushed.
+    private final FullPolicy fullPolicy;
+    private final FileOutputStream file;
+    private final OutputStream output;
+    private volatile boolean syncRequest; // True if the next flush should also wait for the disk.
+    private volatile boolean synced; // True once the file was synced, so its end is synced too when it is closed.
+    private final Thread writerThread;
+    private volatile boolean closing;
+    private volatile IOException failure; // The error of the writer thread, thrown to the producer.
+    private final Signal toWriter = new Signal(); // Signaled by the producer when it publishes, flushes or closes.
+    private final Signal toProducer = new Signal(); // Signaled by the writer thread when it writes, flushes or fails.
+
+    private final CharsetEncoder encoder;
+    private final boolean ascii; // True if the characters below 128 are encoded as one byte of the same value.
+    private char pendingSurrogate; // A high surrogate at the end of a write, encoded with the next character.
+    private final char[] single = new char[1]; // The character of write(int) when it is encoded.
+    private byte[] current; // The buffer the producer is filling.
+    private int position; // Bytes in the current buffer.
+    private int lineEnd; // Bytes in the current buffer up to and including its last line break.
+    private int lines; // Line breaks in the current buffer before lineEnd.
+    private boolean continuation; // True if the last published record ended in the middle of a line.
+    private boolean skipping; // True if the last dropped record ended in the middle of a line.
+    private long droppedLines;
+    private long droppedRecords;
+
+    /**
+     * Opens the file and starts the writer thread with the default ring size.
+     *
+     * @param path       Path for the file the log is going to be written.
+     * @param gzip       True to compress the file with gzip.
+     * @param fullPolicy The {@link FullPolicy} when the ring is full.
+     * @throws IOException If the file cannot be opened.
+     */
+    public AsyncLogWriter(String path, boolean gzip, FullPolicy fullPolicy) throws IOException {
+        this(path, false, gzip, fullPolicy, DEFAULT_SLOTS, DEFAULT_SLOT_SIZE);
+    }
+
+    /**
+     * Opens the file and starts the writer thread.
+     *
+     * @param path       Path for the file the log is going to be written.
+     * @param append     True to append to the file if it exists, false to create it from zero.
+     * @param gzip       True to compress the file with gzip.
+     * @param fullPolicy The {@link FullPolicy} when the ring is full.
+     * @param slots      Number of buffers in the ring.
+     * @param slotSize   Size of a buffer in bytes.
+     * @throws IOException If the file cannot be opened.
+     */
+    public AsyncLogWriter(String path, boolean append, boolean gzip, FullPolicy fullPolicy, int slots, int slotSize)
+            throws IOException {
+        slotSize = Math.max(64, slotSize);
+        this.file = new FileOutputStream(path, append);
+        this.output = gzip ? new GZIPOutputStream(file, slotSize, true) : file; //Sync flush makes a checkpoint readable.
+        this.fullPolicy = fullPolicy;
+        this.slots = new byte[Math.max(2, slots)][];
+        for (int i = 0; i < this.slots.length; i++) {
+            this.slots[i] = new byte[slotSize];
+        }
+        this.offsets = new int[this.slots.length];
+        this.lengths = new int[this.slots.length];
+        this.current = this.slots[0];
+        // The same charset as the other logs, so the bytes of the file are the same.
+        Charset charset = Charset.defaultCharset();
+        this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.ascii = charset.equals(StandardCharsets.US_ASCII) || charset.equals(StandardCharsets.UTF_8)
+                || charset.equals(StandardCharsets.ISO_8859_1);
+        this.writerThread = new Thread(this::drain, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * @return Number of lines that were dropped because the ring was full.
+     */
+    public long getDroppedLines() {
+        return droppedLines;
+    }
+
+    /**
+     * @return Number of records (buffers of lines) that were dropped because the ring was full.
+     */
+    public long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    @Override
+    public void write(char[] buffer, int offset, int length) throws IOException {
+        checkFailure();
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            char c = buffer[i];
+            if (ascii && c < 128 && pendingSurrogate == 0) {
+                put((byte) c);
+                i++;
+                continue;
+            }
+            int run = i + 1; //The characters that are not ASCII are encoded together, so surrogate pairs stay whole.
+            while (run < end && !(ascii && buffer[run] < 128)) {
+                run++;
+            }
+            encode(buffer, i, run - i, run == end);
+            i = run;
+        }
+    }
+
+    @Override
+    public void write(String string, int offset, int length) throws IOException {
+        checkFailure();
+        if (!ascii) {
+            write(string.toCharArray(), offset, length);
+            return;
+        }
+        int end = offset + length;
+        int i = offset;
+        while (i < end && pendingSurrogate == 0) {
+            if (position == current.length) {
+                publish(false);
+            }
+            int stop = Math.min(end, i + current.length - position); //Copies as much as fits without checking the space.
+            for (; i < stop; i++) {
+                char c = string.charAt(i);
+                if (c >= 128) {
+                    break;
+                }
+                current[position++] = (byte) c;
+                if (c == '\n') {
+                    lineEnd = position;
+                    lines++;
+                }
+            }
+            if (i < stop) { //The rest starts with a character that is not ASCII.
+                break;
+            }
+        }
+        if (i < end) {
+            write(string.substring(i, end).toCharArray(), 0, end - i);
+        }
+    }
+
+    /**
+     * Writes one character. {@link TransactionLog} ends every line with it, so an ASCII character is put into the
+     * buffer directly and only the others go through the encoder.
+     */
+    @Override
+    public void write(int character) throws IOException {
+        char c = (char) character;
+        if (ascii && c < 128 && pendingSurrogate == 0) {
+            checkFailure();
+            put((byte) c);
+            return;
+        }
+        single[0] = c;
+        write(single, 0, 1);
+    }
+
+    /**
+     * Encodes characters with the charset. A high surrogate at the end of the write is kept for the next one.
+     */
+    private void encode(char[] buffer, int offset, int length, boolean last) throws IOException {
+        CharBuffer chars;
+        if (pendingSurrogate != 0) {
+            chars = CharBuffer.allocate(length + 1).put(pendingSurrogate).put(buffer, offset, length).flip();
+            pendingSurrogate = 0;
+        } else {
+            chars = CharBuffer.wrap(buffer, offset, length);
+        }
+        if (last && chars.remaining() > 0 && Character.isHighSurrogate(chars.get(chars.limit() - 1))) {
+            pendingSurrogate = chars.get(chars.limit() - 1);
+            chars.limit(chars.limit() - 1);
+        }
+        ByteBuffer bytes = encoder.reset().encode(chars);
+        while (bytes.hasRemaining()) {
+            put(bytes.get());
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        if (position == current.length) {
+            publish(false);
+        }
+        current[position++] = b;
+        if (b == '\n') {
+            lineEnd = position;
+            lines++;
+        }
+    }
+
+    /**
+     * Hands the whole lines of the current buffer to the writer thread and moves the rest of the last line to the
+     * next buffer. A buffer without a line break, or everything if all is true, is handed over as it is and ends in
+     * the middle of a line.
+     */
+    private void publish(boolean all) throws IOException {
+        int length = all || lineEnd == 0 ? position : lineEnd;
+        boolean endsInLine = length > lineEnd;
+        int publishedLines = lines + (endsInLine ? 1 : 0);
+        if (length == 0) {
+            return;
+        }
+        int start = 0;
+        if (skipping) { //The record starts with the rest of a dropped line, which was counted when it was dropped.
+            while (start < length && current[start] != '\n') {
+                start++;
+            }
+            skipping = start == length;
+            start = Math.min(length, start + 1);
+            publishedLines--;
+        }
+        long index = head.get();
+        boolean dropped = start == length;
+        // The buffer after the published ones is the next one to fill, so it must not be waiting to be written either.
+        for (int round = 0; !dropped && index + 1 - tail.get() == slots.length; round++) {
+            checkFailure();
+            if (fullPolicy == FullPolicy.DROP && !continuation) {
+                dropped = true;
+                droppedLines += publishedLines;
+                droppedRecords++;
+                skipping = endsInLine;
+                break;
+            }
+            toProducer.await(round, () -> index + 1 - tail.get() < slots.length || failure != null);
+        }
+        byte[] next = current;
+        if (!dropped) {
+            offsets[(int) (index % slots.length)] = start;
+            lengths[(int) (index % slots.length)] = length;
+            head.set(index + 1); //Publishes the buffer; the writer thread reads the bytes after it sees the head.
+            toWriter.signal();
+            continuation = endsInLine;
+            next = slots[(int) ((index + 1) % slots.length)];
+        }
+        int rest = position - length;
+        System.arraycopy(current, length, next, 0, rest);
+        current = next;
+        position = rest;
+        lineEnd = 0;
+        lines = 0;
+    }
+
+    /**
+     * Hands everything written so far to the writer thread and waits until it is flushed to the file.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkFailure();
+        publish(true);
+        long target = head.get();
+        flushRequest.set(target);
+        toWriter.signal();
+        for (int round = 0; flushed.get() < target; round++) {
+            checkFailure();
+            toProducer.await(round, () -> flushed.get() >= target || failure != null);
+        }
+    }
+
+    /**
+     * Hands everything written so far to the writer thread and waits until it is written to the disk (fsync).
+     *
+     * @throws IOException If the writer thread could not write or sync the file.
+     */
+    public void sync() throws IOException {
+        synced = true;
+        syncRequest = true;
+        flush();
+    }
+
+    /**
+     * @return Bytes in the file after everything that was flushed, or -1 if the file is compressed, since the bytes
+     * of a gzip stream do not end at the lines. Only meant to be called after {@link #flush()}.
+     * @throws IOException If the size cannot be read.
+     */
+    public long position() throws IOException {
+        return output instanceof GZIPOutputStream ? -1 : file.getChannel().position();
+    }
+
+    /**
+     * Writes every record that is left, finishes the file and stops the writer thread. Calling it more than once has no
+     * effect.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closing) {
+            return;
+        }
+        try {
+            if (pendingSurrogate != 0) { //A surrogate without its pair, written the same way the charset writes it.
+                char surrogate = pendingSurrogate;
+                pendingSurrogate = 0;
+                encode(new char[]{surrogate}, 0, 1, false);
+            }
+            flush();
+        } finally {
+            closing = true;
+            toWriter.signal();
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (droppedLines > 0) {
+                System.err.println("The log dropped " + droppedLines + " lines in " + droppedRecords + " records because the writer could not keep up.");
+            }
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * The loop of the writer thread: writes the published buffers in batches and flushes when the producer asks.
+     */
+    private void drain() {
+        try {
+            int round = 0;
+            while (true) {
+                long written = tail.get();
+                long published = head.get();
+                for (long index = written; index < published; index++) { //Writes the whole batch before giving it back.
+                    int slot = (int) (index % slots.length);
+                    output.write(slots[slot], offsets[slot], lengths[slot] - offsets[slot]);
+                }
+                if (published > written) {
+                    tail.set(published);
+                    toProducer.signal();
+                    round = 0;
+                }
+                long request = flushRequest.get();
+                if (request > flushed.get() && published >= request) {
+                    output.flush();
+                    if (syncRequest) {
+                        file.getFD().sync();
+                        syncRequest = false;
+                    }
+                    flushed.set(request);
+                    toProducer.signal();
+                    round = 0;
+                }
+                if (published == written) {
+                    if (closing && head.get() == published) {
+                        break;
+                    }
+                    toWriter.await(round++, () -> head.get() != published || closing || flushRequest.get() > flushed.get());
+                }
+            }
+            if (output instanceof GZIPOutputStream) {
+                ((GZIPOutputStream) output).finish(); //Writes the end of the gzip stream.
+            }
+            if (synced) {
+                output.flush();
+                file.getFD().sync();
+            }
+            output.close();
+        } catch (IOException e) {
+            failure = e;
+            toProducer.signal();
+            try {
+                output.close();
+            } catch (IOException ignored) { //The first error is the one that is reported.
+            }
+        }
+    }
+}
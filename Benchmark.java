@@ -0,0 +1,382 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the main operations of the machine on synthetic files written by {@link SyntheticData}: reading the input
+ * files, writing the log, filling the machine, purchasing with each choice and writing the machine state.
+ *
+ * Every benchmark is run a few times to warm up and then measured over several iterations. For each benchmark it
+ * reports the throughput in items (lines, purchases or renders) per second, the 50th, 99th and 99.9th percentile
+ * of the time of one iteration, the bytes allocated per item by the benchmark thread and the number and total time
+ * of garbage collections during the measurement.
+ */
+public class Benchmark {
+    private static Path directory;
+    private static Machine machine;
+    private static TransactionLog log;
+
+    /**
+     * Runs the benchmarks.
+     *
+     * The method expects the following optional command-line arguments:
+     * <ol>
+     * <li>args[0]: The numbers of lines separated by commas, with an optional k or m suffix. It is "1k,100k" if not
+     * given; "1k,100k,10m" runs the largest scale as well.</li>
+     * <li>args[1]: The sizes of the machines as ROWSxCOLUMNS separated by commas. It is "6x4,32x32" if not given.</li>
+     * </ol>
+     *
+     * @param args An array of {@link String} containing command-line arguments.
+     * @throws IOException If the synthetic files cannot be written.
+     */
+    public static void main(String[] args) throws IOException {
+        String[] scales = (args.length >= 1 ? args[0] : "1k,100k").split(",");
+        String[] machines = (args.length >= 2 ? args[1] : "6x4,32x32").split(",");
+        directory = Files.createTempDirectory("gmm-benchmark");
+        System.out.printf("%-34s %10s %14s %10s %10s %10s %12s %12s%n",
+                "Benchmark", "Items", "Items/s", "p50 ms", "p99 ms", "p99.9 ms", "Bytes/item", "GC count/ms");
+        try {
+            for (String scale : scales) {
+                long lines = parseScale(scale);
+                benchmarkFiles(scale, lines);
+                for (String size : machines) {
+                    String[] rowsAndColumns = size.toLowerCase(Locale.ROOT).split("x");
+                    benchmarkMachine(scale, lines, Integer.parseInt(rowsAndColumns[0]), Integer.parseInt(rowsAndColumns[1]));
+                }
+            }
+        } finally {
+            for (File file : directory.toFile().listFiles()) {
+                file.delete();
+            }
+            directory.toFile().delete();
+        }
+    }
+
+    /**
+     * Benchmarks reading a file and writing the log, which do not depend on the size of the machine.
+     */
+    private static void benchmarkFiles(String scale, long lines) throws IOException {
+        String purchases = file("purchases-" + scale);
+        SyntheticData.writePurchases(purchases, lines, null, 24, 1);
+        String output = file("output");
+
+        measure("FileInput.readFile " + scale, lines, () -> { }, () -> FileInput.readFile(purchases, false, false));
+        measure("MappedFileInput " + scale, lines, () -> { }, () -> {
+            try (MappedFileInput input = new MappedFileInput(purchases, false, false)) {
+                for (CharSequence line : input) {
+                    line.length();
+                }
+            }
+        });
+        String products = file("products-" + scale);
+        SyntheticData.writeProducts(products, lines, 1000, 1);
+        String productColumns = file("products-" + scale + ".bin");
+        String purchaseColumns = file("purchases-" + scale + ".bin");
+        ProductColumns.convert(products, productColumns);
+        PurchaseColumns.convert(purchases, purchaseColumns);
+        float[] sink = new float[1]; //Keeps the parsed values alive.
+        measure("load products text " + scale, lines, () -> { }, () -> {
+            try (MappedFileInput input = new MappedFileInput(products, false, false)) {
+                for (CharSequence line : input) { //The same parsing as GMMOutput.fill.
+                    String[] parts = line.toString().split("\t");
+                    String[] foodValues = parts[2].split(" ");
+                    sink[0] += Integer.parseInt(parts[1]) + Float.parseFloat(foodValues[0]) + Float.parseFloat(foodValues[1])
+                            + Float.parseFloat(foodValues[2]) + parts[0].length();
+                }
+            }
+        });
+        measure("load products binary " + scale, lines, () -> { }, () -> {
+            ProductColumns columns = ProductColumns.open(productColumns);
+            for (int i = 0; i < columns.size(); i++) {
+                sink[0] += columns.getPrice(i) + columns.getProtein(i) + columns.getCarbonhydrate(i) + columns.getFat(i)
+                        + columns.getName(i).length();
+            }
+        });
+        Purchase purchase = new Purchase();
+        measure("load purchases text " + scale, lines, () -> { }, () -> {
+            try (MappedFileInput input = new MappedFileInput(purchases, false, false)) {
+                for (CharSequence line : input) {
+                    PurchaseParser.parse(line, purchase);
+                    sink[0] += purchase.getValidTotal();
+                }
+            }
+        });
+        measure("load purchases binary " + scale, lines, () -> { }, () -> {
+            PurchaseColumns columns = PurchaseColumns.open(purchaseColumns);
+            for (int i = 0; i < columns.size(); i++) {
+                columns.read(i, purchase);
+                sink[0] += purchase.getValidTotal();
+            }
+        });
+
+        long slowLines = Math.min(lines, 10_000); //Opening the file for every line is too slow for the large files.
+        measure("FileOutput.writeToFile " + slowLines, slowLines, () -> FileOutput.writeToFile(output, "", false, false), () -> {
+            for (long i = 0; i < slowLines; i++) {
+                FileOutput.writeToFile(output, "INFO: Product not found, your money will be returned.", true, true);
+            }
+        });
+        measure("TransactionLog.write " + scale, lines, () -> log = new TransactionLog(output), () -> {
+            for (long i = 0; i < lines; i++) {
+                log.write("INFO: Product not found, your money will be returned.", true);
+            }
+            log.close();
+        });
+        for (boolean gzip : new boolean[]{false, true}) {
+            measure("TransactionLog.write async" + (gzip ? " gzip " : " ") + scale, lines, () -> {
+                try {
+                    log = new TransactionLog(new AsyncLogWriter(output, gzip, AsyncLogWriter.FullPolicy.BLOCK));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, () -> {
+                for (long i = 0; i < lines; i++) {
+                    log.write("INFO: Product not found, your money will be returned.", true);
+                }
+                log.close();
+            });
+        }
+    }
+
+    /**
+     * Benchmarks filling, purchasing and writing the state of a machine of the given size.
+     */
+    private static void benchmarkMachine(String scale, long lines, int rows, int columns) throws IOException {
+        String size = rows + "x" + columns;
+        int slots = rows * columns;
+        int slotCapacity = (int) Math.max(Machine.DEFAULT_SLOT_CAPACITY, lines / slots + 1); //Every line finds a place.
+        String products = file("products-" + scale + "-" + size);
+        SyntheticData.writeProducts(products, lines, slots, 2);
+        String output = file("output");
+
+        measure("fill " + scale + " " + size, lines, () -> {
+            machine = new Machine(rows, columns, slotCapacity);
+            log = new TransactionLog(output);
+        }, () -> {
+            try (MappedFileInput input = new MappedFileInput(products, false, false)) {
+                GMMOutput.fill(log, input, machine);
+            }
+            log.close();
+        });
+
+        for (String choice : new String[]{"PROTEIN", "CARB", "FAT", "CALORIE", "NUMBER", "QUERY"}) {
+            String purchases = file("purchases-" + choice + "-" + scale + "-" + size);
+            SyntheticData.writePurchases(purchases, lines, choice, slots, 3);
+            measure("purchase " + choice + " " + scale + " " + size, lines, () -> fillMachine(products, output, rows, columns, slotCapacity), () -> {
+                try (MappedFileInput input = new MappedFileInput(purchases, false, false)) {
+                    GMMOutput.purchase(log, machine, input);
+                }
+                log.close();
+            });
+        }
+        for (String choice : new String[]{"PROTEIN", "CALORIE"}) { //The same files, with the results of the searches cached.
+            String purchases = file("purchases-" + choice + "-" + scale + "-" + size);
+            measure("purchase " + choice + " cached " + scale + " " + size, lines, () -> {
+                fillMachine(products, output, rows, columns, slotCapacity);
+                machine.setCache(new QueryCache(QueryCache.DEFAULT_CAPACITY, slots));
+            }, () -> {
+                try (MappedFileInput input = new MappedFileInput(purchases, false, false)) {
+                    GMMOutput.purchase(log, machine, input);
+                }
+                log.close();
+            });
+        }
+
+        String mixed = file("purchases-mixed-" + scale + "-" + size);
+        SyntheticData.writePurchases(mixed, lines, null, slots, 4);
+        int workers = Math.max(1, Runtime.getRuntime().availableProcessors() - 2);
+        measure("purchase sequential " + scale + " " + size, lines, () -> fillMachine(products, output, rows, columns, slotCapacity), () -> {
+            try (MappedFileInput input = new MappedFileInput(mixed, false, false)) {
+                GMMOutput.purchase(log, machine, input);
+            }
+            log.close();
+        });
+        measure("purchase pipeline x" + workers + " " + scale + " " + size, lines, () -> fillMachine(products, output, rows, columns, slotCapacity), () -> {
+            try (MappedFileInput input = new MappedFileInput(mixed, false, false)) {
+                PurchasePipeline.purchase(log, machine, input, workers);
+            }
+            log.close();
+        });
+        String timedProducts = file("products-timed-" + scale + "-" + size);
+        String timedPurchases = file("purchases-timed-" + scale + "-" + size);
+        SyntheticData.writeTimes(products, timedProducts, slots, 3600, 6); //A delivery of a product for each slot every hour.
+        SyntheticData.writeTimes(mixed, timedPurchases, 1, 7, 7);
+        measure("simulate " + scale + " " + size, 2 * lines, () -> {
+            machine = new Machine(rows, columns, slotCapacity);
+            log = new TransactionLog(output);
+        }, () -> {
+            try (MappedFileInput restocks = new MappedFileInput(timedProducts, true, false);
+                 MappedFileInput purchases = new MappedFileInput(timedPurchases, true, false)) {
+                Simulator simulator = new Simulator(machine, log);
+                simulator.addRestocks(timedProducts, restocks);
+                simulator.addPurchases(timedPurchases, purchases);
+                simulator.addSnapshots(86_400);
+                simulator.run();
+            }
+            log.close();
+        });
+        measure("analyze log " + scale + " " + size, lines, () -> { //The log of the last simulation.
+        }, () -> {
+            try {
+                LogAnalyzer.analyze(output, slots, Runtime.getRuntime().availableProcessors(), SalesAnalytics.DEFAULT_WINDOW);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        int finds = 100_000;
+        Nutrient[] nutrients = new Nutrient[finds];
+        int[] values = new int[finds];
+        int[] money = new int[finds];
+        Random random = new Random(5);
+        for (int i = 0; i < finds; i++) {
+            nutrients[i] = Nutrient.values()[random.nextInt(Nutrient.values().length)];
+            values[i] = random.nextInt(nutrients[i] == Nutrient.CALORIE ? 800 : 80);
+            money[i] = random.nextInt(300);
+        }
+        for (Machine.Search search : Machine.Search.values()) {
+            measure("find " + search + " x" + finds + " " + size, finds, () -> {
+                fillMachine(products, output, rows, columns, slotCapacity);
+                machine.setSearch(search);
+            }, () -> {
+                for (int i = 0; i < finds; i++) {
+                    machine.find(nutrients[i], values[i] - 5, values[i] + 5, money[i]);
+                }
+            });
+        }
+
+        CompoundQuery[] queries = new CompoundQuery[finds];
+        for (int i = 0; i < finds; i++) {
+            queries[i] = new CompoundQuery();
+            Nutrient first = Nutrient.values()[random.nextInt(Nutrient.values().length)];
+            Nutrient second = Nutrient.values()[(first.ordinal() + 1) % Nutrient.values().length];
+            int value = random.nextInt(first == Nutrient.CALORIE ? 800 : 80);
+            queries[i].setBounds(first.ordinal(), value - 5, value + 5);
+            queries[i].setBounds(second.ordinal(), Float.NEGATIVE_INFINITY, random.nextInt(second == Nutrient.CALORIE ? 800 : 80));
+            queries[i].setBounds(CompoundQuery.PRICE, Float.NEGATIVE_INFINITY, money[i]);
+        }
+        for (Machine.Search search : new Machine.Search[]{Machine.Search.INDEX, Machine.Search.SCALAR_SCAN}) {
+            measure("query " + search + " x" + finds + " " + size, finds, () -> {
+                fillMachine(products, output, rows, columns, slotCapacity);
+                machine.setSearch(search);
+            }, () -> {
+                for (int i = 0; i < finds; i++) {
+                    machine.find(queries[i]);
+                }
+            });
+        }
+
+        String snapshot = file("snapshot-" + size);
+        measure("MachineSnapshot.write " + size, slots, () -> fillMachine(products, output, rows, columns, slotCapacity),
+                () -> MachineSnapshot.write(machine, snapshot));
+        measure("MachineSnapshot.read " + size, slots, () -> { }, () -> MachineSnapshot.read(snapshot));
+
+        int renders = 1000;
+        measure("writeMachine x" + renders + " " + size, renders, () -> fillMachine(products, output, rows, columns, slotCapacity), () -> {
+            for (int i = 0; i < renders; i++) {
+                GMMOutput.writeMachine(log, machine);
+            }
+            log.close();
+        });
+    }
+
+    /**
+     * Fills a new machine before a benchmark; it is not measured.
+     */
+    private static void fillMachine(String products, String output, int rows, int columns, int slotCapacity) {
+        machine = new Machine(rows, columns, slotCapacity);
+        log = new TransactionLog(output);
+        try (MappedFileInput input = new MappedFileInput(products, false, false)) {
+            GMMOutput.fill(log, input, machine);
+        }
+    }
+
+    /**
+     * Warms up and measures one benchmark, then prints its results.
+     *
+     * @param name      Name of the benchmark.
+     * @param items     Number of items an iteration processes.
+     * @param setup     Prepares an iteration; it is not measured.
+     * @param operation The operation that is measured.
+     */
+    private static void measure(String name, long items, Runnable setup, Runnable operation) {
+        int iterations = (int) Math.max(3, Math.min(30, 2_000_000 / Math.max(1, items)));
+        for (int i = 0; i < Math.max(2, iterations / 2); i++) {
+            setup.run();
+            operation.run();
+        }
+
+        long[] times = new long[iterations];
+        long allocated = 0;
+        long[] gcBefore = gcTotals();
+        for (int i = 0; i < iterations; i++) {
+            setup.run();
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            operation.run();
+            times[i] = System.nanoTime() - start;
+            allocated += allocatedBytes() - allocatedBefore;
+        }
+        long[] gcAfter = gcTotals();
+
+        Arrays.sort(times);
+        long total = 0;
+        for (long time : times) {
+            total += time;
+        }
+        System.out.printf(Locale.ROOT, "%-34s %10d %14.0f %10.3f %10.3f %10.3f %12.1f %7d/%-4d%n", name, items,
+                items * iterations / (total / 1e9), percentile(times, 0.50), percentile(times, 0.99),
+                percentile(times, 0.999), (double) allocated / (items * iterations),
+                gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+    }
+
+    /**
+     * @return The time at the given percentile in milliseconds, from the sorted times in nanoseconds.
+     */
+    private static double percentile(long[] sortedTimes, double percentile) {
+        int index = (int) Math.ceil(percentile * sortedTimes.length) - 1;
+        return sortedTimes[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * @return Number of bytes allocated by the current thread so far, or 0 if the JVM cannot tell it.
+     */
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+        }
+        return 0;
+    }
+
+    /**
+     * @return Total number and total time in milliseconds of the garbage collections so far.
+     */
+    private static long[] gcTotals() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, collector.getCollectionCount());
+            totals[1] += Math.max(0, collector.getCollectionTime());
+        }
+        return totals;
+    }
+
+    private static long parseScale(String scale) {
+        String lower = scale.trim().toLowerCase(Locale.ROOT);
+        if (lower.endsWith("k")) {
+            return Long.parseLong(lower.substring(0, lower.length() - 1)) * 1_000;
+        } else if (lower.endsWith("m")) {
+            return Long.parseLong(lower.substring(0, lower.length() - 1)) * 1_000_000;
+        }
+        return Long.parseLong(lower);
+    }
+
+    private static String file(String name) {
+        return directory.resolve(name + ".txt").toString();
+    }
+}
@@ -0,0 +1,146 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A bounded queue that several threads can put to and take from without locking. It is an array of cells used as a
+ * ring; every cell has a sequence number that tells whether it is ready to be written or read in the current round,
+ * so a producer and a consumer only race with others of their own kind, through a compare-and-set on the tail or the
+ * head. See D. Vyukov's bounded MPMC queue.
+ *
+ * {@link #put} waits while the queue is full, which slows the producer down to the speed of the consumers
+ * (back-pressure), and {@link #take} waits while it is empty. Both wait on a {@link Signal} that every put and take
+ * signals, and give up when the stop condition becomes true; whoever makes it true must signal too. Queues whose
+ * threads also wait for other things can share one signal.
+ *
+ * @param <T> Type of the elements.
+ */
+public class BoundedQueue<T> {
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // Next position to take from.
+    private final AtomicLong tail = new AtomicLong(); // Next position to put to.
+    private final Signal signal; // Signaled after every element that is added or removed.
+
+    /**
+     * @param capacity The number of elements the queue can hold; it is rounded up to a power of two.
+     */
+    public BoundedQueue(int capacity) {
+        this(capacity, new Signal());
+    }
+
+    /**
+     * @param capacity The number of elements the queue can hold; it is rounded up to a power of two.
+     * @param signal   The {@link Signal} that is signaled when an element is added or removed.
+     */
+    public BoundedQueue(int capacity, Signal signal) {
+        this.signal = signal;
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element if there is room.
+     *
+     * @param element The element to add, not null.
+     * @return False if the queue is full.
+     */
+    public boolean offer(T element) {
+        while (true) {
+            long position = tail.get();
+            int cell = (int) position & mask;
+            long difference = sequences.get(cell) - position;
+            if (difference == 0) { //The cell is free in this round.
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.set(cell, element);
+                    sequences.set(cell, position + 1); //Publishes the element to the consumers.
+                    signal.signal();
+                    return true;
+                }
+            } else if (difference < 0) { //The cell still holds the element of the previous round.
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element if there is any.
+     *
+     * @return The element, or null if the queue is empty.
+     */
+    public T poll() {
+        while (true) {
+            long position = head.get();
+            int cell = (int) position & mask;
+            long difference = sequences.get(cell) - (position + 1);
+            if (difference == 0) { //The cell was written in this round.
+                if (head.compareAndSet(position, position + 1)) {
+                    T element = elements.get(cell);
+                    elements.set(cell, null);
+                    sequences.set(cell, position + mask + 1); //Frees the cell for the next round.
+                    signal.signal();
+                    return element;
+                }
+            } else if (difference < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return True if the next {@link #offer} may find a free cell, without adding anything.
+     */
+    public boolean hasRoom() {
+        long position = tail.get();
+        return sequences.get((int) position & mask) - position >= 0;
+    }
+
+    /**
+     * @return True if the next {@link #poll} may find an element, without removing anything.
+     */
+    public boolean hasElement() {
+        long position = head.get();
+        return sequences.get((int) position & mask) - (position + 1) >= 0;
+    }
+
+    /**
+     * Adds an element, waiting while the queue is full.
+     *
+     * @param element The element to add, not null.
+     * @param stop    Checked while waiting; the element is not added if it becomes true.
+     * @return False if it stopped before the element was added.
+     */
+    public boolean put(T element, BooleanSupplier stop) {
+        for (int round = 0; !offer(element); round++) {
+            if (stop.getAsBoolean()) {
+                return false;
+            }
+            signal.await(round, () -> hasRoom() || stop.getAsBoolean());
+        }
+        return true;
+    }
+
+    /**
+     * Removes the oldest element, waiting while the queue is empty.
+     *
+     * @param stop Checked while waiting; nothing is removed if it becomes true.
+     * @return The element, or null if it stopped before an element came.
+     */
+    public T take(BooleanSupplier stop) {
+        T element;
+        for (int round = 0; (element = poll()) == null; round++) {
+            if (stop.getAsBoolean()) {
+                return null;
+            }
+            signal.await(round, () -> hasElement() || stop.getAsBoolean());
+        }
+        return element;
+    }
+}
@@ -0,0 +1,228 @@
+import java.util.Arrays;
+
+/**
+ * Keeps the coins that are in the machine and works out which coins are given as change. The coins of a purchase are
+ * added to the inventory before the change is made, so they can be given back as part of the change, and a sale is
+ * refused when the exact change cannot be made from the coins in the machine.
+ *
+ * The accepted coins form two chains in which every coin is a multiple of the smaller ones: 1, 5, 10 and 20 TL, and
+ * 50, 100 and 200 TL. Within a chain, taking as many of the largest coin as possible always finds change if there is
+ * any, so change is made by choosing the part of the amount that is paid with the large coins and paying both parts
+ * greedily. The part of the large coins is a multiple of 50, and the largest one that works is taken.
+ *
+ * A chain can pay an amount if and only if the amount is not more than the total of its coins and, for each coin, the
+ * amount modulo the next larger coin is not more than the total of the coins up to that one. Moving 50 TL from the
+ * large part to the small part changes the small part modulo 20 with a period of 2 and the large part modulo 200
+ * with a period of 4, so among the splits that both totals allow, whether a split works repeats every 4 splits. At
+ * most 4 splits are tried, each taking seven divisions, however large the amount or the coins in the machine are.
+ * Nothing is allocated while making change.
+ */
+public class CoinInventory {
+    // The accepted coins from the smallest to the largest; the counts and the change arrays use the same order.
+    public static final int[] DENOMINATIONS = {1, 5, 10, 20, 50, 100, 200};
+    private static final int FIRST_LARGE = 4; // Index of the 50 TL coin, where the chain of large coins starts.
+    private static final int LARGE_UNIT = 50;
+    private static final int[] INDEX = new int[201]; // Index of each coin in DENOMINATIONS, -1 if it is not accepted.
+
+    static {
+        Arrays.fill(INDEX, -1);
+        for (int i = 0; i < DENOMINATIONS.length; i++) {
+            INDEX[DENOMINATIONS[i]] = i;
+        }
+    }
+
+    private final int[] counts = new int[DENOMINATIONS.length];
+    private long inserted; // Total money inserted by the customers of the sales.
+    private long dispensed; // Total money given as change.
+
+    /**
+     * Constructs an inventory with the same number of each coin.
+     *
+     * @param count Number of coins of each denomination at the start.
+     */
+    public CoinInventory(int count) {
+        Arrays.fill(counts, count);
+    }
+
+    /**
+     * Constructs an inventory with the given number of each coin.
+     *
+     * @param counts Number of coins of each denomination at the start, in the order of {@link #DENOMINATIONS}.
+     * @throws IllegalArgumentException If there is not a count for each denomination or a count is negative.
+     */
+    public CoinInventory(int[] counts) {
+        if (counts.length != DENOMINATIONS.length) {
+            throw new IllegalArgumentException("A count is needed for each of the " + DENOMINATIONS.length + " coins.");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] < 0) {
+                throw new IllegalArgumentException("The number of coins cannot be negative.");
+            }
+            this.counts[i] = counts[i];
+        }
+    }
+
+    /**
+     * Creates the coin inventory of a machine if the system property gmm.coins is set. It is either one number, which
+     * is the count of every coin, or a count for each coin from 1 TL to 200 TL separated by commas.
+     *
+     * @return The inventory, or null if the machine does not keep its coins and always has change.
+     */
+    public static CoinInventory fromSystemProperties() {
+        String coins = System.getProperty("gmm.coins");
+        if (coins == null || coins.isBlank()) {
+            return null;
+        }
+        String[] parts = coins.split(",");
+        if (parts.length == 1) {
+            return new CoinInventory(Integer.parseInt(parts[0].trim()));
+        }
+        int[] counts = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            counts[i] = Integer.parseInt(parts[i].trim());
+        }
+        return new CoinInventory(counts);
+    }
+
+    /**
+     * Takes the accepted coins of a purchase and gives the change of the price. If the change cannot be made, the
+     * coins of the purchase are given back and nothing changes.
+     *
+     * @param purchase The {@link Purchase} whose accepted coins are inserted.
+     * @param price    The price of the product.
+     * @param change   Filled with the number of each coin given as change, in the order of {@link #DENOMINATIONS}.
+     * @return True if the change was made, false if the sale should be refused.
+     */
+    public synchronized boolean pay(Purchase purchase, int price, int[] change) {
+        addCoins(purchase, 1);
+        if (!makeChange(purchase.getValidTotal() - price, change)) {
+            addCoins(purchase, -1);
+            return false;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] -= change[i];
+        }
+        inserted += purchase.getValidTotal();
+        dispensed += purchase.getValidTotal() - price;
+        return true;
+    }
+
+    /**
+     * Undoes {@link #pay}: takes the change back and gives the coins of the purchase back, for a sale that failed
+     * after it was paid.
+     *
+     * @param purchase The {@link Purchase} that was paid.
+     * @param price    The price that was paid.
+     * @param change   The change that was given.
+     */
+    public synchronized void cancel(Purchase purchase, int price, int[] change) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += change[i];
+        }
+        addCoins(purchase, -1);
+        inserted -= purchase.getValidTotal();
+        dispensed -= purchase.getValidTotal() - price;
+    }
+
+    /**
+     * @param index Index of the coin in {@link #DENOMINATIONS}.
+     * @return Number of coins of that denomination in the machine.
+     */
+    public synchronized int getCount(int index) {
+        return counts[index];
+    }
+
+    /**
+     * @return Total money in the machine.
+     */
+    public synchronized long getTotal() {
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += (long) counts[i] * DENOMINATIONS[i];
+        }
+        return total;
+    }
+
+    /**
+     * Adds or removes coins, for example when the changes of the coins are replayed from a {@link MachineJournal}.
+     *
+     * @param change The number of each coin that is added, in the order of {@link #DENOMINATIONS}.
+     * @param sign   1 to add the coins, -1 to remove them.
+     */
+    public synchronized void adjust(int[] change, int sign) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += sign * change[i];
+        }
+    }
+
+    /**
+     * @param coin Value of the coin.
+     * @return Index of the coin in {@link #DENOMINATIONS}, or -1 if the machine does not accept it.
+     */
+    public static int indexOf(int coin) {
+        return coin >= 0 && coin < INDEX.length ? INDEX[coin] : -1;
+    }
+
+    public synchronized long getInserted() {
+        return inserted;
+    }
+
+    public synchronized long getDispensed() {
+        return dispensed;
+    }
+
+    private void addCoins(Purchase purchase, int sign) {
+        for (int k = 0; k < purchase.getCoinCount(); k++) {
+            int coin = purchase.getCoin(k);
+            if (indexOf(coin) != -1) {
+                counts[INDEX[coin]] += sign;
+            }
+        }
+    }
+
+    /**
+     * Finds coins that make the amount, paying as much of it as possible with the large coins. The counts are not
+     * changed.
+     *
+     * @return True if the amount can be made, with the coins written to the change array.
+     */
+    private boolean makeChange(int amount, int[] change) {
+        if (amount < 0) {
+            return false;
+        }
+        long smallTotal = 0;
+        for (int i = 0; i < FIRST_LARGE; i++) {
+            smallTotal += (long) counts[i] * DENOMINATIONS[i];
+        }
+        long largeUnits = 0; // Total of the large coins in units of 50 TL.
+        for (int i = FIRST_LARGE; i < DENOMINATIONS.length; i++) {
+            largeUnits += (long) counts[i] * (DENOMINATIONS[i] / LARGE_UNIT);
+        }
+        //The large coins pay a multiple of 50 and the small coins pay the rest; each split moves 50 TL to the small part.
+        int rest = amount % LARGE_UNIT;
+        int units = amount / LARGE_UNIT;
+        long first = Math.max(0, units - largeUnits); // The first split whose large part the large coins can reach.
+        long last = smallTotal < rest ? -1 : Math.min(units, (smallTotal - rest) / LARGE_UNIT);
+        for (long split = first; split <= last && split < first + 4; split++) {
+            int large = (int) (units - split) * LARGE_UNIT;
+            if (greedy(large, FIRST_LARGE, DENOMINATIONS.length, change)
+                    && greedy(amount - large, 0, FIRST_LARGE, change)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Pays the amount with the coins between the indexes, which form a chain, taking the largest coins first.
+     *
+     * @return True if the amount was paid exactly.
+     */
+    private boolean greedy(int amount, int from, int to, int[] change) {
+        for (int i = to - 1; i >= from; i--) {
+            change[i] = Math.min(counts[i], amount / DENOMINATIONS[i]);
+            amount -= change[i] * DENOMINATIONS[i];
+        }
+        return amount == 0;
+    }
+}
@@ -0,0 +1,122 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Converts the text product and purchase files to the binary formats of {@link ProductColumns} and
+ * {@link PurchaseColumns}, which {@link Main} reads instead of the text when it is given a binary file. It also holds
+ * what both formats share: the magic number at the start of the file, the checksum at its end and how the file is
+ * written and mapped.
+ *
+ * The magic number is big-endian, so a file starts with its letters. Every other number is little-endian, the byte
+ * order of most CPUs, so the columns are copied into arrays without swapping their bytes.
+ */
+public class ColumnarConverter {
+    /**
+     * Converts a text file to the binary format.
+     *
+     * The method expects the following command-line arguments:
+     * <ol>
+     * <li>args[0]: products or purchases, the kind of the file.</li>
+     * <li>args[1]: The path to the text file.</li>
+     * <li>args[2]: The path to the binary file that is written.</li>
+     * </ol>
+     *
+     * @param args An array of {@link String} containing command-line arguments.
+     */
+    public static void main(String[] args) {
+        if (args.length < 3 || !(args[0].equals("products") || args[0].equals("purchases"))) {
+            System.err.println("Usage: ColumnarConverter products|purchases <text file> <binary file>");
+            System.exit(2);
+        }
+        int lines = args[0].equals("products") ? ProductColumns.convert(args[1], args[2]) : PurchaseColumns.convert(args[1], args[2]);
+        if (lines == -1) {
+            System.exit(1);
+        }
+        System.out.println("Converted " + lines + " lines to " + args[2]);
+    }
+
+    /**
+     * Creates the buffer of a file and writes its magic number and version.
+     *
+     * @param size Size of the whole file, including the checksum.
+     * @return The buffer, which puts the rest of the numbers in little-endian order.
+     */
+    static ByteBuffer allocate(int size, int magic, int version) {
+        ByteBuffer buffer = ByteBuffer.allocate(size).putInt(magic);
+        return buffer.order(ByteOrder.LITTLE_ENDIAN).putInt(version);
+    }
+
+    /**
+     * Adds the CRC32 of the buffer to its end and writes it to a temporary file that then replaces the target, like
+     * {@link MachineSnapshot#write} does.
+     *
+     * @return 0 if the file was written, -1 if an error occurred.
+     */
+    static int write(ByteBuffer buffer, String path) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc.getValue());
+
+        Path target = Paths.get(path).toAbsolutePath();
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            Files.write(temporary, buffer.array());
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * @return True if the file at the given path starts with the magic number.
+     */
+    static boolean hasMagic(String path, int magic) {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            ByteBuffer start = ByteBuffer.allocate(Integer.BYTES);
+            return channel.read(start, 0) == Integer.BYTES && start.getInt(0) == magic;
+        } catch (IOException e) { //A missing file is reported by the reader that opens it.
+            return false;
+        }
+    }
+
+    /**
+     * Maps a file of the given format and checks its magic number, version and checksum.
+     *
+     * @return The buffer positioned after the version, which reads the numbers in little-endian order.
+     * @throws IOException If the file cannot be read or is not valid.
+     */
+    static ByteBuffer map(String path, int magic, int version) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            if (channel.size() < 2 * Integer.BYTES + Long.BYTES || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("The file is not in the binary format: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int end = buffer.limit() - Long.BYTES;
+            if (buffer.getInt() != magic) {
+                throw new IOException("The file is not in the binary format: " + path);
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int fileVersion = buffer.getInt();
+            if (fileVersion != version) {
+                throw new IOException("Unsupported version " + fileVersion + ", expected " + version + ": " + path);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate().position(0).limit(end));
+            if (buffer.getLong(end) != crc.getValue()) {
+                throw new IOException("The checksum of the file does not match: " + path);
+            }
+            return buffer.limit(end);
+        }
+    }
+}
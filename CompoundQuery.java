@@ -0,0 +1,163 @@
+import java.util.Arrays;
+
+/**
+ * A purchase that chooses the product by several values at once, written in the purchase file with the QUERY choice
+ * and a list of conditions separated by spaces as the value, for example:
+ * <pre>
+ * CASH	100 50	QUERY	PROTEIN=30 CALORIE&lt;=250 PRICE&lt;=CASH
+ * </pre>
+ * A condition is an attribute (PROTEIN, CARB, FAT, CALORIE or PRICE), an operator (=, &lt;, &lt;=, &gt; or &gt;=) and
+ * a whole number, or CASH for the accepted money of the purchase. Like the single choices, = accepts nutrient values
+ * within 5 of the number; for PRICE it accepts only the number itself. The conditions of a query must all be true,
+ * so two conditions on the same attribute give the values between them.
+ *
+ * The query is kept as the lowest and highest accepted value of each attribute, a box in the space of the values that
+ * {@link NutrientTree} searches. An object is reused for many lines, like {@link Purchase}.
+ */
+public class CompoundQuery {
+    // Index of the price among the attributes; the nutrients use their ordinal.
+    public static final int PRICE = Nutrient.values().length;
+    public static final int ATTRIBUTES = PRICE + 1;
+    private static final String[] NAMES = {"PROTEIN", "CARB", "FAT", "CALORIE", "PRICE"};
+    private static final Nutrient[] NUTRIENTS = Nutrient.values();
+
+    private final float[] lowerBounds = new float[ATTRIBUTES];
+    private final float[] upperBounds = new float[ATTRIBUTES];
+
+    /**
+     * Constructs a query that accepts every product.
+     */
+    public CompoundQuery() {
+        clear();
+    }
+
+    /**
+     * Accepts every product again.
+     */
+    public void clear() {
+        Arrays.fill(lowerBounds, Float.NEGATIVE_INFINITY);
+        Arrays.fill(upperBounds, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Parses the conditions between start and end, replacing the conditions the query held before.
+     *
+     * @param text  The text that holds the conditions, for example a line of the purchase file.
+     * @param start Place of the first character of the conditions.
+     * @param end   Place after the last character of the conditions.
+     * @param cash  The accepted money of the purchase, which CASH stands for.
+     * @throws IllegalArgumentException If there is no condition or a condition cannot be understood.
+     */
+    public void parse(CharSequence text, int start, int end, int cash) {
+        clear();
+        int conditions = 0;
+        while (start < end) {
+            int conditionEnd = start;
+            while (conditionEnd < end && text.charAt(conditionEnd) != ' ') {
+                conditionEnd++;
+            }
+            if (conditionEnd > start) { //Several spaces between the conditions are allowed.
+                parseCondition(text, start, conditionEnd, cash);
+                conditions++;
+            }
+            start = conditionEnd + 1;
+        }
+        if (conditions == 0) {
+            throw new IllegalArgumentException("The query has no condition: " + text);
+        }
+    }
+
+    private void parseCondition(CharSequence text, int start, int end, int cash) {
+        int attribute = -1;
+        for (int i = 0; i < NAMES.length && attribute == -1; i++) {
+            if (startsWith(text, start, end, NAMES[i])) {
+                attribute = i;
+            }
+        }
+        if (attribute == -1) {
+            throw new IllegalArgumentException("Unknown attribute in query: " + text.subSequence(start, end));
+        }
+        int place = start + NAMES[attribute].length();
+        if (place == end) {
+            throw new IllegalArgumentException("The condition has no operator: " + text.subSequence(start, end));
+        }
+        char operator = text.charAt(place++);
+        boolean orEqual = place < end && text.charAt(place) == '=' && operator != '=';
+        if (orEqual) {
+            place++;
+        }
+        if (operator != '=' && operator != '<' && operator != '>') {
+            throw new IllegalArgumentException("Unknown operator in condition: " + text.subSequence(start, end));
+        }
+        int number = startsWith(text, place, end, "CASH") && end - place == 4 ? cash : Integer.parseInt(text, place, end, 10);
+
+        float lower = Float.NEGATIVE_INFINITY;
+        float upper = Float.POSITIVE_INFINITY;
+        if (operator == '=') {
+            int range = attribute == PRICE ? 0 : 5; //The same range as the single choices.
+            lower = number - range;
+            upper = number + range;
+        } else if (operator == '<') {
+            upper = orEqual ? number : Math.nextDown((float) number);
+        } else {
+            lower = orEqual ? number : Math.nextUp((float) number);
+        }
+        lowerBounds[attribute] = Math.max(lowerBounds[attribute], lower);
+        upperBounds[attribute] = Math.min(upperBounds[attribute], upper);
+    }
+
+    private static boolean startsWith(CharSequence text, int start, int end, String prefix) {
+        if (end - start < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text.charAt(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the accepted values of one attribute directly, without parsing.
+     *
+     * @param attribute  The ordinal of a {@link Nutrient}, or {@link #PRICE}.
+     * @param lowerBound The lowest accepted value, inclusive.
+     * @param upperBound The highest accepted value, inclusive.
+     */
+    public void setBounds(int attribute, float lowerBound, float upperBound) {
+        lowerBounds[attribute] = lowerBound;
+        upperBounds[attribute] = upperBound;
+    }
+
+    public float getLowerBound(int attribute) {
+        return lowerBounds[attribute];
+    }
+
+    public float getUpperBound(int attribute) {
+        return upperBounds[attribute];
+    }
+
+    /**
+     * @param product The {@link Product} that is checked.
+     * @return True if every value of the product is within the bounds of the query.
+     */
+    public boolean matches(Product product) {
+        for (int attribute = 0; attribute < ATTRIBUTES; attribute++) {
+            float value = valueOf(product, attribute);
+            if (!(value >= lowerBounds[attribute] && value <= upperBounds[attribute])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param product   The {@link Product} whose value is wanted.
+     * @param attribute The ordinal of a {@link Nutrient}, or {@link #PRICE}.
+     * @return The value of the attribute in the product.
+     */
+    public static float valueOf(Product product, int attribute) {
+        return attribute == PRICE ? product.getPrice() : NUTRIENTS[attribute].of(product);
+    }
+}
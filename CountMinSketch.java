@@ -0,0 +1,156 @@
+import java.util.Arrays;
+
+/**
+ * Estimates how many times each key was added, in a fixed array of counters however many different keys there are.
+ * A key is counted in one counter of every row, chosen by a different hash for each row, and its estimate is the
+ * smallest of these counters: it is never below the true count, and it is above it by at most e / width of the total
+ * with a probability of 1 - e^-depth (G. Cormode and S. Muthukrishnan's count-min sketch).
+ *
+ * The sketch also keeps a few keys with the highest estimates seen so far, so the most frequent keys can be reported
+ * without keeping every key. Sketches of the same size can be merged, for example the sketches of several threads.
+ * It is not safe to use from several threads at once.
+ */
+public class CountMinSketch {
+    public static final int DEFAULT_WIDTH = 8192;
+    public static final int DEFAULT_DEPTH = 4;
+    public static final int DEFAULT_TOP = 16;
+
+    private final int width; // Counters in a row, a power of two.
+    private final int depth;
+    private final long[] counters; // The rows one after another.
+    private long total;
+    private final long[] topKeys; // Keys with the highest estimates, in no order.
+    private final long[] topCounts; // Their estimates when they were last seen.
+    private int topSize;
+
+    /**
+     * Constructs a sketch with the default size, 256 KB of counters.
+     */
+    public CountMinSketch() {
+        this(DEFAULT_WIDTH, DEFAULT_DEPTH, DEFAULT_TOP);
+    }
+
+    /**
+     * @param width Counters in a row; it is rounded up to a power of two.
+     * @param depth Number of rows.
+     * @param top   Number of frequent keys that are kept.
+     */
+    public CountMinSketch(int width, int depth, int top) {
+        this.width = Integer.highestOneBit(Math.max(2, width) - 1) << 1;
+        this.depth = Math.max(1, depth);
+        this.counters = new long[this.width * this.depth];
+        this.topKeys = new long[Math.max(1, top)];
+        this.topCounts = new long[topKeys.length];
+    }
+
+    /**
+     * Counts a key.
+     *
+     * @param key   The key.
+     * @param count How many times it is counted.
+     */
+    public void add(long key, long count) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int index = row * width + index(key, row);
+            counters[index] += count;
+            estimate = Math.min(estimate, counters[index]);
+        }
+        total += count;
+        offerTop(key, estimate);
+    }
+
+    /**
+     * @param key The key.
+     * @return The estimated number of times the key was added; never less than the true number.
+     */
+    public long estimate(long key) {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters[row * width + index(key, row)]);
+        }
+        return estimate;
+    }
+
+    /**
+     * @return Sum of all counts.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Gives the kept keys with the highest estimates.
+     *
+     * @param limit Most keys to give.
+     * @return The keys, the most frequent first.
+     */
+    public long[] getTopKeys(int limit) {
+        Long[] keys = new Long[topSize];
+        for (int i = 0; i < topSize; i++) {
+            keys[i] = topKeys[i];
+        }
+        Arrays.sort(keys, (a, b) -> Long.compare(estimate(b), estimate(a)));
+        long[] top = new long[Math.min(limit, topSize)];
+        for (int i = 0; i < top.length; i++) {
+            top[i] = keys[i];
+        }
+        return top;
+    }
+
+    /**
+     * Adds the counts of another sketch of the same size to this one.
+     *
+     * @param other The other {@link CountMinSketch}.
+     * @throws IllegalArgumentException If the sketches do not have the same size.
+     */
+    public void merge(CountMinSketch other) {
+        if (other.width != width || other.depth != depth) {
+            throw new IllegalArgumentException("Only sketches of the same size can be merged.");
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] += other.counters[i];
+        }
+        total += other.total;
+        for (int i = 0; i < topSize; i++) { //The estimates have grown with the other counts.
+            topCounts[i] = estimate(topKeys[i]);
+        }
+        for (int i = 0; i < other.topSize; i++) {
+            offerTop(other.topKeys[i], estimate(other.topKeys[i]));
+        }
+    }
+
+    /**
+     * Keeps the key among the frequent keys if its estimate is higher than the lowest kept one.
+     */
+    private void offerTop(long key, long estimate) {
+        int lowest = 0;
+        for (int i = 0; i < topSize; i++) {
+            if (topKeys[i] == key) {
+                topCounts[i] = estimate;
+                return;
+            }
+            if (topCounts[i] < topCounts[lowest]) {
+                lowest = i;
+            }
+        }
+        if (topSize < topKeys.length) {
+            lowest = topSize++;
+        } else if (estimate <= topCounts[lowest]) {
+            return;
+        }
+        topKeys[lowest] = key;
+        topCounts[lowest] = estimate;
+    }
+
+    /**
+     * Hashes the key for a row with a different seed for each row (the finalizer of MurmurHash3).
+     */
+    private int index(long key, int row) {
+        long hash = key + (row + 1) * 0x9E3779B97F4A7C15L;
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return (int) hash & (width - 1);
+    }
+}
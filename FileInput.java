@@ -2,6 +2,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
+import java.util.stream.Stream;
 
 public class FileInput {
     /**
@@ -27,4 +28,29 @@ public class FileInput {
             return null;
         }
     }
+
+    /**
+     * Opens the file at the given path and returns its lines as a lazily read stream, so that only the line that is
+     * being processed is kept in memory. The stream holds the file open, so it should be closed after it is consumed.
+     *
+     * @param path              Path to the file that is going to be read.
+     * @param discardEmptyLines If true, discards empty lines with respect to trim; else, it takes all the lines from the file.
+     * @param trim              Trim status; if true, trims (strip in Python) each line; else, it leaves each line as-is.
+     * @return Lines of the file as a stream, returns an empty stream if there is not such a file or this program does not have sufficient permissions to read that file.
+     */
+    public static Stream<String> streamFile(String path, boolean discardEmptyLines, boolean trim) {
+        try {
+            Stream<String> lines = Files.lines(Paths.get(path)); //Reads the file line by line as the stream is consumed.
+            if (discardEmptyLines) { //Skips the lines that are empty with respect to trim.
+                lines = lines.filter(line -> !line.trim().equals(""));
+            }
+            if (trim) { //Trims each line.
+                lines = lines.map(String::trim);
+            }
+            return lines;
+        } catch (IOException e) { //Returns an empty stream if there is no such a file.
+            e.printStackTrace();
+            return Stream.empty();
+        }
+    }
 }
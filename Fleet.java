@@ -0,0 +1,114 @@
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Runs a fleet of machines at the same time. The machines are listed in a manifest file, where each line holds the
+ * product file, the purchase file and the output file of one machine separated by tabs. Every machine is run by
+ * {@link Main#run} with its own {@link Machine} and log on a thread pool of fixed size, so the output of each machine
+ * is the same as running Main for it alone. The metrics dump (gmm.metrics.dump) and the analytics report
+ * (gmm.analytics) of each machine get the name of its output file before their extension, such as
+ * metrics.out1.json for out1.txt, and its metrics MBean is named by the path of its output file. If the output files
+ * of several machines have the same name in different directories, the number of the machine in the manifest is
+ * added to it, such as metrics.out.2.json for the second line; two machines cannot write the same output file.
+ */
+public class Fleet {
+    /**
+     * Reads the manifest, runs all the machines in it and prints the total throughput.
+     *
+     * The method expects the following command-line arguments:
+     * <ol>
+     * <li>args[0]: The path to the manifest file.</li>
+     * <li>args[1] (optional): The number of machines that are run at the same time. It is the number of processors if not given.</li>
+     * <li>args[2], args[3], args[4] (optional): The number of rows, columns and products per slot of every machine.</li>
+     * </ol>
+     *
+     * @param args An array of {@link String} containing command-line arguments.
+     */
+    public static void main(String[] args) {
+        int threads = args.length >= 2 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        List<String[]> machines = new ArrayList<>();
+        try (Stream<String> manifest = FileInput.streamFile(args[0], true, true)) {
+            manifest.forEach(line -> machines.add(line.split("\t")));
+        }
+
+        List<String> suffixes = suffixes(machines);
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < machines.size(); i++) {
+            String[] files = machines.get(i);
+            String suffix = suffixes.get(i);
+            results.add(executor.submit(() -> Main.run(files[0], files[1], files[2], args.length >= 5
+                    ? new Machine(Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]))
+                    : new Machine(), null, suffix)));
+        }
+
+        int failed = 0;
+        for (Future<?> result : results) { //Waits for every machine; a failing machine does not stop the others.
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                failed += 1;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        executor.shutdown();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long inputBytes = 0;
+        for (String[] files : machines) {
+            inputBytes += new File(files[0]).length() + new File(files[1]).length();
+        }
+        System.out.printf("Processed %d machines (%d failed) on %d threads in %.3f s%n", machines.size(), failed, threads, seconds);
+        System.out.printf("Throughput: %.1f machines/s, %.1f MB/s of input%n", machines.size() / seconds, inputBytes / 1e6 / seconds);
+    }
+
+    /**
+     * Finds the suffix of the metrics dump and the analytics report of each machine: the name of its output file
+     * before the extension, followed by the number of the machine in the manifest if the output file of another
+     * machine has the same name.
+     *
+     * @param machines The files of each machine, as they are in the manifest.
+     * @return The suffix of each machine, in the same order.
+     * @throws IllegalArgumentException If two machines write the same output file.
+     */
+    static List<String> suffixes(List<String[]> machines) {
+        Set<Path> outputs = new HashSet<>();
+        Map<String, Integer> names = new HashMap<>(); //Number of output files with each name.
+        for (String[] files : machines) {
+            if (!outputs.add(Path.of(files[2]).toAbsolutePath().normalize())) {
+                throw new IllegalArgumentException("Two machines write the same output file: " + files[2]);
+            }
+            names.merge(baseName(files[2]), 1, Integer::sum);
+        }
+        List<String> suffixes = new ArrayList<>();
+        for (int i = 0; i < machines.size(); i++) {
+            String name = baseName(machines.get(i)[2]);
+            suffixes.add("." + (names.get(name) > 1 ? name + "." + (i + 1) : name));
+        }
+        return suffixes;
+    }
+
+    /**
+     * @return The name of the file before its extension.
+     */
+    private static String baseName(String path) {
+        String name = new File(path).getName();
+        return name.lastIndexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name;
+    }
+}
@@ -1,12 +1,12 @@
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-
 /**
  * This class is generally where the gym meal machine works. creates slots for the machine,
  * fills these slots with products, makes product purchases, prints the machine status.
  */
 public class GMMOutput {
+    // Result of buy for a purchase whose choice is not known; nothing but the input line is written for it.
+    static final int UNKNOWN_CHOICE = Integer.MIN_VALUE;
+    // Lines of an input file between the LOGGED records of a journal, see logged.
+    static final int LOGGED_LINES = 1024;
 
     /**
      * Initializes the machine with empty slots.
@@ -25,342 +25,452 @@ public class GMMOutput {
      * Fills the machine with products based on the input product list. this function places the products
      * in the slots in the appropriate order and prints them to the file if there is an error.
      *
-     * @param args Command line arguments where args[2] is expected to be the path to the log file.
-     * @param productContent An array of strings, each representing a product and its attributes.
-     * @param machine A 2D array of {@link Slot} objects representing the machine slots.
+     * @param log The {@link TransactionLog} that the transaction messages are written to.
+     * @param productContent The lines of the product file, each representing a product and its attributes. They are consumed one by one.
+     * @param machine The {@link Machine} that is going to be filled.
      * @return An integer indicating the status of the operation (0 for success, -1 if the machine is full).
      */
-    public static int fill(String[] args, String[] productContent, Slot[][] machine) {
-        ArrayList<Product> productList = new ArrayList<>();
-        int filledSlots = 0; //number of full slots
+    public static int fill(TransactionLog log, Iterable<? extends CharSequence> productContent, Machine machine) {
+        long start = System.nanoTime();
+        int status = fillSlots(log, productContent, machine);
+        if (machine.getMetrics() != null) {
+            machine.getMetrics().recordFill(System.nanoTime() - start);
+        }
+        return status;
+    }
 
+    /**
+     * Fills the machine from a product file in the binary format, like {@link #fill(TransactionLog, Iterable, Machine)}
+     * does from the text. The values are read from the records instead of being parsed, and the product of each name
+     * is looked up in the catalog only once.
+     *
+     * @param log The {@link TransactionLog} that the transaction messages are written to.
+     * @param products The opened {@link ProductColumns}.
+     * @param machine The {@link Machine} that is going to be filled.
+     * @return An integer indicating the status of the operation (0 for success, -1 if the machine is full).
+     */
+    public static int fill(TransactionLog log, ProductColumns products, Machine machine) {
+        return fill(log, products, machine, 0);
+    }
 
-        for (String line : productContent) {
-            String[] parts = line.split("\t");
-            String name = parts[0];
-            int price = Integer.parseInt(parts[1]);
-            String[] foodValues = parts[2].split(" ");
-            float protein = Float.parseFloat(foodValues[0]);
-            float carbohydrate = Float.parseFloat(foodValues[1]);
-            float fat = Float.parseFloat(foodValues[2]);
+    /**
+     * Fills the machine from a product file in the binary format from the given record on, for a run that continues
+     * after the records before it were placed.
+     *
+     * @param log The {@link TransactionLog} that the transaction messages are written to.
+     * @param products The opened {@link ProductColumns}.
+     * @param machine The {@link Machine} that is going to be filled.
+     * @param from Index of the first record that is placed.
+     * @return An integer indicating the status of the operation (0 for success, -1 if the machine is full).
+     */
+    public static int fill(TransactionLog log, ProductColumns products, Machine machine, int from) {
+        long start = System.nanoTime();
+        ProductCatalog catalog = machine.getCatalog();
+        Product[] byName = new Product[products.nameCount()]; //The product of each name in the dictionary, once it is seen.
+        int status = 0;
+        for (int i = from; i < products.size() && status == 0; i++) {
+            int name = products.nameId(i);
+            if (byName[name] == null) {
+                byName[name] = catalog.getOrCreate(products.getName(i), products.getPrice(i), products.getProtein(i),
+                        products.getCarbonhydrate(i), products.getFat(i));
+            }
+            status = place(log, machine, byName[name]);
+            lineLogged(log, machine, Machine.PRODUCT_FILE);
+        }
+        if (machine.getMetrics() != null) {
+            machine.getMetrics().recordFill(System.nanoTime() - start);
+        }
+        return status;
+    }
 
-            Product product = productTest(name, price, protein, carbohydrate, fat, productList); //Testing to see if the product has been formed before
+    /**
+     * Does the work of {@link #fill}, which measures how long it takes.
+     */
+    private static int fillSlots(TransactionLog log, Iterable<? extends CharSequence> productContent, Machine machine) {
+        for (CharSequence line : productContent) {
+            if (fillLine(log, machine, line) == -1) {
+                return -1;
+            }
+            lineLogged(log, machine, Machine.PRODUCT_FILE);
+        }
+        return 0;
+    }
 
+    /**
+     * Places the product of one line of the product file, so a machine can also be filled a line at a time, for
+     * example by {@link Simulator}.
+     *
+     * @param log The {@link TransactionLog} that the transaction messages are written to.
+     * @param machine The {@link Machine} that is going to be filled.
+     * @param line A line of the product file.
+     * @return 0 if the filling can go on, -1 if the machine is full.
+     */
+    static int fillLine(TransactionLog log, Machine machine, CharSequence line) {
+        String[] parts = line.toString().split("\t"); //Float.parseFloat needs a string, so the line is copied once here.
+        String name = parts[0];
+        int price = Integer.parseInt(parts[1]);
+        String[] foodValues = parts[2].split(" ");
+        float protein = Float.parseFloat(foodValues[0]);
+        float carbohydrate = Float.parseFloat(foodValues[1]);
+        float fat = Float.parseFloat(foodValues[2]);
 
-            boolean placed = false;
-            loop:
-            for (int i = 0; i < machine.length && !placed; i++) {
-                for (int j = 0; j < machine[i].length && !placed; j++) {
-                    if (machine[i][j].product == null) {
-                        machine[i][j].product = product;
-                        machine[i][j].capacity = 1;
-                        product.updateAmount(1);
-                        placed = true;
-                        break loop;
+        //Uses the same object if the product has been formed before
+        Product product = machine.getCatalog().getOrCreate(name, price, protein, carbohydrate, fat);
+        return place(log, machine, product);
+    }
 
-                    } else if (machine[i][j].product.getName().equals(product.getName()) && machine[i][j].capacity < 10) {
-                        machine[i][j].capacity += 1;
-                        product.updateAmount(1);
-                        if (machine[i][j].capacity == 10) {
-                            filledSlots += 1;
-                        }
-                        placed = true;
-                        break loop;
-                    }
-                }
-            }
-            if (!placed) {
-                FileOutput.writeToFile(args[2], "INFO: There is no available place to put " + product.getName(), true, true);
-            }
-            if (!placed && filledSlots == 24) {
-                FileOutput.writeToFile(args[2], "INFO: The machine is full!", true, true);
+    /**
+     * Places one unit of a product to the machine, or writes why it cannot be placed.
+     *
+     * The line is done after its messages, except the line that finds the machine full, which ends the fill instead:
+     * a run that continues after it would go on with the next line.
+     *
+     * @return 0 if the filling can go on, -1 if the machine is full.
+     */
+    private static int place(TransactionLog log, Machine machine, Product product) {
+        int position = machine.load(product); //The machine keeps the slots that can take this product, so no scan is needed.
+        if (position != -1) {
+            product.updateAmount(1);
+        }
+        else {
+            log.write("INFO: There is no available place to put " + product.getName(), true);
+            if (machine.isFull()) {
+                log.write("INFO: The machine is full!", true);
                 return -1;
             }
-
-
         }
+        machine.lineDone(Machine.PRODUCT_FILE);
         return 0;
     }
 
     /**
-     * Creates or retrieves a product based on the provided parameters. If the product already exists in the productList,
-     * it returns that product; otherwise, it creates a new product, adds it to the productList, and returns it.
+     * Journals that the log holds the output of the lines of a file that are done, every {@link #LOGGED_LINES} lines,
+     * if the machine has a journal. The lines of the file must be written to the log as they are done.
      *
-     * @param name The name of the product.
-     * @param price The price of the product.
-     * @param protein The protein content of the product.
-     * @param carbohydrate The carbohydrate content of the product.
-     * @param fat The fat content of the product.
-     * @param productList An ArrayList of {@link Product} objects that have been added to the machine.
-     * @return The {@link Product} object created or found in the productList.
+     * @param log The {@link TransactionLog} that the messages of the lines were written to.
+     * @param machine The {@link Machine} whose journal is written.
+     * @param file {@link Machine#PRODUCT_FILE} or {@link Machine#PURCHASE_FILE}.
      */
-    public static Product productTest(String name, int price, float protein, float carbohydrate, float fat, ArrayList<Product> productList) {
-        for (Product prod : productList) {
-            if (prod.getName().equals(name)) {
-                return prod;
-            }
+    static void lineLogged(TransactionLog log, Machine machine, int file) {
+        long lines = machine.getLinesDone(file);
+        if (machine.getJournal() != null && lines > 0 && lines % LOGGED_LINES == 0) {
+            logged(log, machine, file, lines);
         }
-        Product newProduct = new Product(name, price, protein, carbohydrate, fat, 1);
-        productList.add(newProduct);
-        return newProduct;
     }
 
     /**
-     * Writes the current state of the machine to a file. This includes the products in each slot and their quantities.
+     * Journals that the log holds the output of the given lines of a file, if the machine has a journal, so a run
+     * that continues after a crash appends to the log after them (see {@link MachineJournal#logged}). The log is
+     * flushed first; nothing is journaled if its size cannot be known, for example when it is compressed.
      *
-     * @param args Command line arguments where args[2] is expected to be the path to the output file.
-     * @param machine A 2D array of {@link Slot} objects representing the vending machine slots.
+     * @param log The {@link TransactionLog} that the messages of the lines were written to.
+     * @param machine The {@link Machine} whose journal is written.
+     * @param file {@link Machine#PRODUCT_FILE} or {@link Machine#PURCHASE_FILE}.
+     * @param lines The number of the first lines of the file whose messages are in the log, or {@link Machine#FILLED}.
      */
-    public static void writeMachine(String[] args, Slot[][] machine) {
-        FileOutput.writeToFile(args[2], "-----Gym Meal Machine-----", true, true);
-
-        for (int i = 0; i < machine.length; i++) {
-            for (int j = 0; j < machine[0].length; j++) {
-                if (machine[i][0].product == null) {
-                    FileOutput.writeToFile(args[2], "___(0, 0)______(0, 0)______(0, 0)______(0, 0)___\n", true, false);
-                    break;
-                }else if ((machine[i][j].product == null || machine[i][j].capacity == 0) && j != 3) {
-                    FileOutput.writeToFile(args[2], "___(0, 0)___", true, false);
-                } else if ((machine[i][j].product == null || machine[i][j].capacity == 0) && j == 3) {
-                    FileOutput.writeToFile(args[2], "___(0, 0)___\n", true, false);
-                } else if (machine[i][j].product != null && j != 3 ) {
-                    FileOutput.writeToFile(args[2], machine[i][j].product.getName() + "(" + machine[i][j].product.getNewCalorie() + ", " + machine[i][j].capacity + ")___", true, false);
-                } else if (machine[i][j].product != null && j == 3) {
-                    FileOutput.writeToFile(args[2], machine[i][j].product.getName() + "(" + machine[i][j].product.getNewCalorie() + ", " + machine[i][j].capacity + ")___\n", true, false);
-                }
-            }
+    static void logged(TransactionLog log, Machine machine, int file, long lines) {
+        MachineJournal journal = machine.getJournal();
+        if (journal == null) {
+            return;
         }
-        FileOutput.writeToFile(args[2], "----------", true, true);
-
+        long offset = log.position();
+        if (offset != -1) {
+            journal.logged(file, lines, offset);
+        }
+    }
 
+    /**
+     * Writes the current state of the machine to a file. This includes the products in each slot and their quantities.
+     *
+     * @param log The {@link TransactionLog} that the machine state is written to.
+     * @param machine The {@link Machine} whose state is written.
+     */
+    public static void writeMachine(TransactionLog log, Machine machine) {
+        long start = System.nanoTime();
+        //Only the rows that have changed since the last snapshot are rendered again, and the text is written at once.
+        log.write(machine.getRenderer().render(), false);
+        if (machine.getMetrics() != null) {
+            machine.getMetrics().recordWriteMachine(System.nanoTime() - start);
+        }
     }
 
     /**
      * Handles the purchase process for the vending machine. It processes user input to perform transactions based on the product
-     * choice (by protein, carb, fat, calorie, or slot number) and handles money transactions including validation of inserted money
-     * and returning change.
+     * choice (by protein, carb, fat, calorie, slot number or a query on several values) and handles money transactions including
+     * validation of inserted money and returning change.
      *
-     * @param args Command line arguments where args[2] is expected to be the path to the log file.
-     * @param machine A 2D array of {@link Slot} objects representing the vending machine slots.
-     * @param purchaseContent An array of strings, each representing a purchase attempt and its details.
+     * @param log The {@link TransactionLog} that the transaction messages are written to.
+     * @param machine The {@link Machine} that the products are bought from.
+     * @param purchaseContent The lines of the purchase file, each representing a purchase attempt and its details. They are consumed one by one.
      * @return An integer indicating the status of the operation (0 for success, -1 for any error during purchase).
      */
-    public static int purchase(String[] args, Slot[][] machine, String[] purchaseContent) {
+    public static int purchase(TransactionLog log, Machine machine, Iterable<? extends CharSequence> purchaseContent) {
         boolean errorMessage = true;
-        List<Integer> validValues = Arrays.asList(1, 5, 10, 20, 50, 100, 200);
+        Purchase purchase = new Purchase(); //The same object is filled again for every line, so no garbage is made per purchase.
+        Metrics metrics = machine.getMetrics(); //Null if the metrics are off.
+        int[] change = new int[CoinInventory.DENOMINATIONS.length]; //The coins of the change, if the machine keeps its coins.
+
+        for (CharSequence line : purchaseContent) {
+            if (purchaseLine(log, machine, line, purchase, metrics, change)) {
+                errorMessage = false;
+            }
+            lineLogged(log, machine, Machine.PURCHASE_FILE);
+        }
+        if (errorMessage = false){
+            return -1;
+        }
+        else{
+            return 0;
+        }
+    }
+
+    /**
+     * Handles one line of the purchase file: parses it, buys the product, writes the messages and records the metrics.
+     *
+     * @param log The {@link TransactionLog} that the transaction messages are written to.
+     * @param machine The {@link Machine} that the products are bought from.
+     * @param line A line of the purchase file.
+     * @param purchase The {@link Purchase} that is filled again for the line.
+     * @param metrics The {@link Metrics} of the machine, or null if they are off.
+     * @param change Filled with the coins of the change if the machine keeps its coins.
+     * @return True if an error message was written.
+     */
+    static boolean purchaseLine(TransactionLog log, Machine machine, CharSequence line, Purchase purchase, Metrics metrics, int[] change) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        PurchaseParser.parse(line, purchase);
+        int result = buy(machine, purchase, change);
+        boolean errorMessage = writePurchase(log, machine, line, purchase, result, change);
+        if (metrics != null) {
+            recordPurchase(metrics, purchase, result, System.nanoTime() - start);
+        }
+        recordSale(machine, purchase, result);
+        return errorMessage;
+    }
 
-        for (String line : purchaseContent) {
-            String[] parts = line.split("\t");
-            String type = parts[0];
-            String[] money = parts[1].split(" ");
-            List<Integer> validValue = new ArrayList<>();
-            List<Integer> invalidValue = new ArrayList<>();
+    /**
+     * Handles the purchases of a purchase file in the binary format, like
+     * {@link #purchase(TransactionLog, Machine, Iterable)} does for the text. The purchases are filled from the columns
+     * instead of being parsed, and the log is the same.
+     *
+     * @param log The {@link TransactionLog} that the transaction messages are written to.
+     * @param machine The {@link Machine} that the products are bought from.
+     * @param purchases The opened {@link PurchaseColumns}.
+     * @return An integer indicating the status of the operation (0 for success, -1 for any error during purchase).
+     */
+    public static int purchase(TransactionLog log, Machine machine, PurchaseColumns purchases) {
+        return purchase(log, machine, purchases, 0);
+    }
 
-            int validTotalMoney = 0;
-            for (String part : money) {
-                int part2 = Integer.parseInt(part);
-                if (validValues.contains(part2)) { //If the given money value is applied, it adds it to the list and
-                    // calculates the total of valid moneys.
-                    validValue.add(part2);
-                    validTotalMoney += part2;
-                }
-                else if(!validValues.contains(part2)){ //It also collects invalid moneys in a list.
-                    invalidValue.add(part2);
-                }
+    /**
+     * Handles the purchases of a purchase file in the binary format from the given one on, for a run that continues
+     * after the purchases before it were made.
+     *
+     * @param log The {@link TransactionLog} that the transaction messages are written to.
+     * @param machine The {@link Machine} that the products are bought from.
+     * @param purchases The opened {@link PurchaseColumns}.
+     * @param from Index of the first purchase that is handled.
+     * @return An integer indicating the status of the operation (0 for success, -1 for any error during purchase).
+     */
+    public static int purchase(TransactionLog log, Machine machine, PurchaseColumns purchases, int from) {
+        Purchase purchase = new Purchase();
+        Metrics metrics = machine.getMetrics();
+        int[] change = new int[CoinInventory.DENOMINATIONS.length];
+        for (int i = from; i < purchases.size(); i++) {
+            long start = metrics != null ? System.nanoTime() : 0;
+            purchases.read(i, purchase);
+            CharSequence line = purchases.line(i);
+            int result = buy(machine, purchase, change);
+            writePurchase(log, machine, line, purchase, result, change);
+            if (metrics != null) {
+                recordPurchase(metrics, purchase, result, System.nanoTime() - start);
             }
+            recordSale(machine, purchase, result);
+            lineLogged(log, machine, Machine.PURCHASE_FILE);
+        }
+        return 0;
+    }
 
-            String choice = parts[2];
-            int value = Integer.parseInt(parts[3]);
+    /**
+     * Buys the product that a parsed purchase asks for. This is the only step of a purchase that changes the machine;
+     * {@link PurchasePipeline} runs it on a single thread and the other steps on several.
+     *
+     * @param machine The {@link Machine} that the product is bought from.
+     * @param purchase The parsed {@link Purchase}.
+     * @param change Filled with the coins of the change if the machine keeps its coins.
+     * @return The result of {@link Machine#buyByNutrient}, {@link Machine#buyByNumber} or {@link Machine#buyByQuery},
+     * or {@link #UNKNOWN_CHOICE} if the choice is none of them.
+     */
+    static int buy(Machine machine, Purchase purchase, int[] change) {
+        int result = buyChoice(machine, purchase, change);
+        machine.lineDone(Machine.PURCHASE_FILE); //A journal replays the changes of the line from here on.
+        return result;
+    }
 
-            Purchase purchase = new Purchase(type, validValue, choice, value);  //Creates an object for all purchases and assigns the specified properties
+    private static int buyChoice(Machine machine, Purchase purchase, int[] change) {
+        Nutrient nutrient = Nutrient.fromChoice(purchase.getChoice());
+        if (nutrient != null) { //PROTEIN, CARB, FAT or CALORIE
+            //The machine finds the first slot in its order within 5 of the value, instead of scanning every slot.
+            return machine.buyByNutrient(nutrient, purchase.getValue(), purchase, change);
+        }
+        else if (purchase.getChoice().equals("NUMBER")) {
+            return machine.buyByNumber(purchase.getValue(), purchase, change);
+        }
+        else if (purchase.getChoice().equals("QUERY")) {
+            //The conditions were parsed with the line; the machine searches its k-d tree for them.
+            return machine.buyByQuery(purchase.getQuery(), purchase, change);
+        }
+        return UNKNOWN_CHOICE;
+    }
 
-            FileOutput.writeToFile(args[2], "INPUT: " + line, true, true);
+    /**
+     * Writes the messages of a purchase after it was bought: the input line, the rejected coins and the result.
+     *
+     * @param log The {@link TransactionLog} that the messages are written to.
+     * @param machine The {@link Machine} that the product was bought from.
+     * @param line The line of the purchase file.
+     * @param purchase The parsed {@link Purchase}.
+     * @param result The result of {@link #buy}.
+     * @param change The coins of the change that {@link #buy} filled.
+     * @return True if an error message was written.
+     */
+    static boolean writePurchase(TransactionLog log, Machine machine, CharSequence line, Purchase purchase, int result, int[] change) {
+        boolean errorMessage = false;
+        int validTotalMoney = purchase.getValidTotal();
 
+        log.write("INPUT: ", false);
+        log.write(line, true);
 
-            if (purchase.getChoice().equals("PROTEIN")) {
-                boolean output = false;
-                loop:
-                for (int i = 0; i < machine.length; i++) {
-                    for (int j = 0; j < machine[i].length; j++) {
-                        float upperBound = purchase.getValue() + 5;
-                        float lowerBound = purchase.getValue() - 5;
-                        if(invalidValue.size() != 0){
-                            for (int k : invalidValue){
-                                FileOutput.writeToFile(args[2], "INFO: The machine does not accept " + k + " TL." , true, true);
-                                errorMessage = false;
-                            }
-                            invalidValue.clear(); //Invalid money errors if there are any, it will empty the list after printing so that it does not print again every loop
-                        }
-                        if (machine[i][j].product != null &&  machine[i][j].product.getProtein()<= upperBound && lowerBound <= machine[i][j].product.getProtein() && validTotalMoney >= machine[i][j].product.getPrice() && machine[i][j].capacity > 0) {
-                            FileOutput.writeToFile(args[2], "PURCHASE: You have bought one " + machine[i][j].product.getName(), true, true);
-                            int lastMoney = validTotalMoney - machine[i][j].product.getPrice();
-                            FileOutput.writeToFile(args[2], "RETURN: Returning your change: " + lastMoney + " TL", true, true);
-                            machine[i][j].capacity -= 1;
-                            output = true;
-                            break loop;
-                        }
-                        else if (machine[i][j].product != null && machine[i][j].product.getProtein()<= upperBound && lowerBound <= machine[i][j].product.getProtein() && machine[i][j].product.getPrice() > validTotalMoney) {
-                            FileOutput.writeToFile(args[2], "INFO: Insufficient money, try again with more money.", true, true);
-                            FileOutput.writeToFile(args[2], "RETURN: Returning your change: " + validTotalMoney + " TL", true, true);
-                            errorMessage = false;
-                            output = true;
-                            break loop;
-                        }
-                    }
-                }
-                if (output == false) {
-                    FileOutput.writeToFile(args[2], "INFO: Product not found, your money will be returned.", true, true);
-                    FileOutput.writeToFile(args[2], "RETURN: Returning your change: " + validTotalMoney + " TL", true, true);
-                    errorMessage = false;
-                }
-            }
-            else if (purchase.getChoice().equals("CARB")) {
-                boolean output = false;
-                loop:
-                for (int i = 0; i < machine.length; i++) {
-                    for (int j = 0; j < machine[i].length; j++) {
-                        float upperBound = purchase.getValue() + 5;
-                        float lowerBound = purchase.getValue() - 5;
-                        if(invalidValue.size() != 0){
-                            for (int k : invalidValue){
-                                FileOutput.writeToFile(args[2], "INFO: The machine does not accept " + k + " TL." , true, true);
-                                errorMessage = false;
-                            }
-                            invalidValue.clear(); // Invalid money errors if there are any, it will empty the list after printing so that it does not print again every loop
-                        }
-                        if (machine[i][j].product != null && machine[i][j].product.getCarbonhydrate()<= upperBound && lowerBound <= machine[i][j].product.getCarbonhydrate() && validTotalMoney >= machine[i][j].product.getPrice() && machine[i][j].capacity > 0) {
-                            FileOutput.writeToFile(args[2], "PURCHASE: You have bought one " + machine[i][j].product.getName(), true, true);
-                            int lastMoney = validTotalMoney - machine[i][j].product.getPrice();
-                            FileOutput.writeToFile(args[2], "RETURN: Returning your change: " + lastMoney + " TL", true, true);
-                            machine[i][j].capacity -= 1;
-                            output = true;
-                            break loop;
-                        } else if (machine[i][j].product != null && machine[i][j].product.getCarbonhydrate()<= upperBound && lowerBound <= machine[i][j].product.getCarbonhydrate() && machine[i][j].product.getPrice() > validTotalMoney) {
-                            FileOutput.writeToFile(args[2], "INFO: Insufficient money, try again with more money.", true, true);
-                            FileOutput.writeToFile(args[2], "RETURN: Returning your change: " + validTotalMoney + " TL", true, true);
-                            errorMessage = false;
-                            output = true;
-                            break loop;
-                        }
-                    }
-                }
-                if (output == false) {
-                    FileOutput.writeToFile(args[2], "INFO: Product not found, your money will be returned.", true, true);
-                    FileOutput.writeToFile(args[2], "RETURN: Returning your change: " + validTotalMoney + " TL", true, true);
-                    errorMessage = false;
-                }
-            }
-            else if (purchase.getChoice().equals("FAT")) {
-                boolean output = false;
-                loop:
-                for (int i = 0; i < machine.length; i++) {
-                    for (int j = 0; j < machine[i].length; j++) {
-                        float upperBound = purchase.getValue() + 5;
-                        float lowerBound = purchase.getValue() - 5;
-                        if(invalidValue.size() != 0){
-                            for (int k : invalidValue){
-                                FileOutput.writeToFile(args[2], "INFO: The machine does not accept " + k + " TL." , true, true);
-                                errorMessage = false;
-                            }
-                            invalidValue.clear();
-                        }
-                        if (machine[i][j].product != null && machine[i][j].product.getFat() <= upperBound && lowerBound <= machine[i][j].product.getFat() && validTotalMoney >= machine[i][j].product.getPrice() && machine[i][j].capacity > 0) {
-                            FileOutput.writeToFile(args[2], "PURCHASE: You have bought one " + machine[i][j].product.getName(), true, true);
-                            int lastMoney = validTotalMoney - machine[i][j].product.getPrice();
-                            FileOutput.writeToFile(args[2], "RETURN: Returning your change: " + lastMoney + " TL", true, true);
-                            machine[i][j].capacity -= 1;
-                            output = true;
-                            break loop;
-                        } else if (machine[i][j].product != null && machine[i][j].product.getFat() <= upperBound && lowerBound <= machine[i][j].product.getFat() && machine[i][j].product.getPrice() > validTotalMoney) {
-                            FileOutput.writeToFile(args[2], "INFO: Insufficient money, try again with more money.", true, true);
-                            FileOutput.writeToFile(args[2], "RETURN: Returning your change: " + validTotalMoney + " TL", true, true);
-                            errorMessage = false;
-                            output = true;
-                            break loop;
-                        }
-                    }
-                }
-                if (output == false) {
-                    FileOutput.writeToFile(args[2], "INFO: Product not found, your money will be returned.", true, true);
-                    FileOutput.writeToFile(args[2], "RETURN: Returning your change: " + validTotalMoney + " TL", true, true);
-                    errorMessage = false;
-                }
-            }
-            else if (purchase.getChoice().equals("CALORIE")) {
-                boolean output = false;
-                loop:
-                for (int i = 0; i < machine.length; i++) {
-                    for (int j = 0; j < machine[i].length; j++) {
-                        float upperBound = purchase.getValue() + 5;
-                        float lowerBound = purchase.getValue() - 5;
-                        if(invalidValue.size() != 0){
-                            for (int k : invalidValue){
-                                FileOutput.writeToFile(args[2], "INFO: The machine does not accept " + k + " TL." , true, true);
+        if (result == UNKNOWN_CHOICE) {
+            return false;
+        }
+        if (writeRejectedCoins(log, purchase) != 0) {
+            errorMessage = true;
+        }
+        if (result >= 0) {
+            Product product = machine.getSlot(result).product;
+            log.write("PURCHASE: You have bought one ", false);
+            log.write(product.getName(), true);
+            writeChange(log, validTotalMoney - product.getPrice(), machine.getCoins() != null ? change : null);
+            return errorMessage;
+        }
+        if (result == Machine.INVALID_NUMBER) {
+            log.write("INFO: Number cannot be accepted. Please try again with another number." , true);
+        } else if (result == Machine.EMPTY_SLOT) {
+            log.write("INFO: This slot is empty, your money will be returned.", true);
+        } else if (result == Machine.INSUFFICIENT_MONEY) {
+            log.write("INFO: Insufficient money, try again with more money.", true);
+        } else if (result == Machine.NO_CHANGE) {
+            log.write("INFO: The machine cannot give change, your money will be returned.", true);
+        } else {
+            log.write("INFO: Product not found, your money will be returned.", true);
+        }
+        writeChange(log, validTotalMoney);
+        return true;
+    }
 
-                                errorMessage = false;
-                            }
-                            invalidValue.clear();
-                        }
-                        if (machine[i][j].product != null && machine[i][j].product.getCalorie()<= upperBound && lowerBound <= machine[i][j].product.getCalorie() && validTotalMoney >= machine[i][j].product.getPrice() && machine[i][j].capacity > 0) {
-                            FileOutput.writeToFile(args[2], "PURCHASE: You have bought one " + machine[i][j].product.getName(), true, true);
-                            int lastMoney = validTotalMoney - machine[i][j].product.getPrice();
-                            FileOutput.writeToFile(args[2], "RETURN: Returning your change: " + lastMoney + " TL", true, true);
-                            machine[i][j].capacity -= 1;
-                            output = true;
-                            break loop;
-                        } else if (machine[i][j].product != null && machine[i][j].product.getCalorie()<= upperBound && lowerBound <= machine[i][j].product.getCalorie() && machine[i][j].product.getPrice() > validTotalMoney) {
-                            FileOutput.writeToFile(args[2], "INFO: Insufficient money, try again with more money.", true, true);
-                            FileOutput.writeToFile(args[2], "RETURN: Returning your change: " + validTotalMoney + " TL", true, true);
-                            errorMessage = false;
-                            output = true;
-                            break loop;
-                        }
-                    }
-                }
-                if (output == false){
-                    FileOutput.writeToFile(args[2], "INFO: Product not found, your money will be returned.", true, true);
-                    FileOutput.writeToFile(args[2], "RETURN: Returning your change: " + validTotalMoney + " TL", true, true);
-                    errorMessage = false;
-                }
+    /**
+     * Records the result of a purchase to the metrics of the machine.
+     *
+     * @param metrics The {@link Metrics} of the machine.
+     * @param purchase The parsed {@link Purchase}.
+     * @param result The result of {@link #buy}.
+     * @param nanos How long the purchase took in nanoseconds.
+     */
+    static void recordPurchase(Metrics metrics, Purchase purchase, int result, long nanos) {
+        if (result == UNKNOWN_CHOICE) {
+            return;
+        }
+        Nutrient nutrient = Nutrient.fromChoice(purchase.getChoice());
+        boolean number = purchase.getChoice().equals("NUMBER");
+        int choice = nutrient != null ? nutrient.ordinal() : number ? Metrics.NUMBER : Metrics.QUERY;
+        int position = result;
+        if (number && result != Machine.INVALID_NUMBER) { //The slot a NUMBER purchase asked for.
+            position = purchase.getValue();
+        } else if (!number && result < 0) { //The slot the search found, such as one that costs more than the money.
+            position = purchase.getSlot();
+        }
+        int rejectedCoins = 0;
+        for (int k = 0; k < purchase.getCoinCount(); k++) {
+            if (!PurchaseParser.isAccepted(purchase.getCoin(k))) {
+                rejectedCoins += 1;
             }
-            else if (purchase.getChoice().equals("NUMBER")) {
-                if(invalidValue.size() != 0){
-                    for (int k : invalidValue){
-                        FileOutput.writeToFile(args[2], "INFO: The machine does not accept " + k + " TL." , true, true);
-                        errorMessage = false;
-                    }
-                    invalidValue.clear();
-                }
-                if (purchase.getValue() > 23 | purchase.getValue() < 0){
-                    FileOutput.writeToFile(args[2],"INFO: Number cannot be accepted. Please try again with another number." , true, true);
-                    FileOutput.writeToFile(args[2], "RETURN: Returning your change: " + validTotalMoney + " TL", true, true);
-                    errorMessage = false;
-                }
-                else{
-                    int row = purchase.getValue() / 4;
-                    int col = purchase.getValue() % 4 ;
-                    if (machine[row][col].product != null && machine[row][col].product.getPrice() <= validTotalMoney && machine[row][col].capacity > 0){
-                        FileOutput.writeToFile(args[2], "PURCHASE: You have bought one " + machine[row][col].product.getName(), true, true);
-                        int lastMoney = validTotalMoney - machine[row][col].product.getPrice();
-                        FileOutput.writeToFile(args[2], "RETURN: Returning your change: " + lastMoney + " TL", true, true);
-                        machine[row][col].capacity -= 1;
-                    } else if (machine[row][col].product == null | machine[row][col].capacity == 0 ) {
-                        FileOutput.writeToFile(args[2], "INFO: This slot is empty, your money will be returned.", true, true);
-                        FileOutput.writeToFile(args[2], "RETURN: Returning your change: " + validTotalMoney + " TL", true, true);
-                        errorMessage = false;
-                    } else if (machine[row][col].product.getPrice() > validTotalMoney) {
-                        FileOutput.writeToFile(args[2], "INFO: Insufficient money, try again with more money.", true, true);
-                        FileOutput.writeToFile(args[2], "RETURN: Returning your change: " + validTotalMoney + " TL", true, true);
-                        errorMessage = false;
-                    }
-                }
+        }
+        metrics.recordRejectedCoins(choice, rejectedCoins);
+        metrics.recordPurchase(choice, result, position, nanos);
+    }
+
+    /**
+     * Records the result of a purchase to the sales analytics of the machine, if it has them. It is called right after
+     * {@link #buy}, while the slot still holds the product that was sold.
+     *
+     * @param machine The {@link Machine} that the product was bought from.
+     * @param purchase The parsed {@link Purchase}.
+     * @param result The result of {@link #buy}.
+     */
+    static void recordSale(Machine machine, Purchase purchase, int result) {
+        SalesAnalytics analytics = machine.getAnalytics();
+        if (analytics != null) {
+            analytics.record(purchase, result, result >= 0 ? machine.getSlot(result).product : null);
+        }
+    }
+
+    /**
+     * Writes a message for each coin of the purchase that the machine does not accept.
+     *
+     * @param log The {@link TransactionLog} that the messages are written to.
+     * @param purchase The {@link Purchase} whose coins are checked.
+     * @return Number of rejected coins.
+     */
+    private static int writeRejectedCoins(TransactionLog log, Purchase purchase) {
+        int rejected = 0;
+        for (int k = 0; k < purchase.getCoinCount(); k++) {
+            if (!PurchaseParser.isAccepted(purchase.getCoin(k))) {
+                log.write("INFO: The machine does not accept ", false);
+                log.write(purchase.getCoin(k), false);
+                log.write(" TL.", true);
+                rejected += 1;
             }
         }
-        if (errorMessage = false){
-            return -1;
+        return rejected;
+    }
+
+    /**
+     * Writes the line that returns the change to the customer.
+     *
+     * @param log The {@link TransactionLog} that the line is written to.
+     * @param change The money that is returned.
+     */
+    private static void writeChange(TransactionLog log, int change) {
+        writeChange(log, change, null);
+    }
+
+    /**
+     * Writes the line that returns the change to the customer, followed by the coins of the change if they are given,
+     * for example "RETURN: Returning your change: 35 TL (1 x 20 TL, 1 x 10 TL, 1 x 5 TL)".
+     *
+     * @param log The {@link TransactionLog} that the line is written to.
+     * @param change The money that is returned.
+     * @param coins The number of each coin in the order of {@link CoinInventory#DENOMINATIONS}, or null.
+     */
+    private static void writeChange(TransactionLog log, int change, int[] coins) {
+        log.write("RETURN: Returning your change: ", false);
+        log.write(change, false);
+        if (coins == null || change == 0) {
+            log.write(" TL", true);
+            return;
         }
-        else{
-            return 0;
+        log.write(" TL (", false);
+        boolean first = true;
+        for (int i = coins.length - 1; i >= 0; i--) {
+            if (coins[i] != 0) {
+                log.write(first ? "" : ", ", false);
+                log.write(coins[i], false);
+                log.write(" x ", false);
+                log.write(CoinInventory.DENOMINATIONS[i], false);
+                log.write(" TL", false);
+                first = false;
+            }
         }
+        log.write(")", true);
     }
 }
@@ -0,0 +1,257 @@
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Runs the whole flow of {@link Main} on given files, such as those of {@link WorkloadGenerator}, to size the hardware:
+ * the fill, the first state, the purchases and the last state, with the machine set up by the same system properties
+ * as {@link Main}. Every run uses a new machine and writes the same output file.
+ *
+ * For each run it reports the wall time and the time of each step, the lines read per second, the peak resident
+ * memory of the process (VmHWM of Linux, reset before each run) and of the heap, and the number, total and longest
+ * time of the garbage collections. The lines are appended to a tab-separated report together with the JVM, the
+ * processors, the collector and the gmm settings of the run, so runs on different hardware and with different
+ * settings can be compared in one table.
+ */
+public class Harness {
+    private static final String[] COLUMNS = {"label", "date", "java", "cpus", "maxHeapMB", "gc", "settings", "machine",
+            "productLines", "purchaseLines", "run", "wallS", "fillS", "firstStateS", "purchaseS", "lastStateS", "closeS",
+            "linesPerS", "purchasesPerS", "peakRssMB", "peakHeapMB", "gcCount", "gcTotalMs", "gcMaxMs", "outputMB"};
+
+    private final Object lock = new Object();
+    private long gcCount;
+    private long gcTotal; // Milliseconds.
+    private long gcMax;
+
+    /**
+     * Listens to the end of every garbage collection of the collectors that stop the application. ZGC and Shenandoah
+     * also report their concurrent cycles by collectors named "Cycles", which are not pauses and are left out.
+     */
+    private Harness() {
+        for (GarbageCollectorMXBean collector : pauseCollectors()) {
+            if (collector instanceof NotificationEmitter) {
+                ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                    if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                        long duration = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData())
+                                .getGcInfo().getDuration();
+                        synchronized (lock) {
+                            gcCount++;
+                            gcTotal += duration;
+                            gcMax = Math.max(gcMax, duration);
+                        }
+                    }
+                }, null, null);
+            }
+        }
+    }
+
+    private static List<GarbageCollectorMXBean> pauseCollectors() {
+        List<GarbageCollectorMXBean> collectors = new ArrayList<>();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!collector.getName().contains("Cycles")) {
+                collectors.add(collector);
+            }
+        }
+        return collectors;
+    }
+
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : pauseCollectors()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * Runs the flow once and measures it.
+     *
+     * @return The values of the columns of the run from "run" on.
+     */
+    private Object[] run(int run, String productPath, String purchasePath, String outputPath, int[] size,
+                         long productLines, long purchaseLines) {
+        System.gc(); //The garbage of the previous run is not collected during this one.
+        resetPeaks();
+        long collectionsBefore = collections();
+        synchronized (lock) {
+            gcCount = 0;
+            gcTotal = 0;
+            gcMax = 0;
+        }
+        Machine machine = size != null ? new Machine(size[0], size[1], size[2]) : new Machine();
+        long[] phaseEnds = new long[4];
+        long start = System.nanoTime();
+        Main.run(productPath, purchasePath, outputPath, machine, phaseEnds, "");
+        long end = System.nanoTime();
+        long peakRss = peakRss();
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        long collections = collections() - collectionsBefore;
+        for (int wait = 0; wait < 100; wait++) { //The notifications come from another thread a little later.
+            synchronized (lock) {
+                if (gcCount >= collections) {
+                    break;
+                }
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        double wall = (end - start) / 1e9;
+        synchronized (lock) {
+            return new Object[]{run, wall, (phaseEnds[0] - start) / 1e9, (phaseEnds[1] - phaseEnds[0]) / 1e9,
+                    (phaseEnds[2] - phaseEnds[1]) / 1e9, (phaseEnds[3] - phaseEnds[2]) / 1e9, (end - phaseEnds[3]) / 1e9,
+                    (productLines + purchaseLines) / wall, purchaseLines / ((phaseEnds[2] - phaseEnds[1]) / 1e9),
+                    peakRss < 0 ? -1 : peakRss / 1048576.0, peakHeap / 1048576.0, gcCount, gcTotal, gcMax,
+                    new File(outputPath).length() / 1048576.0};
+        }
+    }
+
+    /**
+     * Resets the peak resident memory of the process (on Linux) and the peak usage of the memory pools.
+     */
+    private static void resetPeaks() {
+        try {
+            Files.write(Paths.get("/proc/self/clear_refs"), "5".getBytes()); //Sets VmHWM back to the current VmRSS.
+        } catch (IOException | RuntimeException e) { //Not Linux, or not allowed; the peak is then that of the process.
+        }
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * @return The peak resident memory of the process in bytes, or -1 if it is not known.
+     */
+    private static long peakRss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The number of lines of a product or purchase file, text or binary.
+     */
+    private static long countLines(String path, boolean products) {
+        if (products ? ProductColumns.isColumnar(path) : PurchaseColumns.isColumnar(path)) {
+            ProductColumns productColumns = products ? ProductColumns.open(path) : null;
+            PurchaseColumns purchaseColumns = products ? null : PurchaseColumns.open(path);
+            return productColumns != null ? productColumns.size() : purchaseColumns != null ? purchaseColumns.size() : 0;
+        }
+        long lines = 0;
+        try (MappedFileInput input = new MappedFileInput(path, false, false)) {
+            for (CharSequence ignored : input) {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @return The gmm system properties other than those of the harness and the generator, as name=value pairs.
+     */
+    private static String settings() {
+        Map<String, String> settings = new TreeMap<>();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("gmm.") && !name.startsWith("gmm.harness.") && !name.startsWith("gmm.workload.")) {
+                settings.put(name.substring(4), System.getProperty(name));
+            }
+        }
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            text.append(text.length() == 0 ? "" : ",").append(setting.getKey()).append('=').append(setting.getValue());
+        }
+        return text.length() == 0 ? "-" : text.toString();
+    }
+
+    /**
+     * Runs the flow of {@link Main} a number of times and prints a line for each run. The first run includes the
+     * warm-up of the JVM, so it is usually slower than the others.
+     *
+     * The method expects the same arguments as {@link Main}: the product file, the purchase file, the output file and
+     * optionally the number of rows, columns and products per slot. gmm.harness.runs sets the number of runs (3 by
+     * default), gmm.harness.report a file the lines are appended to (with a header if it is new) and
+     * gmm.harness.label a label of the lines, such as the name of the hardware. The lines of the input files are
+     * counted before the runs, which also reads them into the page cache if they fit.
+     *
+     * @param args An array of {@link String} containing command-line arguments.
+     */
+    public static void main(String[] args) {
+        int[] size = args.length >= 6
+                ? new int[]{Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5])} : null;
+        int runs = Integer.getInteger("gmm.harness.runs", 3);
+        String reportPath = System.getProperty("gmm.harness.report");
+        long productLines = countLines(args[0], true);
+        long purchaseLines = countLines(args[1], false);
+        StringBuilder collectors = new StringBuilder();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collectors.append(collectors.length() == 0 ? "" : "+").append(collector.getName().replace(' ', '_'));
+        }
+        Object[] common = {System.getProperty("gmm.harness.label", "-"), Instant.now().toString(),
+                System.getProperty("java.version"), Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().maxMemory() / 1048576, collectors, settings(),
+                size != null ? size[0] + "x" + size[1] + "x" + size[2] : "6x4x10", productLines, purchaseLines};
+        Harness harness = new Harness();
+        boolean header = reportPath != null && !new File(reportPath).isFile();
+        try (PrintWriter report = reportPath != null ? new PrintWriter(new FileWriter(reportPath, true)) : null) {
+            System.out.println(String.join("\t", COLUMNS));
+            if (header) {
+                report.println(String.join("\t", COLUMNS));
+            }
+            for (int run = 1; run <= runs; run++) {
+                String line = format(common) + "\t" + format(harness.run(run, args[0], args[1], args[2], size,
+                        productLines, purchaseLines));
+                System.out.println(line);
+                if (report != null) {
+                    report.println(line);
+                    report.flush();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return The values separated by tabs, the decimals with three digits after the point.
+     */
+    private static String format(Object[] values) {
+        StringBuilder text = new StringBuilder();
+        for (Object value : values) {
+            text.append(text.length() == 0 ? "" : "\t");
+            text.append(value instanceof Double ? String.format(Locale.ROOT, "%.3f", value) : String.valueOf(value));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds that can be recorded from several threads without locking. Like
+ * HdrHistogram, it uses buckets that grow exponentially and are split into 32 linear sub-buckets, so a value is kept
+ * with an error of at most about 3% over the whole range of long values, in a fixed array of 2048 counters.
+ */
+public class LatencyHistogram {
+    private static final int HALF = 32; // Half of the number of sub-buckets of a power of two.
+    private static final int HALF_BITS = 5;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * HALF);
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos The latency in nanoseconds; negative values are recorded as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        total.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return Number of recorded latencies.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return Mean of the recorded latencies in nanoseconds, or 0 if nothing is recorded.
+     */
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : total.doubleValue() / count;
+    }
+
+    /**
+     * @return The largest recorded latency in nanoseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Finds the latency at the given percentile. The value is the highest value of its bucket, so it is never below
+     * the exact percentile.
+     *
+     * @param percentile The percentile between 0 and 100, for example 99.9.
+     * @return The latency in nanoseconds, or 0 if nothing is recorded.
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int bucket(long value) {
+        if (value < 2 * HALF) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - HALF_BITS;
+        return (shift + 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < 2 * HALF) {
+            return bucket;
+        }
+        int shift = bucket / HALF - 1;
+        long mantissa = bucket % HALF + HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Puts load on a {@link PurchaseServer} from many connections at once and reports the requests per second and the
+ * latency percentiles. Every connection sends a request, waits for its reply and sends the next one, so the number of
+ * connections is the number of requests in flight. The requests are the lines of a purchase file, taken in turn by
+ * all connections.
+ *
+ * All connections are served by one thread with a {@link Selector}, so ten thousand of them do not need ten thousand
+ * threads. The latency of a request is the time from sending it until the empty line that ends its reply. Replies
+ * that hold an ERROR line are counted as errors. The first seconds of the run warm the server up and are not measured.
+ */
+public class LoadGenerator {
+    public static final int DEFAULT_CONNECTIONS = 10_000;
+    private static final int BUFFER_SIZE = 16 * 1024; // Bytes read from a connection at once.
+
+    private final byte[][] requests; // The request lines, each with its line break.
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private long next; // Index of the next request to send.
+    private long completed; // Replies received in the measured time.
+    private long errors; // Replies with an ERROR line in the measured time.
+    private int connected;
+    private int failed; // Connections that could not be made.
+    private int closed; // Connections that the server closed.
+    private long measuredNanos;
+
+    /**
+     * The state of one connection.
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        final ByteBuffer output = ByteBuffer.allocate(PurchaseServer.MAX_LINE + 1);
+        long sentAt; // When the request was sent, in nanoseconds.
+        boolean lineStart = true; // True if the next byte of the reply starts a line.
+        boolean error; // True if the reply has an ERROR line.
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * @param requests The request lines without their line breaks.
+     * @throws IllegalArgumentException If there is no request.
+     */
+    public LoadGenerator(List<? extends CharSequence> requests) {
+        if (requests.isEmpty()) {
+            throw new IllegalArgumentException("There is no request to send.");
+        }
+        this.requests = new byte[requests.size()][];
+        for (int i = 0; i < this.requests.length; i++) {
+            this.requests[i] = (requests.get(i) + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Opens the connections and keeps them busy for the warm-up and the measured time, then closes them.
+     *
+     * @param address       The address of the server.
+     * @param connections   Number of connections.
+     * @param warmupSeconds Seconds before the measurement starts.
+     * @param seconds       Seconds that are measured.
+     * @throws IOException If the connections cannot be opened.
+     */
+    public void run(InetSocketAddress address, int connections, int warmupSeconds, int seconds) throws IOException {
+        ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+        try (Selector selector = Selector.open()) {
+            for (int i = 0; i < connections; i++) {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Connection connection = new Connection(channel);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                if (channel.connect(address)) {
+                    connected++;
+                    send(key, connection);
+                }
+            }
+
+            long measureStart = System.nanoTime() + warmupSeconds * 1_000_000_000L;
+            long end = measureStart + seconds * 1_000_000_000L;
+            long now;
+            while ((now = System.nanoTime()) < end) {
+                selector.select(Math.max(1, (end - now) / 1_000_000));
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isConnectable()) {
+                            if (!connection.channel.finishConnect()) {
+                                continue;
+                            }
+                            connected++;
+                            send(key, connection);
+                        } else if (key.isWritable()) {
+                            write(key, connection);
+                        } else if (key.isReadable()) {
+                            read(key, connection, input, measureStart);
+                        }
+                    } catch (IOException e) {
+                        if (connection.channel.isConnected()) {
+                            closed++;
+                        } else {
+                            failed++;
+                        }
+                        key.cancel();
+                        connection.channel.close();
+                    }
+                }
+            }
+            measuredNanos = System.nanoTime() - measureStart;
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+        }
+    }
+
+    /**
+     * Sends the next request on the connection.
+     */
+    private void send(SelectionKey key, Connection connection) throws IOException {
+        byte[] request = requests[(int) (next++ % requests.length)];
+        connection.output.clear();
+        connection.output.put(request, 0, Math.min(request.length, connection.output.capacity())).flip();
+        connection.lineStart = true;
+        connection.error = false;
+        connection.sentAt = System.nanoTime();
+        write(key, connection);
+    }
+
+    private void write(SelectionKey key, Connection connection) throws IOException {
+        connection.channel.write(connection.output);
+        key.interestOps(connection.output.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Reads the reply and sends the next request when the empty line that ends the reply has come.
+     */
+    private void read(SelectionKey key, Connection connection, ByteBuffer input, long measureStart) throws IOException {
+        input.clear();
+        if (connection.channel.read(input) == -1) {
+            throw new IOException("The server closed the connection.");
+        }
+        byte[] bytes = input.array();
+        for (int i = 0; i < input.position(); i++) {
+            byte b = bytes[i];
+            if (b == '\n' && connection.lineStart) { //An empty line, the reply has ended.
+                long now = System.nanoTime();
+                if (connection.sentAt >= measureStart) {
+                    latencies.record(now - connection.sentAt);
+                    completed++;
+                    errors += connection.error ? 1 : 0;
+                }
+                send(key, connection);
+                return;
+            }
+            if (connection.lineStart && b == 'E') { //Only the ERROR line starts with E.
+                connection.error = true;
+            }
+            connection.lineStart = b == '\n';
+        }
+    }
+
+    /**
+     * Prints the results of the run.
+     *
+     * @param out The stream the results are printed to.
+     */
+    public void report(PrintStream out) {
+        double seconds = measuredNanos / 1e9;
+        out.printf("%-14s %d (failed %d, closed by the server %d)%n", "Connections", connected, failed, closed);
+        out.printf("%-14s %d in %.1f s%n", "Requests", completed, seconds);
+        out.printf("%-14s %.0f%n", "Requests/s", completed / seconds);
+        out.printf("%-14s p50 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n", "Latency ms", latencies.getPercentile(50) / 1e6,
+                latencies.getPercentile(99) / 1e6, latencies.getPercentile(99.9) / 1e6, latencies.getMax() / 1e6);
+        out.printf("%-14s %d%n", "Errors", errors);
+    }
+
+    /**
+     * Runs the load generator against a {@link PurchaseServer}.
+     *
+     * The method expects the host and the port of the server. The number of connections (10000 if not given), the
+     * measured seconds (10 if not given) and a purchase file with the requests may follow; without a purchase file the
+     * requests are written by {@link SyntheticData}. gmm.load.warmup sets the seconds of warm-up (2 if not set).
+     *
+     * @param args An array of {@link String} containing command-line arguments.
+     * @throws IOException If the requests cannot be read or the connections cannot be opened.
+     */
+    public static void main(String[] args) throws IOException {
+        int connections = args.length >= 3 ? Integer.parseInt(args[2]) : DEFAULT_CONNECTIONS;
+        int seconds = args.length >= 4 ? Integer.parseInt(args[3]) : 10;
+        List<String> requests = new ArrayList<>();
+        Path file = args.length >= 5 ? Path.of(args[4]) : Files.createTempFile("gmm-requests", ".txt");
+        try {
+            if (args.length < 5) {
+                SyntheticData.writePurchases(file.toString(), 100_000, null, 24, 1);
+            }
+            try (MappedFileInput input = new MappedFileInput(file.toString(), true, false)) {
+                for (CharSequence line : input) {
+                    requests.add(line.toString());
+                }
+            }
+        } finally {
+            if (args.length < 5) {
+                Files.delete(file);
+            }
+        }
+        LoadGenerator generator = new LoadGenerator(requests);
+        generator.run(new InetSocketAddress(args[0], Integer.parseInt(args[1])), connections,
+                Integer.getInteger("gmm.load.warmup", 2), seconds);
+        generator.report(System.out);
+    }
+}
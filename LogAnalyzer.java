@@ -0,0 +1,382 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Computes the {@link SalesAnalytics} of an existing output log, such as the one {@link GMMOutput#purchase} writes,
+ * without running the machine again. A record of the log is an INPUT line and the lines that follow it up to its
+ * RETURN line: the outcome comes from the PURCHASE or INFO line, the product from the PURCHASE line, and the price is
+ * the accepted money of the INPUT line minus the change. Other lines, such as the state of the machine and the
+ * messages of the filling, are skipped. The log does not tell the slot of a nutrient purchase, so the slots only count
+ * the NUMBER purchases.
+ *
+ * The file is memory mapped, so it is not copied into the heap. The calling thread only looks for the INPUT lines and
+ * cuts the file into batches of whole records, numbering the records for the windows; worker threads parse the
+ * batches into analytics of their own, which are merged at the end. The batches come from a fixed pool, so the memory
+ * does not grow with the size of the log.
+ */
+public class LogAnalyzer {
+    private static final long MAP_SIZE = Integer.MAX_VALUE; // Bytes of the file mapped at once.
+    private static final int BATCH_BYTES = 1 << 20; // A batch ends at the first record after this many bytes.
+    private static final byte[] INPUT = ascii("INPUT: ");
+    private static final byte[] PURCHASE = ascii("PURCHASE: You have bought one ");
+    private static final byte[] RETURN = ascii("RETURN: Returning your change: ");
+    private static final byte[] ERROR = ascii("ERROR: ");
+    // The INFO lines of the outcomes, in the order of OUTCOMES.
+    private static final byte[][] INFOS = {ascii("INFO: Number cannot be accepted"), ascii("INFO: This slot is empty"),
+            ascii("INFO: Insufficient money"), ascii("INFO: The machine cannot give change"), ascii("INFO: Product not found")};
+    private static final Metrics.Outcome[] OUTCOMES = {Metrics.Outcome.INVALID_NUMBER, Metrics.Outcome.EMPTY_SLOT,
+            Metrics.Outcome.INSUFFICIENT_MONEY, Metrics.Outcome.NO_CHANGE, Metrics.Outcome.NOT_FOUND};
+
+    private final String path;
+    private final int slots;
+    private final long windowSize;
+    private final BoundedQueue<Batch> free; // Batches the reader can fill.
+    private final BoundedQueue<Batch> work; // Batches to parse, in any order.
+    private final Signal progress = new Signal(); // Shared by the queues, and signaled when the reading stops.
+    private volatile boolean read; // Set when the reader has put the last batch.
+    private volatile Throwable failure;
+
+    /**
+     * A part of the mapped file that starts at an INPUT line (or at the start of the file) and ends before one.
+     */
+    private static class Batch {
+        ByteBuffer buffer;
+        int start;
+        int end;
+        long firstRecord; // Number of the first record of the batch in the file.
+    }
+
+    private LogAnalyzer(String path, int slots, long windowSize, int batches) {
+        this.path = path;
+        this.slots = slots;
+        this.windowSize = windowSize;
+        this.free = new BoundedQueue<>(batches, progress);
+        this.work = new BoundedQueue<>(batches, progress);
+        for (int i = 0; i < batches; i++) {
+            free.offer(new Batch());
+        }
+    }
+
+    /**
+     * Computes the analytics of a log.
+     *
+     * @param path       Path to the log.
+     * @param slots      Number of slots in the machine.
+     * @param threads    Number of worker threads.
+     * @param windowSize Requests in a window of the analytics.
+     * @return The analytics of the log.
+     * @throws IOException If the log cannot be read.
+     */
+    public static SalesAnalytics analyze(String path, int slots, int threads, long windowSize) throws IOException {
+        threads = Math.max(1, threads);
+        LogAnalyzer analyzer = new LogAnalyzer(path, slots, windowSize, 4 * threads);
+        Worker[] workers = new Worker[threads];
+        Thread[] workerThreads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = analyzer.new Worker();
+            workerThreads[i] = new Thread(workers[i], "log-analyzer-" + i);
+            workerThreads[i].start();
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            analyzer.read(channel);
+        } catch (IOException | RuntimeException e) {
+            analyzer.failure = e;
+        } finally {
+            analyzer.read = true;
+            analyzer.progress.signal();
+            for (Thread thread : workerThreads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        if (analyzer.failure instanceof IOException) {
+            throw (IOException) analyzer.failure;
+        } else if (analyzer.failure instanceof RuntimeException) {
+            throw (RuntimeException) analyzer.failure;
+        } else if (analyzer.failure != null) {
+            throw new IllegalStateException(analyzer.failure);
+        }
+        SalesAnalytics analytics = new SalesAnalytics(slots, windowSize, SalesAnalytics.DEFAULT_WINDOWS);
+        for (Worker worker : workers) {
+            analytics.merge(worker.analytics);
+        }
+        return analytics;
+    }
+
+    /**
+     * Maps the file a window at a time and cuts it into batches. Every window but the last ends before its last
+     * record, which may go on in the next window, and the next window starts with that record.
+     */
+    private void read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long mapStart = 0;
+        long records = 0;
+        while (mapStart < size && failure == null) {
+            int length = (int) Math.min(MAP_SIZE, size - mapStart);
+            boolean lastWindow = mapStart + length == size;
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, length);
+            int batchStart = 0;
+            long batchRecord = records;
+            int lastInput = -1; // Start of the last INPUT line, and the records before it.
+            long recordsBeforeLastInput = records;
+            int position = 0;
+            while (position < length) {
+                int end = position;
+                while (end < length && map.get(end) != '\n') {
+                    end++;
+                }
+                if (end == length && !lastWindow) { //The line goes on in the next window.
+                    break;
+                }
+                if (startsWith(map, position, end, INPUT)) {
+                    if (position - batchStart >= BATCH_BYTES) {
+                        submit(map, batchStart, position, batchRecord);
+                        batchStart = position;
+                        batchRecord = records;
+                    }
+                    lastInput = position;
+                    recordsBeforeLastInput = records;
+                    records++;
+                }
+                position = end + 1;
+            }
+            int cut = Math.min(position, length);
+            if (!lastWindow && lastInput >= batchStart) { //The last record may go on in the next window.
+                cut = lastInput;
+                records = recordsBeforeLastInput;
+            }
+            if (cut > batchStart) {
+                submit(map, batchStart, cut, batchRecord);
+            }
+            if (cut == 0) {
+                throw new IOException("A record does not fit in a mapped window: " + path);
+            }
+            mapStart += cut;
+        }
+    }
+
+    private void submit(ByteBuffer buffer, int start, int end, long firstRecord) {
+        Batch batch = free.take(() -> failure != null);
+        if (batch == null) {
+            return;
+        }
+        batch.buffer = buffer;
+        batch.start = start;
+        batch.end = end;
+        batch.firstRecord = firstRecord;
+        work.put(batch, () -> failure != null);
+    }
+
+    /**
+     * Parses batches into analytics of its own.
+     */
+    private class Worker implements Runnable {
+        final SalesAnalytics analytics = new SalesAnalytics(slots, windowSize, SalesAnalytics.DEFAULT_WINDOWS);
+        final Purchase purchase = new Purchase();
+        final ByteView view = new ByteView();
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Batch batch = work.take(() -> read || failure != null);
+                    if (batch == null && failure == null) { //The reader may have put a batch just before it ended.
+                        batch = work.poll();
+                    }
+                    if (batch == null) {
+                        return;
+                    }
+                    parse(batch.buffer, batch.start, batch.end, batch.firstRecord);
+                    batch.buffer = null;
+                    free.put(batch, () -> failure != null);
+                }
+            } catch (Throwable e) {
+                failure = e;
+                progress.signal();
+            }
+        }
+
+        /**
+         * Parses the records of a batch. A record is recorded when its RETURN line is read.
+         */
+        private void parse(ByteBuffer buffer, int start, int end, long firstRecord) {
+            long sequence = firstRecord - 1;
+            boolean open = false; // True between the INPUT line of a record that is counted and its RETURN line.
+            int choice = 0;
+            Metrics.Outcome outcome = null;
+            CharSequence product = null;
+            int position = start;
+            while (position < end) {
+                int lineEnd = position;
+                while (lineEnd < end && buffer.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                if (startsWith(buffer, position, lineEnd, INPUT)) {
+                    sequence++;
+                    choice = parseInput(buffer, position + INPUT.length, lineEnd);
+                    open = choice >= 0;
+                    outcome = null;
+                } else if (open && startsWith(buffer, position, lineEnd, PURCHASE)) {
+                    outcome = Metrics.Outcome.PURCHASE;
+                    product = text(buffer, position + PURCHASE.length, lineEnd);
+                } else if (open && startsWith(buffer, position, lineEnd, RETURN)) {
+                    if (outcome != null) {
+                        int change = parseNumber(buffer, position + RETURN.length, lineEnd);
+                        int money = purchase.getValidTotal();
+                        boolean sale = outcome == Metrics.Outcome.PURCHASE;
+                        int slot = sale && choice == Metrics.NUMBER ? purchase.getValue() : -1;
+                        analytics.record(sequence, choice, purchase.getValue(), outcome, slot, sale ? product : null,
+                                sale ? money - change : 0, money);
+                    }
+                    open = false;
+                } else if (open && startsWith(buffer, position, lineEnd, ERROR)) { //A request the service could not parse.
+                    open = false;
+                } else if (open) {
+                    for (int i = 0; i < INFOS.length; i++) {
+                        if (startsWith(buffer, position, lineEnd, INFOS[i])) {
+                            outcome = OUTCOMES[i];
+                        }
+                    }
+                }
+                position = lineEnd + 1;
+            }
+        }
+
+        /**
+         * Parses the purchase of an INPUT line.
+         *
+         * @return The index of its choice, like {@link Metrics#recordPurchase}, or -1 if it is not recorded.
+         */
+        private int parseInput(ByteBuffer buffer, int start, int end) {
+            try {
+                PurchaseParser.parse(text(buffer, start, end), purchase);
+            } catch (RuntimeException e) { //The line was not bought, so it has no outcome.
+                return -1;
+            }
+            Nutrient nutrient = Nutrient.fromChoice(purchase.getChoice());
+            if (nutrient != null) {
+                return nutrient.ordinal();
+            }
+            return purchase.getChoice().equals("NUMBER") ? Metrics.NUMBER : purchase.getChoice().equals("QUERY") ? Metrics.QUERY : -1;
+        }
+
+        /**
+         * Gives the text of a part of a line: the view of the bytes if they are ASCII, or the text decoded as UTF-8.
+         */
+        private CharSequence text(ByteBuffer buffer, int start, int end) {
+            if (end > start && buffer.get(end - 1) == '\r') {
+                end--;
+            }
+            for (int i = start; i < end; i++) {
+                if (buffer.get(i) < 0) {
+                    byte[] bytes = new byte[end - start];
+                    buffer.get(start, bytes);
+                    return new String(bytes, StandardCharsets.UTF_8);
+                }
+            }
+            view.set(buffer, start, end - start);
+            return view;
+        }
+    }
+
+    /**
+     * The ASCII bytes of a part of the mapped file as characters, without copying them.
+     */
+    private static class ByteView implements CharSequence {
+        private ByteBuffer buffer;
+        private int offset;
+        private int length;
+
+        void set(ByteBuffer buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) buffer.get(offset + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[length];
+            buffer.get(offset, bytes);
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(start + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the number at the start of a part of a line, such as the change of a RETURN line.
+     */
+    private static int parseNumber(ByteBuffer buffer, int start, int end) {
+        int number = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                break;
+            }
+            number = number * 10 + (b - '0');
+        }
+        return number;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads an output log and prints its sales analytics and how fast the log was read.
+     *
+     * The method expects the path to the log. The number of worker threads (the number of processors if not given) and
+     * the number of rows and columns of the machine (6 and 4 if not given) may follow. gmm.analytics.window sets the
+     * requests in a window.
+     *
+     * @param args An array of {@link String} containing command-line arguments.
+     * @throws IOException If the log cannot be read.
+     */
+    public static void main(String[] args) throws IOException {
+        int threads = args.length >= 2 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int slots = args.length >= 4 ? Integer.parseInt(args[2]) * Integer.parseInt(args[3])
+                : Machine.DEFAULT_ROWS * Machine.DEFAULT_COLUMNS;
+        long start = System.nanoTime();
+        SalesAnalytics analytics = analyze(args[0], slots, threads,
+                Long.getLong("gmm.analytics.window", SalesAnalytics.DEFAULT_WINDOW));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long bytes = new File(args[0]).length();
+        System.out.print(analytics.getText());
+        System.out.printf("Read %.1f MB in %.3f s on %d threads: %.1f MB/s%n", bytes / 1e6, seconds, threads,
+                bytes / 1e6 / seconds);
+    }
+}
@@ -0,0 +1,702 @@
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Represents the gym meal machine as a grid of {@link Slot} objects with a configurable number of rows, columns and
+ * products per slot. Besides the slots, the machine keeps the structures that are used to place and find products
+ * without scanning every slot: the slots of each product that are not full yet, a pointer to the first empty slot
+ * a {@link NutrientIndex} for each {@link Nutrient} and a {@link NutrientTree} for queries by several values. These are kept up to date by {@link #load(Product)} and
+ * {@link #sell(int)}, so the products in the slots should be changed through these methods.
+ *
+ * A slot is addressed either by its row and column or by its grid position, which is row * columns + column.
+ *
+ * Products can be bought from several threads at the same time. The capacity of each slot is changed atomically
+ * by the slot itself, so buyers of different slots never wait for each other. The indexes are only locked for
+ * writing when a slot becomes empty or gets its first product, which happens rarely compared to the sales.
+ */
+public class Machine {
+    /**
+     * How the slots are searched for a nutrient value.
+     */
+    public enum Search {
+        // A sorted index with a segment tree for each nutrient; see NutrientIndex. Compound queries use NutrientTree.
+        INDEX,
+        // A scan over the primitive arrays of SlotArrays, one slot at a time. Compound queries are always scanned so.
+        SCALAR_SCAN,
+        // A scan over the primitive arrays of SlotArrays with the vector API, or one slot at a time without it.
+        VECTOR_SCAN
+    }
+
+    public static final int DEFAULT_ROWS = 6;
+    public static final int DEFAULT_COLUMNS = 4;
+    public static final int DEFAULT_SLOT_CAPACITY = 10;
+
+    // Results of a purchase that did not end with a sale. A sale returns the grid position of the slot instead.
+    public static final int NOT_FOUND = -1;
+    public static final int INSUFFICIENT_MONEY = -2;
+    public static final int EMPTY_SLOT = -3;
+    public static final int INVALID_NUMBER = -4;
+    public static final int NO_CHANGE = -5;
+
+    // The input files whose lines are counted by lineDone.
+    public static final int PRODUCT_FILE = 0;
+    public static final int PURCHASE_FILE = 1;
+    // The lines of the product file done when the machine was filled by an earlier run and the file is not read.
+    public static final long FILLED = -1;
+
+    private final Slot[][] slots;
+    private final int rows;
+    private final int columns;
+    private final int slotCapacity;
+
+    private final Map<String, BitSet> openSlots = new HashMap<>(); // Grid positions of the slots of each product that are not full.
+    private int nextFree; // Grid position of the first slot that has no product.
+    private int fullSlots; // Number of slots that have reached the capacity.
+    private final Map<Nutrient, NutrientIndex> indexes = new EnumMap<>(Nutrient.class);
+    private final NutrientTree tree; // Finds the slots for compound queries.
+    private final ReadWriteLock indexLock = new ReentrantReadWriteLock(); // Guards the indexes, the tree and the arrays.
+    private final SlotArrays arrays; // The slots as primitive arrays, updated together with the indexes.
+    private volatile Search search = Search.INDEX;
+    private final ProductCatalog catalog = new ProductCatalog(); // Products that have been loaded into the machine.
+    private final AtomicLongArray dirtyRows; // A bit for each row whose slots have changed since it was last rendered.
+    private final AtomicLongArray linesDone = new AtomicLongArray(2); // Lines of each input file that are done.
+    private final MachineRenderer renderer;
+    private Metrics metrics; // Null if the metrics are off.
+    private SalesAnalytics analytics; // Null if the sales are not analyzed.
+    private CoinInventory coins; // Null if the machine does not keep its coins and always has change.
+    private MachineJournal journal; // Null if the changes are not journaled.
+    private volatile QueryCache cache; // Null if the results of nutrient searches are not cached.
+
+    /**
+     * Constructs a machine with the default size of 6 rows, 4 columns and 10 products per slot.
+     */
+    public Machine() {
+        this(DEFAULT_ROWS, DEFAULT_COLUMNS, DEFAULT_SLOT_CAPACITY);
+    }
+
+    /**
+     * Constructs an empty machine with the given size.
+     *
+     * @param rows         Number of rows in the machine.
+     * @param columns      Number of columns in the machine.
+     * @param slotCapacity Number of products a slot can hold.
+     */
+    public Machine(int rows, int columns, int slotCapacity) {
+        if (rows <= 0 || columns <= 0 || slotCapacity <= 0) {
+            throw new IllegalArgumentException("The machine must have at least one slot that holds at least one product.");
+        }
+        this.rows = rows;
+        this.columns = columns;
+        this.slotCapacity = slotCapacity;
+        this.slots = new Slot[rows][columns];
+        GMMOutput.createSlots(slots);
+        for (Nutrient nutrient : Nutrient.values()) {
+            indexes.put(nutrient, new NutrientIndex(slots, nutrient));
+        }
+        this.tree = new NutrientTree(slots);
+        this.arrays = new SlotArrays(rows * columns);
+        this.dirtyRows = new AtomicLongArray((rows + 63) / 64);
+        this.renderer = new MachineRenderer(this);
+    }
+
+    public Slot[][] getSlots() {
+        return slots;
+    }
+
+    public MachineRenderer getRenderer() {
+        return renderer;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Turns the metrics of the machine on, or off if null is given.
+     *
+     * @param metrics The {@link Metrics} that the results are recorded to, or null.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public SalesAnalytics getAnalytics() {
+        return analytics;
+    }
+
+    /**
+     * Makes the machine record its sales to the analytics, or stops it if null is given.
+     *
+     * @param analytics The {@link SalesAnalytics} of the machine, or null.
+     */
+    public void setAnalytics(SalesAnalytics analytics) {
+        this.analytics = analytics;
+    }
+
+    public CoinInventory getCoins() {
+        return coins;
+    }
+
+    /**
+     * Makes the machine keep its coins, so that a sale is refused when the change cannot be made. If null is given,
+     * the machine always has change.
+     *
+     * @param coins The {@link CoinInventory} of the machine, or null.
+     */
+    public void setCoins(CoinInventory coins) {
+        this.coins = coins;
+    }
+
+    public Search getSearch() {
+        return search;
+    }
+
+    /**
+     * Chooses how the slots are searched for a nutrient value. All of them find the same slot.
+     *
+     * @param search The {@link Search} that is used.
+     */
+    public void setSearch(Search search) {
+        this.search = search;
+    }
+
+    public MachineJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Makes the machine write its changes to the journal, or stops it if null is given.
+     *
+     * @param journal The {@link MachineJournal} of the machine, or null.
+     */
+    public void setJournal(MachineJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Counts a line of an input file as done after the machine made its changes for it, and journals it. A journal
+     * replays the changes of a line only if the line is done, so a run that is started again after a crash processes
+     * the lines from the first one that is not done, and no line changes the machine twice.
+     *
+     * @param file {@link #PRODUCT_FILE} or {@link #PURCHASE_FILE}.
+     */
+    public void lineDone(int file) {
+        linesDone.incrementAndGet(file);
+        if (journal != null) {
+            journal.lineDone(file);
+        }
+    }
+
+    /**
+     * Marks the fill as finished, also when it stopped before the end of the product file because the machine was
+     * full (the line that found it full is not done by itself), so a run that continues after a crash goes on with
+     * the purchases.
+     */
+    public void fillDone() {
+        linesDone.set(PRODUCT_FILE, FILLED);
+        if (journal != null) {
+            journal.fillDone();
+        }
+    }
+
+    /**
+     * Counts the lines of the input files of a run that has ended: the machine is filled, and the next run reads the
+     * purchase file from its first line.
+     */
+    public void runDone() {
+        linesDone.set(PRODUCT_FILE, FILLED);
+        linesDone.set(PURCHASE_FILE, 0);
+        if (journal != null) {
+            journal.runDone();
+        }
+    }
+
+    /**
+     * @param file {@link #PRODUCT_FILE} or {@link #PURCHASE_FILE}.
+     * @return Number of lines of the file that are done, or {@link #FILLED} for the product file of a machine that was
+     * filled by an earlier run.
+     */
+    public long getLinesDone(int file) {
+        return linesDone.get(file);
+    }
+
+    /**
+     * Sets the number of lines of an input file that are done, when the machine is restored by {@link MachineSnapshot}
+     * or {@link MachineJournal}. Nothing is journaled.
+     *
+     * @param file  {@link #PRODUCT_FILE} or {@link #PURCHASE_FILE}.
+     * @param lines Number of lines that are done, or {@link #FILLED} for the product file.
+     */
+    public void setLinesDone(int file, long lines) {
+        linesDone.set(file, lines);
+    }
+
+    public QueryCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Makes the machine remember the slots that nutrient purchases were resolved to, or stops it if null is given.
+     * The results are the same with and without the cache.
+     *
+     * @param cache The {@link QueryCache} of the machine, made for the number of its slots, or null.
+     */
+    public void setCache(QueryCache cache) {
+        if (cache != null) {
+            cache.clear(); //Entries from another state of the slots are not valid.
+        }
+        this.cache = cache;
+    }
+
+    public ProductCatalog getCatalog() {
+        return catalog;
+    }
+
+    public Slot getSlot(int position) {
+        return slots[position / columns][position % columns];
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getSlotCapacity() {
+        return slotCapacity;
+    }
+
+    /**
+     * @return Total number of slots in the machine.
+     */
+    public int size() {
+        return rows * columns;
+    }
+
+    /**
+     * @return True if every slot of the machine holds as many products as it can.
+     */
+    public boolean isFull() {
+        return fullSlots == size();
+    }
+
+    /**
+     * Places one unit of the product to the first slot in grid order that either holds the same product and is not
+     * full, or has no product at all.
+     *
+     * @param product The {@link Product} that is going to be placed.
+     * @return The grid position of the slot the product is placed in, or -1 if there is no available place.
+     */
+    public synchronized int load(Product product) {
+        while (nextFree < size() && getSlot(nextFree).product != null) {
+            nextFree++;
+        }
+        BitSet open = openSlots.get(product.getName());
+        int position = nextFree;
+        int first = open != null ? open.nextSetBit(0) : -1;
+        if (first != -1 && first < position) {
+            position = first;
+        }
+        if (position == size()) {
+            return -1;
+        }
+
+        if (journal != null) { //The load is journaled before the slot changes.
+            journal.load(position, product);
+        }
+        Slot slot = getSlot(position);
+        if (slot.product == null) {
+            slot.product = product;
+        }
+        int capacity = slot.add();
+        markDirty(position / columns);
+        if (capacity == slotCapacity) {
+            fullSlots += 1;
+            if (open != null) {
+                open.clear(position);
+            }
+        } else {
+            openSlots.computeIfAbsent(product.getName(), name -> new BitSet()).set(position);
+        }
+        if (capacity == 1) { //The slot was empty, so the indexes did not count it as available.
+            updateIndexes(position);
+        }
+        return position;
+    }
+
+    /**
+     * Takes one unit of the product from the slot when it is bought. It is safe to call from several threads.
+     *
+     * @param position Grid position of the slot.
+     * @return True if a product was taken, false if the slot was already empty.
+     */
+    public boolean sell(int position) {
+        Slot slot = getSlot(position);
+        int capacity = slot.take();
+        if (capacity == 0) { //Another buyer took the last product; makes sure the indexes know it.
+            updateIndexes(position);
+            return false;
+        }
+        if (journal != null) {
+            journal.sell(position);
+        }
+        markDirty(position / columns);
+        if (capacity == slotCapacity) { //The slot can be filled again.
+            synchronized (this) {
+                fullSlots -= 1;
+                openSlots.computeIfAbsent(slot.product.getName(), name -> new BitSet()).set(position);
+            }
+        }
+        if (capacity == 1) {
+            updateIndexes(position);
+        }
+        return true;
+    }
+
+    /**
+     * Buys one product by its nutrient value. The product is taken from the first slot in grid order whose value is
+     * within 5 of the wanted value and which has products, unless a slot before it holds a product that costs more
+     * than the money. It is safe to call from several threads.
+     *
+     * @param nutrient The {@link Nutrient} the product is chosen by.
+     * @param value    The wanted value of the nutrient.
+     * @param money    The money the customer has inserted.
+     * @return The grid position of the slot the product is bought from, {@link #NOT_FOUND} or {@link #INSUFFICIENT_MONEY}.
+     */
+    public int buyByNutrient(Nutrient nutrient, int value, int money) {
+        return buyByNutrient(nutrient, value, money, null, null);
+    }
+
+    /**
+     * Buys one product by its nutrient value like {@link #buyByNutrient(Nutrient, int, int)}, paying with the
+     * accepted coins of the purchase. If the machine keeps its coins, the sale is refused when the change cannot be
+     * made.
+     *
+     * @param nutrient The {@link Nutrient} the product is chosen by.
+     * @param value    The wanted value of the nutrient.
+     * @param purchase The {@link Purchase} whose accepted coins are inserted.
+     * @param change   Filled with the coins given as change if the machine keeps its coins; see {@link CoinInventory#pay}.
+     * @return The grid position of the slot the product is bought from, {@link #NOT_FOUND}, {@link #INSUFFICIENT_MONEY}
+     * or {@link #NO_CHANGE}.
+     */
+    public int buyByNutrient(Nutrient nutrient, int value, Purchase purchase, int[] change) {
+        return buyByNutrient(nutrient, value, purchase.getValidTotal(), purchase, change);
+    }
+
+    private int buyByNutrient(Nutrient nutrient, int value, int money, Purchase purchase, int[] change) {
+        float upperBound = value + 5;
+        float lowerBound = value - 5;
+        while (true) {
+            int position = find(nutrient, value, lowerBound, upperBound, money);
+            if (purchase != null) { //The metrics count the outcome against this slot even if nothing is bought.
+                purchase.setSlot(position);
+            }
+            if (position == -1) {
+                return NOT_FOUND;
+            }
+            int price = getSlot(position).product.getPrice();
+            if (price > money) {
+                return INSUFFICIENT_MONEY;
+            }
+            if (!pay(purchase, price, change)) {
+                return NO_CHANGE;
+            }
+            if (sell(position)) {
+                return position;
+            }
+            cancel(purchase, price, change);
+            //Another buyer took the last product of this slot at the same time, so the search is made again.
+        }
+    }
+
+    /**
+     * Buys one product by a query on several values, paying with the accepted coins of the purchase. The product is
+     * taken from the first slot in grid order that has products and whose values are all within the query; if it
+     * costs more than the money, nothing is bought. It is safe to call from several threads.
+     *
+     * @param query    The {@link CompoundQuery} the product is chosen by.
+     * @param purchase The {@link Purchase} whose accepted coins are inserted.
+     * @param change   Filled with the coins given as change if the machine keeps its coins; see {@link CoinInventory#pay}.
+     * @return The grid position of the slot the product is bought from, {@link #NOT_FOUND}, {@link #INSUFFICIENT_MONEY}
+     * or {@link #NO_CHANGE}.
+     */
+    public int buyByQuery(CompoundQuery query, Purchase purchase, int[] change) {
+        int money = purchase.getValidTotal();
+        while (true) {
+            int position = find(query);
+            purchase.setSlot(position);
+            if (position == -1) {
+                return NOT_FOUND;
+            }
+            int price = getSlot(position).product.getPrice();
+            if (price > money) {
+                return INSUFFICIENT_MONEY;
+            }
+            if (!pay(purchase, price, change)) {
+                return NO_CHANGE;
+            }
+            if (sell(position)) {
+                return position;
+            }
+            cancel(purchase, price, change);
+        }
+    }
+
+    /**
+     * Buys one product from the slot with the given number. It is safe to call from several threads.
+     *
+     * @param number The number of the slot, which is its grid position.
+     * @param money  The money the customer has inserted.
+     * @return The grid position of the slot, {@link #INVALID_NUMBER}, {@link #EMPTY_SLOT} or {@link #INSUFFICIENT_MONEY}.
+     */
+    public int buyByNumber(int number, int money) {
+        return buyByNumber(number, money, null, null);
+    }
+
+    /**
+     * Buys one product from the slot with the given number like {@link #buyByNumber(int, int)}, paying with the
+     * accepted coins of the purchase. If the machine keeps its coins, the sale is refused when the change cannot be
+     * made.
+     *
+     * @param number   The number of the slot, which is its grid position.
+     * @param purchase The {@link Purchase} whose accepted coins are inserted.
+     * @param change   Filled with the coins given as change if the machine keeps its coins; see {@link CoinInventory#pay}.
+     * @return The grid position of the slot, {@link #INVALID_NUMBER}, {@link #EMPTY_SLOT}, {@link #INSUFFICIENT_MONEY}
+     * or {@link #NO_CHANGE}.
+     */
+    public int buyByNumber(int number, Purchase purchase, int[] change) {
+        return buyByNumber(number, purchase.getValidTotal(), purchase, change);
+    }
+
+    private int buyByNumber(int number, int money, Purchase purchase, int[] change) {
+        if (number >= size() | number < 0) {
+            return INVALID_NUMBER;
+        }
+        Slot slot = getSlot(number);
+        if (slot.product != null && slot.capacity > 0 && slot.product.getPrice() <= money) {
+            if (!pay(purchase, slot.product.getPrice(), change)) {
+                return NO_CHANGE;
+            }
+            if (sell(number)) {
+                return number;
+            }
+            cancel(purchase, slot.product.getPrice(), change);
+        }
+        if (slot.product == null | slot.capacity == 0) {
+            return EMPTY_SLOT;
+        }
+        return INSUFFICIENT_MONEY;
+    }
+
+    /**
+     * Pays for a sale with the coins of the purchase, if the machine keeps its coins and the purchase is given.
+     *
+     * @return False if the change cannot be made.
+     */
+    private boolean pay(Purchase purchase, int price, int[] change) {
+        if (coins == null || purchase == null) {
+            return true;
+        }
+        if (!coins.pay(purchase, price, change)) {
+            return false;
+        }
+        if (journal != null) {
+            journal.pay(purchase, change, false);
+        }
+        return true;
+    }
+
+    /**
+     * Undoes {@link #pay} for a sale that failed because another buyer took the last product.
+     */
+    private void cancel(Purchase purchase, int price, int[] change) {
+        if (coins != null && purchase != null) {
+            coins.cancel(purchase, price, change);
+            if (journal != null) {
+                journal.pay(purchase, change, true);
+            }
+        }
+    }
+
+    /**
+     * Finds the first slot in grid order whose nutrient value is between the bounds and which either has products or
+     * costs more than the given money. See {@link NutrientIndex#find(float, float, int)}, or {@link SlotArrays#find}
+     * if the machine is set to scan (see {@link #setSearch(Search)}).
+     *
+     * @param nutrient   The {@link Nutrient} that is searched.
+     * @param lowerBound The lowest accepted value, inclusive.
+     * @param upperBound The highest accepted value, inclusive.
+     * @param money      The money the customer has inserted.
+     * @return The grid position of the slot, or -1 if there is no such slot.
+     */
+    public int find(Nutrient nutrient, float lowerBound, float upperBound, int money) {
+        Search search = this.search;
+        if (search != Search.INDEX) {
+            indexLock.readLock().lock();
+            try {
+                return arrays.find(nutrient, lowerBound, upperBound, money, search == Search.VECTOR_SCAN);
+            } finally {
+                indexLock.readLock().unlock();
+            }
+        }
+        NutrientIndex index = indexes.get(nutrient);
+        indexLock.readLock().lock();
+        try {
+            if (!index.isStale()) {
+                return index.find(lowerBound, upperBound, money);
+            }
+        } finally {
+            indexLock.readLock().unlock();
+        }
+        indexLock.writeLock().lock(); //A product was placed to a new slot, so the index is built again first.
+        try {
+            return index.find(lowerBound, upperBound, money);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the slot of a nutrient purchase like {@link #find(Nutrient, float, float, int)}, through the cache if the
+     * machine has one. On a miss the slots are searched and the result is kept.
+     */
+    private int find(Nutrient nutrient, int value, float lowerBound, float upperBound, int money) {
+        QueryCache cache = this.cache;
+        if (cache == null) {
+            return find(nutrient, lowerBound, upperBound, money);
+        }
+        int cached = cache.get(nutrient, value, money);
+        if (cached != QueryCache.MISS) {
+            return cached;
+        }
+        long generation = cache.getGeneration(); //Read before the search, so a result of changing slots is not kept.
+        int position = find(nutrient, lowerBound, upperBound, money);
+        if (position == -1 || getSlot(position).capacity > 0) {
+            cache.put(nutrient, value, money, position, generation);
+        } else { //An empty slot that costs more than the money.
+            cache.putEmpty(nutrient, value, money, position, getSlot(position).product.getPrice(), generation);
+        }
+        return position;
+    }
+
+    /**
+     * Finds the first slot in grid order that has products and whose values are all within the query. See
+     * {@link NutrientTree#find}, or {@link SlotArrays#find(CompoundQuery)} if the machine is set to scan.
+     *
+     * @param query The {@link CompoundQuery} that gives the accepted values.
+     * @return The grid position of the slot, or -1 if there is no such slot.
+     */
+    public int find(CompoundQuery query) {
+        boolean scan = search != Search.INDEX;
+        indexLock.readLock().lock();
+        try {
+            if (scan) {
+                return arrays.find(query);
+            }
+            if (!tree.isStale()) {
+                return tree.find(query);
+            }
+        } finally {
+            indexLock.readLock().unlock();
+        }
+        indexLock.writeLock().lock(); //A product was placed to a new slot, so the tree is built again first.
+        try {
+            return tree.find(query);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Builds the structures that are used to place and find products again from the products and capacities of the
+     * slots, after the slots were changed directly, for example when the machine is restored by {@link MachineSnapshot}.
+     * Every row is marked as dirty, so the next snapshot renders the whole machine.
+     */
+    public synchronized void rebuild() {
+        openSlots.clear();
+        nextFree = size();
+        fullSlots = 0;
+        for (int position = size() - 1; position >= 0; position--) {
+            Slot slot = getSlot(position);
+            if (slot.product == null) {
+                nextFree = position;
+            } else if (slot.capacity == slotCapacity) {
+                fullSlots += 1;
+            } else {
+                openSlots.computeIfAbsent(slot.product.getName(), name -> new BitSet()).set(position);
+            }
+        }
+        indexLock.writeLock().lock();
+        try {
+            for (NutrientIndex index : indexes.values()) {
+                index.invalidate(); //Each index is built again by its first search.
+            }
+            tree.invalidate();
+            for (int position = 0; position < size(); position++) {
+                arrays.update(position, getSlot(position));
+            }
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+        QueryCache cache = this.cache;
+        if (cache != null) {
+            cache.clear();
+        }
+        for (int row = 0; row < rows; row++) {
+            markDirty(row);
+        }
+    }
+
+    /**
+     * Clears the dirty flag of a row, which is set whenever the product or the capacity of a slot in it changes.
+     *
+     * @param row The row whose flag is cleared.
+     * @return True if the row had changed since its flag was last cleared.
+     */
+    public boolean clearDirty(int row) {
+        long bit = 1L << row;
+        while (true) {
+            long word = dirtyRows.get(row / 64);
+            if ((word & bit) == 0) {
+                return false;
+            }
+            if (dirtyRows.compareAndSet(row / 64, word, word & ~bit)) {
+                return true;
+            }
+        }
+    }
+
+    private void markDirty(int row) {
+        long bit = 1L << row;
+        while (true) {
+            long word = dirtyRows.get(row / 64);
+            if ((word & bit) != 0 || dirtyRows.compareAndSet(row / 64, word, word | bit)) {
+                return;
+            }
+        }
+    }
+
+    private void updateIndexes(int position) {
+        indexLock.writeLock().lock();
+        try {
+            for (NutrientIndex index : indexes.values()) {
+                index.update(position / columns, position % columns);
+            }
+            tree.update(position);
+            arrays.update(position, getSlot(position));
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+        QueryCache cache = this.cache;
+        if (cache != null) { //After the indexes, so a search that has not seen the change cannot be kept after it.
+            cache.changed(position, getSlot(position).product);
+        }
+    }
+}
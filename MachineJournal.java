@@ -0,0 +1,502 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only binary journal of the changes to the stock and the coins of a {@link Machine}, so that the state
+ * of the machine survives a crash. The machine writes a record before a product is loaded into a slot, after a
+ * product is sold and after the coins of a sale are paid or refunded; see {@link Machine#setJournal(MachineJournal)}.
+ *
+ * The records are collected in a buffer and written with a single fsync for a whole batch (group commit), either
+ * when the batch is full or when the flush interval has passed, so durability does not cost an fsync per sale. A
+ * crash loses at most the records of the batch that was not written yet.
+ *
+ * The journal holds the changes since the last snapshot. Its header stores the checksum of the snapshot it applies
+ * to (-1 if the machine started empty), and {@link #checkpoint(String)} writes a new snapshot before it empties the
+ * journal. A journal whose snapshot does not match is left over from a crash during a checkpoint; its records are
+ * already in the snapshot, so it is not replayed.
+ *
+ * The changes are grouped by the lines of the input files: after the records of a product or purchase line, a LINE
+ * record marks the line as done (see {@link Machine#lineDone}), a FILLED record marks the end of the fill and of the
+ * first state in the log, and an END record the end of a run. The machine counts the done lines, and the snapshot
+ * stores the counts, so a run that is started again continues from the first line that is not done. A LOGGED record
+ * tells that the log file holds the output of a number of lines of a file up to a given byte (see {@link #logged}),
+ * so the run can also continue its log: the journal is only replayed up to the last LOGGED record whose lines are in
+ * the log file, and the log is cut after them (see {@link #getLogOffset()}). The lines after them are processed
+ * again, also if their changes were journaled, so every line is in the log once.
+ *
+ * Each record is a type byte, its fields and the CRC32 of both. When the journal is opened, the records are read up to
+ * the first one that is cut short or does not match its checksum. Only those up to the last line that is done (and in
+ * the log, if the length of the log is given) are replayed and the file is truncated there: the records of a line
+ * that was cut short by the crash are dropped, since the line is processed again.
+ */
+public class MachineJournal implements AutoCloseable {
+    public static final int DEFAULT_BATCH_SIZE = 256; // Records written with one fsync.
+    public static final long DEFAULT_FLUSH_INTERVAL = 10; // Milliseconds a record may wait for its batch to fill.
+
+    private static final int MAGIC = 0x474D4D4A; // "GMMJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + Long.BYTES;
+    private static final byte PRODUCT = 1; // A product in the catalog: name, price, protein, carbohydrate and fat.
+    private static final byte LOAD = 2; // A product loaded into a slot: position and product ID.
+    private static final byte SELL = 3; // A product sold from a slot: position.
+    private static final byte PAY = 4; // The change of each coin after a sale was paid.
+    private static final byte REFUND = 5; // Undoes a PAY for a sale that failed after it was paid.
+    private static final byte LINE = 6; // A line of an input file is done: the file, see Machine.lineDone.
+    private static final byte END = 7; // The run has ended, see Machine.runDone.
+    private static final byte FILLED = 8; // The fill has ended, see Machine.fillDone.
+    private static final byte LOGGED = 9; // The log holds the output of some lines: the file, the lines and the bytes.
+
+    private final FileChannel channel;
+    private final Machine machine;
+    private final int batchSize;
+    private final ByteBuffer batch = ByteBuffer.allocate(64 * 1024);
+    private final CRC32 crc = new CRC32();
+    private final int[] coinChange = new int[CoinInventory.DENOMINATIONS.length];
+    private int batchRecords; // Records in the batch that have not been written yet.
+    private int productsWritten; // Products of the catalog that have a PRODUCT record.
+    private long replayed; // Records that were replayed when the journal was opened.
+    private long logOffset; // Bytes of the log that hold the lines replayed when the journal was opened.
+    private ScheduledExecutorService flusher;
+
+    private MachineJournal(FileChannel channel, Machine machine, int batchSize) {
+        this.channel = channel;
+        this.machine = machine;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Opens the journal at the given path with the default batch size and flush interval, replaying every line that
+     * is done whatever the log holds.
+     *
+     * @see #open(String, Machine, String, long, int, long)
+     */
+    public static MachineJournal open(String path, Machine machine, String snapshotPath) {
+        return open(path, machine, snapshotPath, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Opens the journal at the given path, replaying every line that is done whatever the log holds.
+     *
+     * @see #open(String, Machine, String, long, int, long)
+     */
+    public static MachineJournal open(String path, Machine machine, String snapshotPath, int batchSize, long flushInterval) {
+        return open(path, machine, snapshotPath, -1, batchSize, flushInterval);
+    }
+
+    /**
+     * Opens the journal at the given path, creating it if there is none. If the journal belongs to the snapshot, its
+     * records are replayed on the machine first; otherwise it is emptied. The machine should be restored from the
+     * snapshot, or be empty if there is no snapshot, and the journal should be opened before the machine is used.
+     *
+     * @param path          Path to the journal file.
+     * @param machine       The {@link Machine} whose changes are journaled.
+     * @param snapshotPath  Path to the snapshot the machine was restored from, or null if there is none.
+     * @param logLength     Bytes in the log file of the run, so only the lines it holds are replayed; -1 to replay
+     *                      every line that is done.
+     * @param batchSize     Number of records written with one fsync.
+     * @param flushInterval Milliseconds after which a batch that is not full is written anyway, 0 to wait for it to fill.
+     * @return The journal, or null if it cannot be opened.
+     */
+    public static MachineJournal open(String path, Machine machine, String snapshotPath, long logLength, int batchSize,
+                                      long flushInterval) {
+        long base = snapshotPath == null ? -1 : MachineSnapshot.checksumOf(snapshotPath);
+        MachineJournal journal = null;
+        try {
+            FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            journal = new MachineJournal(channel, machine, Math.max(1, batchSize));
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() == HEADER_SIZE && header.getInt() == MAGIC && header.getInt() == VERSION
+                    && header.getLong() == base) {
+                channel.truncate(journal.replay(channel, logLength));
+                channel.position(channel.size());
+            } else { //A new journal, or one from before the last snapshot.
+                journal.reset(base);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (journal != null) {
+                journal.closeChannel();
+            }
+            return null;
+        }
+        journal.productsWritten = machine.getCatalog().size();
+        if (journal.logOffset > 0) { //The LOGGED record may have been cut off with the lines after it.
+            long products = machine.getLinesDone(Machine.PRODUCT_FILE);
+            journal.logged(products == Machine.FILLED ? Machine.PURCHASE_FILE : Machine.PRODUCT_FILE,
+                    products == Machine.FILLED ? machine.getLinesDone(Machine.PURCHASE_FILE) : products, journal.logOffset);
+        }
+        if (flushInterval > 0) {
+            journal.flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "journal-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            journal.flusher.scheduleWithFixedDelay(journal::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+        return journal;
+    }
+
+    /**
+     * Replays the valid records after the header on the machine, up to the last line, fill or run that is done, or up
+     * to the last LOGGED record whose lines are in the log if its length is given. Lines are only journaled as logged
+     * after they are done, so the record that makes a count reach the lines of a LOGGED record is found by a second
+     * position that follows the first one.
+     *
+     * @param logLength Bytes in the log file, or -1 if the log does not matter.
+     * @return Size of the journal up to the end of the last record that was replayed.
+     */
+    private long replay(FileChannel channel, long logLength) throws IOException {
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        int done = HEADER_SIZE; // End of the last record that is replayed.
+        long[] counts = {machine.getLinesDone(Machine.PRODUCT_FILE), machine.getLinesDone(Machine.PURCHASE_FILE)};
+        long[] loggedCounts = counts.clone(); // The counts at the second position.
+        int logged = HEADER_SIZE; // The second position, after the last line that a LOGGED record was checked for.
+        for (int start = HEADER_SIZE, end; (end = recordEnd(buffer, start)) != -1; start = end) {
+            byte type = buffer.get(start);
+            count(buffer, start, type, counts);
+            if (type == END) { //The log is complete, the next run writes a new one.
+                done = end;
+                logOffset = 0;
+            } else if ((type == LINE || type == FILLED) && logLength < 0) {
+                done = end;
+            } else if (type == LOGGED && buffer.getLong(start + 1 + Integer.BYTES + Long.BYTES) <= logLength) {
+                int file = buffer.getInt(start + 1);
+                long lines = buffer.getLong(start + 1 + Integer.BYTES);
+                while (logged < start && !reached(loggedCounts, file, lines)) {
+                    count(buffer, logged, buffer.get(logged), loggedCounts);
+                    logged = recordEnd(buffer, logged);
+                }
+                if (reached(loggedCounts, file, lines)) {
+                    done = logged;
+                    logOffset = buffer.getLong(start + 1 + Integer.BYTES + Long.BYTES);
+                }
+            }
+        }
+        ProductCatalog catalog = machine.getCatalog();
+        for (int start = HEADER_SIZE; start < done; start = recordEnd(buffer, start)) {
+            apply(buffer.duplicate().position(start + 1), buffer.get(start), catalog);
+            replayed += 1;
+        }
+        if (replayed > 0) {
+            machine.rebuild();
+        }
+        return done;
+    }
+
+    /**
+     * Counts the lines of the product and the purchase file that are done after the record, like {@link #apply}.
+     */
+    private static void count(ByteBuffer buffer, int start, byte type, long[] counts) {
+        if (type == LINE) {
+            counts[buffer.getInt(start + 1)] += 1;
+        } else if (type == FILLED) {
+            counts[Machine.PRODUCT_FILE] = Machine.FILLED;
+        } else if (type == END) {
+            counts[Machine.PRODUCT_FILE] = Machine.FILLED;
+            counts[Machine.PURCHASE_FILE] = 0;
+        }
+    }
+
+    /**
+     * @return True if the counts of done lines have reached the lines of a LOGGED record. The purchases are only
+     * logged after the fill.
+     */
+    private static boolean reached(long[] counts, int file, long lines) {
+        if (file == Machine.PURCHASE_FILE) {
+            return counts[Machine.PRODUCT_FILE] == Machine.FILLED && counts[Machine.PURCHASE_FILE] >= lines;
+        }
+        return lines == Machine.FILLED ? counts[Machine.PRODUCT_FILE] == Machine.FILLED
+                : counts[Machine.PRODUCT_FILE] == Machine.FILLED || counts[Machine.PRODUCT_FILE] >= lines;
+    }
+
+    /**
+     * @return The position after the record that starts at the given position, or -1 if the record is cut short, has
+     * an unknown type or does not match its checksum.
+     */
+    private int recordEnd(ByteBuffer buffer, int start) {
+        try {
+            byte type = buffer.get(start);
+            int fieldsSize;
+            if (type == PRODUCT) {
+                fieldsSize = Integer.BYTES + buffer.getInt(start + 1) + Integer.BYTES + 3 * Float.BYTES;
+            } else if (type == LOAD) {
+                fieldsSize = 2 * Integer.BYTES;
+            } else if (type == SELL || type == LINE) {
+                fieldsSize = Integer.BYTES;
+            } else if (type == PAY || type == REFUND) {
+                fieldsSize = coinChange.length * Integer.BYTES;
+            } else if (type == FILLED || type == END) {
+                fieldsSize = 0;
+            } else if (type == LOGGED) {
+                fieldsSize = Integer.BYTES + 2 * Long.BYTES;
+            } else {
+                return -1;
+            }
+            int end = start + 1 + fieldsSize;
+            crc.reset();
+            crc.update(buffer.duplicate().position(start).limit(end));
+            return buffer.getInt(end) == (int) crc.getValue() ? end + Integer.BYTES : -1;
+        } catch (RuntimeException e) { //The record was cut short by the crash.
+            return -1;
+        }
+    }
+
+    /**
+     * Applies a record whose fields start at the position of the buffer. The slots are changed directly, so nothing is
+     * journaled again; the machine is rebuilt after the replay.
+     */
+    private void apply(ByteBuffer fields, byte type, ProductCatalog catalog) {
+        if (type == PRODUCT) {
+            byte[] name = new byte[fields.getInt()];
+            fields.get(name);
+            catalog.getOrCreate(new String(name, StandardCharsets.UTF_8), fields.getInt(), fields.getFloat(),
+                    fields.getFloat(), fields.getFloat());
+        } else if (type == LINE) {
+            int file = fields.getInt();
+            machine.setLinesDone(file, machine.getLinesDone(file) + 1);
+        } else if (type == FILLED) {
+            machine.setLinesDone(Machine.PRODUCT_FILE, Machine.FILLED);
+        } else if (type == END) {
+            machine.setLinesDone(Machine.PRODUCT_FILE, Machine.FILLED);
+            machine.setLinesDone(Machine.PURCHASE_FILE, 0);
+        } else if (type == LOGGED) { //Only read when the journal is opened.
+            return;
+        } else if (type == LOAD) {
+            Slot slot = machine.getSlot(fields.getInt());
+            slot.product = catalog.get(fields.getInt());
+            slot.product.updateAmount(1);
+            slot.capacity += 1;
+        } else if (type == SELL) {
+            machine.getSlot(fields.getInt()).capacity -= 1;
+        } else if (machine.getCoins() != null) { //PAY or REFUND
+            for (int i = 0; i < coinChange.length; i++) {
+                coinChange[i] = fields.getInt();
+            }
+            machine.getCoins().adjust(coinChange, type == PAY ? 1 : -1);
+        }
+    }
+
+    /**
+     * Journals a product that is going to be loaded into a slot. It is called before the slot is changed.
+     *
+     * @param position Grid position of the slot.
+     * @param product  The {@link Product} that is loaded.
+     */
+    public synchronized void load(int position, Product product) {
+        ProductCatalog catalog = machine.getCatalog();
+        int id = catalog.idOf(product.getName());
+        while (productsWritten <= id) { //The products that were never loaded are written too, so the IDs stay the same.
+            Product next = catalog.get(productsWritten++);
+            byte[] name = next.getName().getBytes(StandardCharsets.UTF_8);
+            int start = begin(PRODUCT, Integer.BYTES + name.length + Integer.BYTES + 3 * Float.BYTES);
+            batch.putInt(name.length).put(name).putInt(next.getPrice()).putFloat(next.getProtein())
+                    .putFloat(next.getCarbonhydrate()).putFloat(next.getFat());
+            end(start);
+        }
+        int start = begin(LOAD, 2 * Integer.BYTES);
+        batch.putInt(position).putInt(id);
+        end(start);
+    }
+
+    /**
+     * Journals a product that was sold from a slot.
+     *
+     * @param position Grid position of the slot.
+     */
+    public synchronized void sell(int position) {
+        int start = begin(SELL, Integer.BYTES);
+        batch.putInt(position);
+        end(start);
+    }
+
+    /**
+     * Journals the coins of a sale that was paid: the accepted coins of the purchase go in and the change goes out.
+     *
+     * @param purchase The {@link Purchase} that was paid.
+     * @param change   The number of each coin given as change.
+     * @param refund   True if the payment was undone by {@link CoinInventory#cancel}.
+     */
+    public synchronized void pay(Purchase purchase, int[] change, boolean refund) {
+        for (int i = 0; i < coinChange.length; i++) {
+            coinChange[i] = -change[i];
+        }
+        for (int k = 0; k < purchase.getCoinCount(); k++) {
+            int index = CoinInventory.indexOf(purchase.getCoin(k));
+            if (index != -1) {
+                coinChange[index] += 1;
+            }
+        }
+        int start = begin(refund ? REFUND : PAY, coinChange.length * Integer.BYTES);
+        for (int count : coinChange) {
+            batch.putInt(count);
+        }
+        end(start);
+    }
+
+    /**
+     * Journals that a line of an input file is done, after the records of its changes.
+     *
+     * @param file {@link Machine#PRODUCT_FILE} or {@link Machine#PURCHASE_FILE}.
+     */
+    public synchronized void lineDone(int file) {
+        int start = begin(LINE, Integer.BYTES);
+        batch.putInt(file);
+        end(start);
+    }
+
+    /**
+     * Journals that the log file holds the output of the given lines, which must be done already, up to the given
+     * byte. The log should be flushed before, so its file is at least as long when the record is written.
+     *
+     * @param file   {@link Machine#PRODUCT_FILE} or {@link Machine#PURCHASE_FILE}.
+     * @param lines  Number of the first lines of the file whose output is in the log, or {@link Machine#FILLED} for
+     *               the whole fill and the state of the machine after it.
+     * @param offset Bytes of the log up to the end of the output of those lines.
+     */
+    public synchronized void logged(int file, long lines, long offset) {
+        int start = begin(LOGGED, Integer.BYTES + 2 * Long.BYTES);
+        batch.putInt(file).putLong(lines).putLong(offset);
+        end(start);
+    }
+
+    /**
+     * Journals that the fill has ended, so a run that continues does not read the product file again.
+     */
+    public synchronized void fillDone() {
+        end(begin(FILLED, 0));
+    }
+
+    /**
+     * Journals that a run has ended, so the next run does not fill the machine and reads its purchases from the start.
+     */
+    public synchronized void runDone() {
+        end(begin(END, 0));
+    }
+
+    /**
+     * Makes room for a record in the batch and writes its type.
+     *
+     * @return Position of the record in the batch.
+     */
+    private int begin(byte type, int fieldsSize) {
+        if (batch.remaining() < 1 + fieldsSize + Integer.BYTES) {
+            flush();
+        }
+        int start = batch.position();
+        batch.put(type);
+        return start;
+    }
+
+    /**
+     * Ends the record with its checksum and writes the batch if it is full.
+     */
+    private void end(int start) {
+        crc.reset();
+        crc.update(batch.array(), start, batch.position() - start);
+        batch.putInt((int) crc.getValue());
+        batchRecords += 1;
+        if (batchRecords >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the records in the batch to the file and forces them to the disk.
+     */
+    public synchronized void flush() {
+        if (batch.position() == 0) {
+            return;
+        }
+        batch.flip();
+        try {
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        batch.clear();
+        batchRecords = 0;
+    }
+
+    /**
+     * Writes a snapshot of the machine and empties the journal, which then holds the changes after this snapshot.
+     * The machine should not be changed during the checkpoint.
+     *
+     * @param snapshotPath Path to the snapshot file.
+     * @return 0 if the checkpoint was made, -1 if an error occurred; the journal is kept in that case.
+     */
+    public synchronized int checkpoint(String snapshotPath) {
+        flush();
+        if (MachineSnapshot.write(machine, snapshotPath) == -1) { //The snapshot is only reported when it is on the disk.
+            return -1;
+        }
+        try {
+            reset(MachineSnapshot.checksumOf(snapshotPath));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * Empties the journal and writes a header for the snapshot with the given checksum.
+     */
+    private void reset(long base) throws IOException {
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putLong(base);
+        header.flip();
+        channel.write(header, 0);
+        channel.position(HEADER_SIZE);
+        channel.force(true);
+    }
+
+    /**
+     * @return Bytes of the log file that hold the output of the lines replayed when the journal was opened, where a
+     * run that continues appends its log; 0 if it starts a new log.
+     */
+    public long getLogOffset() {
+        return logOffset;
+    }
+
+    /**
+     * @return Number of records that were replayed when the journal was opened.
+     */
+    public long getReplayed() {
+        return replayed;
+    }
+
+    /**
+     * Writes the remaining records and closes the journal.
+     */
+    @Override
+    public synchronized void close() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+        flush();
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
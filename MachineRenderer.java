@@ -0,0 +1,62 @@
+/**
+ * Renders the state of a {@link Machine} in the format of the "-----Gym Meal Machine-----" dump. The text of each
+ * row is cached, and the machine marks a row as dirty whenever the product or the capacity of one of its slots
+ * changes, so a snapshot only renders the rows that have changed since the previous one. The other rows are copied
+ * from the cache.
+ *
+ * A machine has one renderer (see {@link Machine#getRenderer()}), because rendering clears the dirty rows.
+ */
+public class MachineRenderer {
+    private static final String HEADER = "-----Gym Meal Machine-----\n";
+    private static final String FOOTER = "----------\n";
+    private static final String EMPTY_SLOT = "___(0, 0)___";
+
+    private final Machine machine;
+    private final String[] rows; // Rendered text of each row, null if it has not been rendered yet.
+    private final StringBuilder snapshot = new StringBuilder();
+    private final StringBuilder row = new StringBuilder();
+
+    /**
+     * @param machine The {@link Machine} that is going to be rendered.
+     */
+    public MachineRenderer(Machine machine) {
+        this.machine = machine;
+        this.rows = new String[machine.getRows()];
+    }
+
+    /**
+     * Renders the current state of the machine. The returned text is reused by the next call.
+     *
+     * @return The state of the machine, with a line for each row between a header and a footer line.
+     */
+    public CharSequence render() {
+        snapshot.setLength(0);
+        snapshot.append(HEADER);
+        for (int i = 0; i < rows.length; i++) {
+            if (machine.clearDirty(i) || rows[i] == null) { //The flag is cleared first, so a change during rendering marks it again.
+                rows[i] = renderRow(machine.getSlots()[i]);
+            }
+            snapshot.append(rows[i]);
+        }
+        snapshot.append(FOOTER);
+        return snapshot;
+    }
+
+    /**
+     * Renders the slots of a row as name(calorie, capacity) or ___(0, 0)___ for an empty slot. A row whose first slot
+     * has never been filled is written as empty.
+     */
+    private String renderRow(Slot[] slots) {
+        row.setLength(0);
+        for (Slot slot : slots) {
+            int capacity = slot.capacity;
+            if (slots[0].product == null || slot.product == null || capacity == 0) {
+                row.append(EMPTY_SLOT);
+            } else {
+                row.append(slot.product.getName()).append('(').append(slot.product.getNewCalorie()).append(", ")
+                        .append(capacity).append(")___");
+            }
+        }
+        return row.append('\n').toString();
+    }
+}
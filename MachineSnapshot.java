@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Writes the state of a {@link Machine} to a binary file and restores it, so a machine can be started again without
+ * parsing the product file and filling it slot by slot.
+ *
+ * The file starts with a header (the magic number, the format version, the size of the machine, the number of
+ * products, the number of each coin, or -1 if the machine does not keep its coins, and the lines of the product and
+ * the purchase file that are done, see {@link Machine#lineDone}). It is followed by the products
+ * in the order of their IDs (the name in UTF-8 after its length, then the price, protein, carbohydrate, fat, calorie
+ * and amount) and by the product ID (-1 if there is none) and the capacity of each slot in grid order. The file ends
+ * with the CRC32 of everything before it. All numbers are big-endian.
+ *
+ * A snapshot is written to a temporary file that is forced to the disk and then replaces the old one, and the
+ * directory is forced as well, so a crash while writing never leaves a broken snapshot behind and a snapshot that
+ * {@link #write} reported is on the disk, which {@link MachineJournal#checkpoint} relies on before it empties the
+ * journal. It is read back with a single memory mapped read.
+ */
+public class MachineSnapshot {
+    private static final int MAGIC = 0x474D4D53; // "GMMS"
+    public static final int VERSION = 2;
+    private static final int FIRST_VERSION = 1; // Still read: it has no lines done and is taken as the end of a run.
+    private static final int FIRST_HEADER_SIZE = 6 * Integer.BYTES + CoinInventory.DENOMINATIONS.length * Integer.BYTES;
+    private static final int HEADER_SIZE = FIRST_HEADER_SIZE + 2 * Long.BYTES;
+
+    /**
+     * Writes the state of the machine to the file at the given path. The machine should not be changed while it is
+     * written.
+     *
+     * @param machine The {@link Machine} whose state is written.
+     * @param path    Path to the snapshot file.
+     * @return 0 if the snapshot was written, -1 if an error occurred.
+     */
+    public static int write(Machine machine, String path) {
+        ProductCatalog catalog = machine.getCatalog();
+        byte[][] names = new byte[catalog.size()][];
+        long size = HEADER_SIZE + (long) machine.size() * 2 * Integer.BYTES + Long.BYTES;
+        for (int id = 0; id < names.length; id++) {
+            names[id] = catalog.get(id).getName().getBytes(StandardCharsets.UTF_8);
+            size += Integer.BYTES + names[id].length + 2 * Integer.BYTES + 4 * Float.BYTES;
+        }
+        if (size > Integer.MAX_VALUE) {
+            System.err.println("The machine is too large for a snapshot.");
+            return -1;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(machine.getRows()).putInt(machine.getColumns())
+                .putInt(machine.getSlotCapacity()).putInt(names.length);
+        CoinInventory coins = machine.getCoins();
+        for (int i = 0; i < CoinInventory.DENOMINATIONS.length; i++) {
+            buffer.putInt(coins == null ? -1 : coins.getCount(i));
+        }
+        buffer.putLong(machine.getLinesDone(Machine.PRODUCT_FILE)).putLong(machine.getLinesDone(Machine.PURCHASE_FILE));
+        for (int id = 0; id < names.length; id++) {
+            Product product = catalog.get(id);
+            buffer.putInt(names[id].length).put(names[id]).putInt(product.getPrice()).putFloat(product.getProtein())
+                    .putFloat(product.getCarbonhydrate()).putFloat(product.getFat()).putFloat(product.getCalorie())
+                    .putInt(product.getAmount());
+        }
+        for (int position = 0; position < machine.size(); position++) {
+            Slot slot = machine.getSlot(position);
+            buffer.putInt(slot.product == null ? -1 : catalog.idOf(slot.product.getName())).putInt(slot.capacity);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc.getValue());
+
+        Path target = Paths.get(path).toAbsolutePath();
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true); //The content is on the disk before the name points to it.
+            }
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(target.getParent()); //The new name is on the disk as well.
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * Forces the entries of a directory to the disk, so a file that was renamed in it stays renamed after a crash.
+     * Some systems, such as Windows, cannot open a directory; the rename is then left to the file system.
+     */
+    private static void syncDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Restores a machine from the snapshot file at the given path. The file is checked against its checksum and
+     * version before anything is restored.
+     *
+     * @param path Path to the snapshot file.
+     * @return The restored {@link Machine}, or null if the file cannot be read or is not a valid snapshot.
+     */
+    public static Machine read(String path) {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            if (channel.size() < FIRST_HEADER_SIZE + Long.BYTES || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("The file is not a machine snapshot: " + path);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int end = buffer.limit() - Long.BYTES;
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate().limit(end));
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("The file is not a machine snapshot: " + path);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION && version != FIRST_VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ", expected " + VERSION + ": " + path);
+            }
+            if (buffer.getLong(end) != crc.getValue()) {
+                throw new IOException("The checksum of the snapshot does not match: " + path);
+            }
+            return restore(buffer, version);
+        } catch (IOException | RuntimeException e) { //A snapshot that passed the checksum but still has wrong values is rejected as well.
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reads the checksum at the end of a snapshot file without checking the file, so it can be compared with the
+     * checksum a {@link MachineJournal} was started for.
+     *
+     * @param path Path to the snapshot file.
+     * @return The checksum of the snapshot, or -1 if there is no snapshot.
+     */
+    public static long checksumOf(String path) {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            if (channel.size() < FIRST_HEADER_SIZE + Long.BYTES) {
+                return -1;
+            }
+            ByteBuffer checksum = ByteBuffer.allocate(Long.BYTES);
+            channel.read(checksum, channel.size() - Long.BYTES);
+            return checksum.getLong(0);
+        } catch (IOException e) { //There is no snapshot yet.
+            return -1;
+        }
+    }
+
+    /**
+     * Builds the machine from the buffer, which is positioned after the version.
+     */
+    private static Machine restore(ByteBuffer buffer, int version) {
+        Machine machine = new Machine(buffer.getInt(), buffer.getInt(), buffer.getInt());
+        Product[] products = new Product[buffer.getInt()];
+        int[] coinCounts = new int[CoinInventory.DENOMINATIONS.length];
+        for (int i = 0; i < coinCounts.length; i++) {
+            coinCounts[i] = buffer.getInt();
+        }
+        if (coinCounts[0] >= 0) {
+            machine.setCoins(new CoinInventory(coinCounts));
+        }
+        machine.setLinesDone(Machine.PRODUCT_FILE, version == FIRST_VERSION ? Machine.FILLED : buffer.getLong());
+        machine.setLinesDone(Machine.PURCHASE_FILE, version == FIRST_VERSION ? 0 : buffer.getLong());
+
+        ProductCatalog catalog = machine.getCatalog();
+        for (int id = 0; id < products.length; id++) {
+            byte[] name = new byte[buffer.getInt()];
+            buffer.get(name);
+            products[id] = catalog.getOrCreate(new String(name, StandardCharsets.UTF_8), buffer.getInt(),
+                    buffer.getFloat(), buffer.getFloat(), buffer.getFloat());
+            products[id].setCalorie(buffer.getFloat());
+            products[id].setAmount(buffer.getInt());
+        }
+        for (int position = 0; position < machine.size(); position++) {
+            int id = buffer.getInt();
+            Slot slot = machine.getSlot(position);
+            slot.product = id == -1 ? null : products[id];
+            slot.capacity = buffer.getInt();
+            if (slot.capacity < 0 || slot.capacity > machine.getSlotCapacity() || (slot.product == null && slot.capacity != 0)) {
+                throw new IllegalArgumentException("The snapshot has a wrong capacity at slot " + position + ".");
+            }
+        }
+        machine.rebuild();
+        return machine;
+    }
+}
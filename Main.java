@@ -1,3 +1,7 @@
+import java.io.File;
+import java.util.Iterator;
+import java.util.Locale;
+
 /**
  * The Main class serves as the entry point for the Gym Meal Machine (GMM) application.
  * This class reads product and purchase details from files, initializes the machine,
@@ -14,24 +18,243 @@ public class Main {
      * <li>args[0]: The path to the product input file, containing details of products to be loaded into the machine.</li>
      * <li>args[1]: The path to the purchase input file, containing details of purchase attempts by users.</li>
      * <li>args[2]: The path to the output file where the machine state and transaction logs will be written.</li>
+     * <li>args[3], args[4], args[5] (optional): The number of rows, columns and products per slot of the machine.
+     * If they are not given, the machine has 6 rows, 4 columns and 10 products per slot.</li>
      * </ol>
      *
+     * If the system property gmm.snapshot is set and the file exists, the machine is restored from that snapshot
+     * instead of being filled from the product file. The state of the machine is written to the snapshot at the end.
+     * If gmm.journal is set, the changes of the machine are also written to that journal as they happen (see
+     * {@link MachineJournal}), and a journal that is left from a crashed run is replayed on top of the snapshot. The
+     * snapshot and the journal keep the number of product and purchase lines that are done, so a run that is started
+     * again after a crash skips those lines: it goes on with the fill if it was cut short and with the purchases after
+     * the last one that was journaled and written to the output file, which it cuts after them and appends to.
+     * gmm.journal.batch and gmm.journal.interval set the records written with one fsync and the milliseconds a
+     * record may wait for its batch. If gmm.pipeline is set to a number of worker threads, the purchases are
+     * processed by a {@link PurchasePipeline}. gmm.search chooses how the slots are searched for a nutrient value:
+     * index (the default), scalar or vector; see {@link Machine.Search}. The product and purchase files may also be
+     * in the binary formats that {@link ColumnarConverter} writes; the format is told by the start of the file.
+     * gmm.log.flush=line flushes the log after every line and gmm.log.sync=true forces it to the disk at every
+     * checkpoint. gmm.log.async and gmm.log.gzip write the log on a writer thread, compressed with gzip for the latter;
+     * see {@link TransactionLog#fromSystemProperties}.
+     *
      * @param args An array of {@link String} containing command-line arguments. It should contain paths to
      *             the product input file, purchase input file, and output file, in that order.
      */
     public static void main(String[] args) {
-        String[] productContent = FileInput.readFile(args[0], false, false);
-        String[] purchaseContent = FileInput.readFile(args[1], false, false);
+        String snapshot = System.getProperty("gmm.snapshot");
+        Machine machine = snapshot != null && new File(snapshot).isFile() ? MachineSnapshot.read(snapshot) : null;
+        boolean restored = machine != null;
+        if (!restored) {
+            machine = args.length >= 6
+                    ? new Machine(Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5]))
+                    : new Machine(); //6 rows, 4 columns and 10 products per slot if the size is not given.
+            //Before the journal is replayed, so the payments it holds are made from the coins the machine started with.
+            machine.setCoins(CoinInventory.fromSystemProperties());
+        }
+        MachineJournal journal = null;
+        String journalPath = System.getProperty("gmm.journal");
+        if (journalPath != null) {
+            //Only the lines whose output is in the log are replayed, so the log can be continued after them.
+            journal = MachineJournal.open(journalPath, machine, restored ? snapshot : null, new File(args[2]).length(),
+                    Integer.getInteger("gmm.journal.batch", MachineJournal.DEFAULT_BATCH_SIZE),
+                    Long.getLong("gmm.journal.interval", MachineJournal.DEFAULT_FLUSH_INTERVAL));
+            if (journal != null) {
+                machine.setJournal(journal);
+            }
+        }
+        //The snapshot and the journal tell the lines that are done: the run fills the machine only if the last run did
+        //not, and continues from the first line that is not done, and its log after the lines of the last run.
+        run(machine.getLinesDone(Machine.PRODUCT_FILE) == Machine.FILLED ? null : args[0], args[1], args[2], machine,
+                null, "", journal != null ? journal.getLogOffset() : 0);
+        machine.runDone();
+        if (journal != null) {
+            if (snapshot != null) {
+                journal.checkpoint(snapshot); //The journal starts again from the new snapshot.
+            }
+            journal.close();
+        } else if (snapshot != null) {
+            MachineSnapshot.write(machine, snapshot);
+        }
+    }
 
-        FileOutput.writeToFile(args[2], "", false, false);
+    /**
+     * Runs one machine from start to end: fills it with the products, writes its state, processes the purchases and
+     * writes its state again. Every run uses its own machine and log, so several runs can be made at the same time.
+     *
+     * @param productPath  The path to the product input file, or null if the machine was restored and is not filled.
+     * @param purchasePath The path to the purchase input file.
+     * @param outputPath   The path to the output file where the machine state and transaction logs will be written.
+     * @param machine      The {@link Machine} that is going to be used; it is empty unless it was restored.
+     */
+    public static void run(String productPath, String purchasePath, String outputPath, Machine machine) {
+        run(productPath, purchasePath, outputPath, machine, null, "");
+    }
+
+    /**
+     * Runs one machine like {@link #run(String, String, String, Machine)} and takes the time at the end of each step:
+     * the fill, the first state, the purchases and the last state. The log is closed after the last time.
+     *
+     * @param productPath  The path to the product input file, or null if the machine was restored and is not filled.
+     * @param purchasePath The path to the purchase input file.
+     * @param outputPath   The path to the output file where the machine state and transaction logs will be written.
+     * @param machine      The {@link Machine} that is going to be used; it is empty unless it was restored.
+     * @param phaseEnds The array the {@link System#nanoTime()} at the end of the four steps is written to, or null.
+     * @param suffix       Added to the names of the metrics dump and the analytics report (see {@link #withSuffix}),
+     *                     so machines that are run at the same time do not write the same files; empty for one machine.
+     */
+    static void run(String productPath, String purchasePath, String outputPath, Machine machine, long[] phaseEnds,
+                    String suffix) {
+        run(productPath, purchasePath, outputPath, machine, phaseEnds, suffix, 0);
+    }
 
-        Slot[][] machine = new Slot[6][4];
-        GMMOutput.createSlots(machine);
-        GMMOutput.fill(args, productContent, machine);
-        GMMOutput.writeMachine(args, machine);
-        GMMOutput.purchase(args, machine, purchaseContent);
-        GMMOutput.writeMachine(args, machine);
+    /**
+     * Runs one machine like {@link #run(String, String, String, Machine, long[], String)}, continuing the log of a run
+     * that was interrupted: the log is appended to the output file after the given number of bytes, which hold the
+     * output of the lines the machine has done (see {@link MachineJournal#getLogOffset()}). If the fill was done
+     * then, the log also holds the first state of the machine, which is not written again.
+     *
+     * @param logOffset Bytes of the output file that are kept, 0 to write it from zero.
+     */
+    static void run(String productPath, String purchasePath, String outputPath, Machine machine, long[] phaseEnds,
+                    String suffix, long logOffset) {
+        Metrics metrics = configure(machine, outputPath, suffix);
+        //A run that continues after a crash starts after the lines whose changes the journal had.
+        int productsDone = (int) Math.max(0, machine.getLinesDone(Machine.PRODUCT_FILE));
+        int purchasesDone = (int) machine.getLinesDone(Machine.PURCHASE_FILE);
+        boolean stateWritten = logOffset > 0 && machine.getLinesDone(Machine.PRODUCT_FILE) == Machine.FILLED;
+        try (TransactionLog log = TransactionLog.fromSystemProperties(outputPath, logOffset)) { //The log is opened once and closed at the end of the run.
+            if (productPath != null && ProductColumns.isColumnar(productPath)) { //A file written by ColumnarConverter.
+                ProductColumns products = ProductColumns.open(productPath);
+                if (products != null) {
+                    GMMOutput.fill(log, products, machine, productsDone);
+                }
+            } else if (productPath != null) {
+                try (MappedFileInput productContent = new MappedFileInput(productPath, false, false)) { //Lines are read from the mapped file as they are filled.
+                    GMMOutput.fill(log, skip(productContent, productsDone), machine);
+                }
+            }
+            markPhase(phaseEnds, 0);
+            if (!stateWritten) {
+                GMMOutput.writeMachine(log, machine);
+                log.checkpoint();
+                machine.fillDone(); //After the state, so a run that continues writes it if it is not in the log.
+                GMMOutput.logged(log, machine, Machine.PRODUCT_FILE, Machine.FILLED);
+            }
+            markPhase(phaseEnds, 1);
+            int workers = Integer.getInteger("gmm.pipeline", 0);
+            if (PurchaseColumns.isColumnar(purchasePath)) {
+                PurchaseColumns purchases = PurchaseColumns.open(purchasePath);
+                if (purchases != null && workers > 0) {
+                    PurchasePipeline.purchase(log, machine, skip(purchases, purchasesDone), workers);
+                } else if (purchases != null) {
+                    GMMOutput.purchase(log, machine, purchases, purchasesDone);
+                }
+            } else {
+                try (MappedFileInput purchaseContent = new MappedFileInput(purchasePath, false, false)) {
+                    if (workers > 0) {
+                        PurchasePipeline.purchase(log, machine, skip(purchaseContent, purchasesDone), workers);
+                    } else {
+                        GMMOutput.purchase(log, machine, skip(purchaseContent, purchasesDone));
+                    }
+                }
+            }
+            markPhase(phaseEnds, 2);
+            GMMOutput.writeMachine(log, machine);
+            markPhase(phaseEnds, 3);
+        } finally {
+            if (metrics != null) {
+                metrics.close();
+            }
+            if (machine.getAnalytics() != null) {
+                machine.getAnalytics().write(withSuffix(System.getProperty("gmm.analytics"), suffix));
+            }
+        }
+    }
+
+    /**
+     * @return The lines after the given number of first lines, or the same lines if none are skipped.
+     */
+    private static <T> Iterable<T> skip(Iterable<T> lines, long count) {
+        if (count == 0) {
+            return lines;
+        }
+        return () -> {
+            Iterator<T> iterator = lines.iterator();
+            for (long i = 0; i < count && iterator.hasNext(); i++) {
+                iterator.next();
+            }
+            return iterator;
+        };
+    }
+
+    /**
+     * Adds a suffix to the file name of a path before its extension, for example metrics.out1.json for metrics.json
+     * and the suffix .out1.
+     *
+     * @param path   The path, or null.
+     * @param suffix The suffix, empty for none.
+     * @return The path with the suffix, or null if the path is null.
+     */
+    static String withSuffix(String path, String suffix) {
+        if (path == null || suffix.isEmpty()) {
+            return path;
+        }
+        int name = Math.max(path.lastIndexOf('/'), path.lastIndexOf(File.separatorChar)) + 1;
+        int extension = path.lastIndexOf('.');
+        return extension > name ? path.substring(0, extension) + suffix + path.substring(extension) : path + suffix;
+    }
+
+    private static void markPhase(long[] phaseEnds, int phase) {
+        if (phaseEnds != null) {
+            phaseEnds[phase] = System.nanoTime();
+        }
     }
-}
 
+    /**
+     * Sets up a machine from the system properties: its metrics (gmm.metrics), its {@link SalesAnalytics}
+     * (gmm.analytics), how it searches its slots (gmm.search), the number of entries of its {@link QueryCache}
+     * (gmm.cache, no cache if not set) and its coins (gmm.coins) unless it already has them from a snapshot.
+     * A gmm.search other than index, scalar or vector is rejected with an {@link IllegalArgumentException}.
+     *
+     * @param machine The {@link Machine} that is going to be used.
+     * @param name    Name of the machine in its metrics, the path of its output file.
+     * @return The metrics of the machine, which should be closed at the end of the run, or null if they are off.
+     */
+    static Metrics configure(Machine machine, String name) {
+        return configure(machine, name, "");
+    }
 
+    /**
+     * Sets up a machine like {@link #configure(Machine, String)}, with the suffix added to the name of its metrics dump.
+     *
+     * @param machine The {@link Machine} that is going to be used.
+     * @param name    Name of the machine in its metrics, the path of its output file.
+     * @param suffix  Added to the name of the metrics dump (see {@link #withSuffix}), empty for none.
+     * @return The metrics of the machine, which should be closed at the end of the run, or null if they are off.
+     */
+    static Metrics configure(Machine machine, String name, String suffix) {
+        String search = System.getProperty("gmm.search", "index").toUpperCase(Locale.ROOT);
+        switch (search) {
+            case "INDEX" -> machine.setSearch(Machine.Search.INDEX);
+            case "SCALAR" -> machine.setSearch(Machine.Search.SCALAR_SCAN);
+            case "VECTOR" -> machine.setSearch(Machine.Search.VECTOR_SCAN);
+            default -> throw new IllegalArgumentException("Unknown gmm.search: " + System.getProperty("gmm.search")
+                    + " (index, scalar or vector)");
+        }
+        Metrics metrics = Metrics.fromSystemProperties(name, machine.size(), suffix); //Null unless -Dgmm.metrics=true is given.
+        machine.setMetrics(metrics);
+        machine.setAnalytics(SalesAnalytics.fromSystemProperties(machine.size())); //Null unless -Dgmm.analytics=<report> is given.
+        Integer cacheSize = Integer.getInteger("gmm.cache");
+        if (cacheSize != null && cacheSize > 0) {
+            machine.setCache(new QueryCache(cacheSize, machine.size()));
+            if (metrics != null) {
+                metrics.setCache(machine.getCache());
+            }
+        }
+        if (machine.getCoins() == null) {
+            machine.setCoins(CoinInventory.fromSystemProperties()); //Null unless -Dgmm.coins is given, so change can always be made.
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the lines of a file through a memory mapped buffer instead of decoding the whole file into strings. The
+ * line boundaries are found directly in the mapped bytes and each line is handed out as a view (an offset and a
+ * length in the buffer), which can be read as a {@link CharSequence} without copying it.
+ *
+ * A file larger than the window size is mapped one window at a time; the next window starts at the first line that
+ * did not fit in the previous one, so a line is never split between windows. The lines are expected to be ASCII as
+ * in the product and purchase files; a line that has other characters is decoded as UTF-8 into a string instead.
+ *
+ * The iterator returns the same view object for every line, so a line is only valid until the next one is read.
+ */
+public class MappedFileInput implements Iterable<CharSequence>, AutoCloseable {
+    // Size of a mapped window in bytes. A line may not be longer than this.
+    public static final long DEFAULT_WINDOW_SIZE = 1L << 30;
+
+    private FileChannel channel;
+    private final long fileSize;
+    private final long windowSize;
+    private final boolean discardEmptyLines;
+    private final boolean trim;
+
+    /**
+     * Opens the file at the given path with the default window size.
+     *
+     * @param path              Path to the file that is going to be read.
+     * @param discardEmptyLines If true, discards empty lines with respect to trim; else, it takes all the lines from the file.
+     * @param trim              Trim status; if true, trims each line; else, it leaves each line as-is.
+     */
+    public MappedFileInput(String path, boolean discardEmptyLines, boolean trim) {
+        this(path, discardEmptyLines, trim, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Opens the file at the given path. If the file cannot be read, the error is printed and the file is treated as empty.
+     *
+     * @param path              Path to the file that is going to be read.
+     * @param discardEmptyLines If true, discards empty lines with respect to trim; else, it takes all the lines from the file.
+     * @param trim              Trim status; if true, trims each line; else, it leaves each line as-is.
+     * @param windowSize        Number of bytes that are mapped at once, at most {@link Integer#MAX_VALUE}.
+     */
+    public MappedFileInput(String path, boolean discardEmptyLines, boolean trim, long windowSize) {
+        this.discardEmptyLines = discardEmptyLines;
+        this.trim = trim;
+        this.windowSize = Math.min(windowSize, Integer.MAX_VALUE);
+        long size = 0;
+        try {
+            channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+            size = channel.size();
+        } catch (IOException e) { //Reads no lines if there is no such a file.
+            e.printStackTrace();
+        }
+        this.fileSize = size;
+    }
+
+    /**
+     * @return An iterator over the lines of the file. It reads the file from the beginning every time it is called.
+     */
+    @Override
+    public Iterator<CharSequence> iterator() {
+        return new LineIterator();
+    }
+
+    /**
+     * Closes the file. The mapped windows are released by the garbage collector.
+     */
+    @Override
+    public void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            channel = null;
+        }
+    }
+
+    /**
+     * Finds the lines in the mapped windows one by one.
+     */
+    private class LineIterator implements Iterator<CharSequence> {
+        private final LineView view = new LineView();
+        private MappedByteBuffer window;
+        private long windowStart; // Place of the window in the file.
+        private int position; // Place of the next line in the window.
+        private boolean ready; // True if the next line has been found but not returned yet.
+        private CharSequence next;
+
+        @Override
+        public boolean hasNext() {
+            if (!ready) {
+                next = findNext();
+                ready = true;
+            }
+            return next != null;
+        }
+
+        @Override
+        public CharSequence next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ready = false;
+            return next;
+        }
+
+        /**
+         * @return The next line that is not discarded, or null at the end of the file.
+         */
+        private CharSequence findNext() {
+            while (channel != null && windowStart + position < fileSize) {
+                if (window == null) {
+                    map(0);
+                }
+                int start = position;
+                int end = start;
+                boolean ascii = true;
+                while (true) {
+                    while (end < window.limit() && window.get(end) != '\n' && window.get(end) != '\r') {
+                        ascii &= window.get(end) >= 0;
+                        end++;
+                    }
+                    //A \r at the very end of a window may be followed by a \n in the next one.
+                    boolean complete = windowStart + window.limit() == fileSize
+                            || end < window.limit() - 1 || (end == window.limit() - 1 && window.get(end) == '\n');
+                    if (complete) {
+                        break;
+                    }
+                    if (start == 0) {
+                        throw new IllegalStateException("A line is longer than the window size of " + windowSize + " bytes.");
+                    }
+                    map(windowStart + start); //The line did not fit, so the next window starts with it.
+                    end -= start;
+                    start = 0;
+                }
+                position = end;
+                if (end < window.limit()) { //Skips the line break, which is \n, \r or \r\n like in BufferedReader.
+                    position += window.get(end) == '\r' && end + 1 < window.limit() && window.get(end + 1) == '\n' ? 2 : 1;
+                }
+
+                int from = start;
+                int to = end;
+                while (from < to && (window.get(from) & 0xFF) <= ' ') {
+                    from++;
+                }
+                while (to > from && (window.get(to - 1) & 0xFF) <= ' ') {
+                    to--;
+                }
+                if (discardEmptyLines && from == to) {
+                    continue;
+                }
+                if (trim) {
+                    start = from;
+                    end = to;
+                }
+                if (!ascii) {
+                    return decode(start, end);
+                }
+                view.set(window, start, end - start);
+                return view;
+            }
+            return null;
+        }
+
+        /**
+         * Maps the window that starts at the given place of the file.
+         */
+        private void map(long start) {
+            try {
+                window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, fileSize - start));
+            } catch (IOException e) {
+                throw new IllegalStateException("The file could not be mapped.", e);
+            }
+            windowStart = start;
+            position = 0;
+        }
+
+        private String decode(int start, int end) {
+            byte[] bytes = new byte[end - start];
+            window.get(start, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * A line of the mapped file, read as ASCII characters.
+     */
+    private static class LineView implements CharSequence {
+        private MappedByteBuffer buffer;
+        private int offset;
+        private int length;
+
+        void set(MappedByteBuffer buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) buffer.get(offset + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[length];
+            buffer.get(offset, bytes);
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
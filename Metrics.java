@@ -0,0 +1,344 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts the results of the purchases of a machine and keeps histograms of how long they take. The results are
+ * counted for each choice type (PROTEIN, CARB, FAT, CALORIE, NUMBER and QUERY) and for each slot, and there are latency
+ * histograms for each choice type and for the fill and writeMachine phases. Everything is recorded without locking.
+ *
+ * Metrics are off unless a {@link Metrics} object is given to the machine with {@link Machine#setMetrics(Metrics)};
+ * when they are off, the purchase path only checks for null. They can be read as text or JSON, written to a file
+ * periodically, and read through JMX as a {@link MetricsMXBean}.
+ */
+public class Metrics implements MetricsMXBean, AutoCloseable {
+    /**
+     * The result of a purchase request. REJECTED_COIN is counted once for every coin the machine does not accept.
+     */
+    public enum Outcome {
+        PURCHASE,
+        INSUFFICIENT_MONEY,
+        NOT_FOUND,
+        EMPTY_SLOT,
+        INVALID_NUMBER,
+        NO_CHANGE,
+        REJECTED_COIN;
+
+        /**
+         * @param result The result of {@link Machine#buyByNutrient} or {@link Machine#buyByNumber}.
+         * @return The outcome of the result.
+         */
+        public static Outcome of(int result) {
+            if (result >= 0) {
+                return PURCHASE;
+            }
+            switch (result) {
+                case Machine.INSUFFICIENT_MONEY:
+                    return INSUFFICIENT_MONEY;
+                case Machine.EMPTY_SLOT:
+                    return EMPTY_SLOT;
+                case Machine.INVALID_NUMBER:
+                    return INVALID_NUMBER;
+                case Machine.NO_CHANGE:
+                    return NO_CHANGE;
+                default:
+                    return NOT_FOUND;
+            }
+        }
+    }
+
+    // Indexes of the NUMBER and QUERY choices; the nutrients use their ordinal.
+    public static final int NUMBER = Nutrient.values().length;
+    public static final int QUERY = NUMBER + 1;
+    private static final String[] CHOICES = {"PROTEIN", "CARB", "FAT", "CALORIE", "NUMBER", "QUERY"};
+    private static final Outcome[] OUTCOMES = Outcome.values();
+
+    private final String name;
+    private final int slots;
+    private final LongAdder[] counts = new LongAdder[CHOICES.length * OUTCOMES.length]; // For each choice and outcome.
+    private final AtomicLongArray slotCounts; // For each slot and outcome.
+    private final LatencyHistogram[] purchaseLatencies = new LatencyHistogram[CHOICES.length];
+    private final LatencyHistogram fillLatency = new LatencyHistogram();
+    private final LatencyHistogram writeMachineLatency = new LatencyHistogram();
+    private ScheduledExecutorService dumper;
+    private Runnable dumpTask;
+    private ObjectName objectName;
+    private volatile QueryCache cache; // Its statistics are reported with the metrics; null if there is none.
+
+    /**
+     * @param name  Name of the machine, used in the dumps and the JMX name.
+     * @param slots Number of slots in the machine.
+     */
+    public Metrics(String name, int slots) {
+        this.name = name;
+        this.slots = slots;
+        this.slotCounts = new AtomicLongArray(slots * OUTCOMES.length);
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+        for (int i = 0; i < purchaseLatencies.length; i++) {
+            purchaseLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Creates the metrics of a machine if the system property gmm.metrics is true. If gmm.metrics.dump is set, the
+     * metrics are written to that file every gmm.metrics.period seconds (10 if not set), as JSON if the file name ends
+     * with .json and as text otherwise. The metrics are also registered as an MBean.
+     *
+     * @param name   Name of the machine.
+     * @param slots  Number of slots in the machine.
+     * @param suffix Added to the name of the dump file before its extension (see {@link Main#withSuffix}), so the
+     *               machines of a {@link Fleet} write files of their own; empty for none.
+     * @return The metrics, or null if they are off.
+     */
+    public static Metrics fromSystemProperties(String name, int slots, String suffix) {
+        if (!Boolean.getBoolean("gmm.metrics")) {
+            return null;
+        }
+        Metrics metrics = new Metrics(name, slots);
+        metrics.registerMBean();
+        String dump = System.getProperty("gmm.metrics.dump");
+        if (dump != null) {
+            metrics.startDump(Main.withSuffix(dump, suffix), Long.getLong("gmm.metrics.period", 10));
+        }
+        return metrics;
+    }
+
+    /**
+     * Reports the hits, misses, evictions and invalidations of the cache of the machine with the metrics.
+     *
+     * @param cache The {@link QueryCache} of the machine, or null.
+     */
+    public void setCache(QueryCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Records the result of a purchase request.
+     *
+     * @param choice   Index of the choice: the ordinal of the {@link Nutrient}, {@link #NUMBER} or {@link #QUERY}.
+     * @param result   The result of {@link Machine#buyByNutrient} or {@link Machine#buyByNumber}.
+     * @param position Grid position of the slot the result is about, or -1 if there is none.
+     * @param nanos    How long the request took in nanoseconds.
+     */
+    public void recordPurchase(int choice, int result, int position, long nanos) {
+        Outcome outcome = Outcome.of(result);
+        counts[choice * OUTCOMES.length + outcome.ordinal()].increment();
+        if (position >= 0 && position < slots) {
+            slotCounts.incrementAndGet(position * OUTCOMES.length + outcome.ordinal());
+        }
+        purchaseLatencies[choice].record(nanos);
+    }
+
+    /**
+     * Records the coins of a purchase request that the machine did not accept.
+     *
+     * @param choice Index of the choice: the ordinal of the {@link Nutrient}, {@link #NUMBER} or {@link #QUERY}.
+     * @param coins  Number of rejected coins.
+     */
+    public void recordRejectedCoins(int choice, int coins) {
+        counts[choice * OUTCOMES.length + Outcome.REJECTED_COIN.ordinal()].add(coins);
+    }
+
+    public void recordFill(long nanos) {
+        fillLatency.record(nanos);
+    }
+
+    public void recordWriteMachine(long nanos) {
+        writeMachineLatency.record(nanos);
+    }
+
+    /**
+     * @param choice  Index of the choice: the ordinal of the {@link Nutrient}, {@link #NUMBER} or {@link #QUERY}.
+     * @param outcome The {@link Outcome} that is counted.
+     * @return Number of times the outcome happened for the choice.
+     */
+    public long getCount(int choice, Outcome outcome) {
+        return counts[choice * OUTCOMES.length + outcome.ordinal()].sum();
+    }
+
+    /**
+     * @param position Grid position of the slot.
+     * @param outcome  The {@link Outcome} that is counted.
+     * @return Number of times the outcome happened for the slot.
+     */
+    public long getSlotCount(int position, Outcome outcome) {
+        return slotCounts.get(position * OUTCOMES.length + outcome.ordinal());
+    }
+
+    @Override
+    public Map<String, Long> getOutcomeCounts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (int choice = 0; choice < CHOICES.length; choice++) {
+            for (Outcome outcome : OUTCOMES) {
+                result.put(CHOICES[choice] + "." + outcome, getCount(choice, outcome));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getLatencies() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (int choice = 0; choice < CHOICES.length; choice++) {
+            putLatencies(result, CHOICES[choice], purchaseLatencies[choice]);
+        }
+        putLatencies(result, "fill", fillLatency);
+        putLatencies(result, "writeMachine", writeMachineLatency);
+        return result;
+    }
+
+    private static void putLatencies(Map<String, Double> result, String key, LatencyHistogram histogram) {
+        result.put(key + ".p50", histogram.getPercentile(50) / 1e3);
+        result.put(key + ".p99", histogram.getPercentile(99) / 1e3);
+        result.put(key + ".p999", histogram.getPercentile(99.9) / 1e3);
+        result.put(key + ".max", histogram.getMax() / 1e3);
+    }
+
+    @Override
+    public String getJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"machine\":\"").append(name.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\"outcomes\":{");
+        for (int choice = 0; choice < CHOICES.length; choice++) {
+            json.append(choice == 0 ? "" : ",").append('"').append(CHOICES[choice]).append("\":{");
+            for (Outcome outcome : OUTCOMES) {
+                json.append(outcome.ordinal() == 0 ? "" : ",").append('"').append(outcome).append("\":")
+                        .append(getCount(choice, outcome));
+            }
+            json.append('}');
+        }
+        json.append("},\"slots\":[");
+        for (int position = 0; position < slots; position++) {
+            json.append(position == 0 ? "{" : ",{");
+            for (Outcome outcome : OUTCOMES) {
+                json.append(outcome.ordinal() == 0 ? "" : ",").append('"').append(outcome).append("\":")
+                        .append(getSlotCount(position, outcome));
+            }
+            json.append('}');
+        }
+        json.append("],\"latencyMicros\":{");
+        boolean first = true;
+        for (Map.Entry<String, Double> latency : getLatencies().entrySet()) {
+            json.append(first ? "" : ",").append('"').append(latency.getKey()).append("\":")
+                    .append(String.format(Locale.ROOT, "%.3f", latency.getValue()));
+            first = false;
+        }
+        json.append('}');
+        QueryCache cache = this.cache;
+        if (cache != null) {
+            json.append(",\"cache\":{\"hits\":").append(cache.getHits()).append(",\"misses\":").append(cache.getMisses())
+                    .append(",\"hitRate\":").append(String.format(Locale.ROOT, "%.4f", cache.getHitRate()))
+                    .append(",\"evictions\":").append(cache.getEvictions())
+                    .append(",\"invalidations\":").append(cache.getInvalidations()).append('}');
+        }
+        return json.append('}').toString();
+    }
+
+    /**
+     * @return The metrics as readable text: the outcomes of each choice type, the slots that had any result, the
+     * latency percentiles and the statistics of the cache if there is one.
+     */
+    public String getText() {
+        StringBuilder text = new StringBuilder("Metrics of ").append(name).append('\n');
+        text.append(String.format(Locale.ROOT, "%-8s", "CHOICE"));
+        for (Outcome outcome : OUTCOMES) {
+            text.append(String.format(Locale.ROOT, " %18s", outcome));
+        }
+        for (int choice = 0; choice < CHOICES.length; choice++) {
+            text.append(String.format(Locale.ROOT, "%n%-8s", CHOICES[choice]));
+            for (Outcome outcome : OUTCOMES) {
+                text.append(String.format(Locale.ROOT, " %18d", getCount(choice, outcome)));
+            }
+        }
+        text.append('\n');
+        for (int position = 0; position < slots; position++) {
+            StringBuilder line = new StringBuilder();
+            for (Outcome outcome : OUTCOMES) {
+                long count = getSlotCount(position, outcome);
+                if (count != 0) {
+                    line.append(' ').append(outcome).append('=').append(count);
+                }
+            }
+            if (line.length() > 0) {
+                text.append("slot ").append(position).append(':').append(line).append('\n');
+            }
+        }
+        for (Map.Entry<String, Double> latency : getLatencies().entrySet()) {
+            text.append(String.format(Locale.ROOT, "%s = %.3f us%n", latency.getKey(), latency.getValue()));
+        }
+        QueryCache cache = this.cache;
+        if (cache != null) {
+            text.append(String.format(Locale.ROOT, "cache: hits=%d misses=%d hitRate=%.4f evictions=%d invalidations=%d%n",
+                    cache.getHits(), cache.getMisses(), cache.getHitRate(), cache.getEvictions(), cache.getInvalidations()));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes the metrics to the file every given number of seconds on a background thread, and once more when the
+     * metrics are closed.
+     *
+     * @param path          Path to the file; it is written as JSON if it ends with .json and as text otherwise.
+     * @param periodSeconds Number of seconds between two dumps.
+     */
+    public synchronized void startDump(String path, long periodSeconds) {
+        if (dumper != null) {
+            return;
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Runnable dump = () -> FileOutput.writeToFile(path, path.endsWith(".json") ? getJson() : getText(), false, true);
+        dumper.scheduleAtFixedRate(dump, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+        dumpTask = dump;
+    }
+
+    /**
+     * Registers the metrics as an MBean named gmm:type=Metrics,name=&lt;name of the machine&gt;.
+     */
+    public synchronized void registerMBean() {
+        try {
+            objectName = new ObjectName("gmm:type=Metrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+            objectName = null;
+        }
+    }
+
+    /**
+     * Stops the periodic dump after writing the final metrics, and unregisters the MBean.
+     */
+    @Override
+    public synchronized void close() {
+        if (dumper != null) {
+            dumper.shutdown(); //Lets a dump that is being written finish before the final one.
+            try {
+                dumper.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            dumpTask.run();
+            dumper = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+            objectName = null;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+import java.util.Map;
+
+/**
+ * The management interface of {@link Metrics}, so the metrics of a running machine can be read through JMX, for
+ * example with JConsole.
+ */
+public interface MetricsMXBean {
+    /**
+     * @return Number of results of each choice type and outcome, with keys such as "PROTEIN.PURCHASE".
+     */
+    Map<String, Long> getOutcomeCounts();
+
+    /**
+     * @return The 50th, 99th and 99.9th percentile and the maximum of each latency histogram in microseconds, with
+     * keys such as "PROTEIN.p99" or "fill.max".
+     */
+    Map<String, Double> getLatencies();
+
+    /**
+     * @return All the metrics as JSON.
+     */
+    String getJson();
+}
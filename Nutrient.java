@@ -0,0 +1,46 @@
+/**
+ * The nutrient values a product can be chosen by in a purchase. The names of the constants are the same as the
+ * choices written in the purchase file.
+ */
+public enum Nutrient {
+    PROTEIN,
+    CARB,
+    FAT,
+    CALORIE;
+
+    private static final Nutrient[] VALUES = values(); // values() makes a new array on every call.
+
+    /**
+     * Returns the value of this nutrient for the given product.
+     *
+     * @param product The {@link Product} whose value is wanted.
+     * @return The value of this nutrient in the product.
+     */
+    public float of(Product product) {
+        switch (this) {
+            case PROTEIN:
+                return product.getProtein();
+            case CARB:
+                return product.getCarbonhydrate();
+            case FAT:
+                return product.getFat();
+            default:
+                return product.getCalorie();
+        }
+    }
+
+    /**
+     * Finds the nutrient for a choice in the purchase file.
+     *
+     * @param choice The choice written in the purchase file.
+     * @return The matching {@link Nutrient}, or null if the choice is not a nutrient (for example NUMBER).
+     */
+    public static Nutrient fromChoice(String choice) {
+        for (Nutrient nutrient : VALUES) {
+            if (nutrient.name().equals(choice)) {
+                return nutrient;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,288 @@
+import java.util.Arrays;
+
+/**
+ * A sorted index over the slots of the machine for one {@link Nutrient}. The slots that hold a product are kept in
+ * ascending order of their nutrient value, so the slots within a range of values are found with a binary search.
+ * A segment tree over this order keeps the smallest grid position (row * columns + column) in each part, which gives
+ * the first matching slot in grid order without scanning the whole machine.
+ *
+ * The index gives the same slot as scanning the machine row by row: the first slot within the range that either
+ * still has products, or is empty but costs more than the money (which is reported as insufficient money).
+ *
+ * A slot that gets its first product is sorted into the index by the next search: the new slots are sorted among
+ * themselves and merged into the sorted order, and only the leaves from the first new rank on and the nodes above them
+ * are set again. A slot never changes its product otherwise, so the index is only built from the whole machine at the
+ * start and after {@link #invalidate()}.
+ */
+public class NutrientIndex {
+    private static final int NONE = Integer.MAX_VALUE;
+    private static final int PENDING = -2; // The rank of a slot that has a product but is not sorted in yet.
+
+    private final Slot[][] machine;
+    private final Nutrient nutrient;
+    private final int columns;
+
+    private final float[] values; // Nutrient values of the indexed slots in ascending order.
+    private final int[] positionAt; // Grid position of each rank.
+    private final int[] rankOf; // Place of each grid position in the sorted order, -1 if the slot has no product.
+    private final long[] pending; // Slots that got their first product since the last search.
+    private int count; // Number of sorted slots.
+    private int pendingCount;
+    private int size; // Number of leaves in the segment tree.
+    private int[] minStocked; // Smallest grid position of a slot with products in each node.
+    private int[] minDepleted; // Smallest grid position of an empty slot in each node.
+    private int[] minDepletedPrice; // Lowest price of an empty slot in each node.
+    private int[] maxDepletedPrice; // Highest price of an empty slot in each node.
+    private boolean stale; // True if the slots were changed without update and the index must be built again.
+
+    /**
+     * Builds the index from the current state of the machine.
+     *
+     * @param machine  A 2D array of {@link Slot} objects representing the machine slots.
+     * @param nutrient The {@link Nutrient} whose values are indexed.
+     */
+    public NutrientIndex(Slot[][] machine, Nutrient nutrient) {
+        this.machine = machine;
+        this.nutrient = nutrient;
+        this.columns = machine.length == 0 ? 0 : machine[0].length;
+        int slots = machine.length * columns;
+        this.values = new float[slots];
+        this.positionAt = new int[slots];
+        this.rankOf = new int[slots];
+        this.pending = new long[slots];
+        build();
+    }
+
+    /**
+     * Sorts every slot that holds a product into an empty index.
+     */
+    private void build() {
+        count = 0;
+        pendingCount = 0;
+        size = 0;
+        Arrays.fill(rankOf, -1);
+        for (int position = 0; position < rankOf.length; position++) {
+            if (machine[position / columns][position % columns].product != null) {
+                addPending(position);
+            }
+        }
+        merge();
+        stale = false;
+    }
+
+    private void addPending(int position) {
+        rankOf[position] = PENDING;
+        pending[pendingCount++] = sortKey(valueAt(position), position);
+    }
+
+    /**
+     * Sorts the pending slots and merges them into the sorted order from the back, then sets the leaves whose slot
+     * changed and the nodes above them. The segment tree doubles when it has no room for the new slots.
+     */
+    private void merge() {
+        Arrays.sort(pending, 0, pendingCount);
+        int total = count + pendingCount;
+        int first = total; // The first rank whose slot changed.
+        int i = count - 1;
+        for (int j = pendingCount - 1, rank = total - 1; j >= 0; rank--) {
+            int position = (int) pending[j];
+            if (i >= 0 && sortKey(values[i], positionAt[i]) > pending[j]) {
+                values[rank] = values[i];
+                positionAt[rank] = positionAt[i--];
+            } else {
+                values[rank] = valueAt(position);
+                positionAt[rank] = position;
+                j--;
+            }
+            rankOf[positionAt[rank]] = rank;
+            first = rank;
+        }
+        count = total;
+        pendingCount = 0;
+        if (size < Math.max(1, count)) { //Every leaf is set again in a larger tree.
+            size = 1;
+            while (size < count) {
+                size *= 2;
+            }
+            minStocked = new int[2 * size];
+            minDepleted = new int[2 * size];
+            minDepletedPrice = new int[2 * size];
+            maxDepletedPrice = new int[2 * size];
+            Arrays.fill(minStocked, NONE);
+            Arrays.fill(minDepleted, NONE);
+            Arrays.fill(minDepletedPrice, Integer.MAX_VALUE);
+            Arrays.fill(maxDepletedPrice, Integer.MIN_VALUE);
+            first = 0;
+        }
+        if (first >= count) {
+            return;
+        }
+        for (int rank = first; rank < count; rank++) {
+            setLeaf(rank, positionAt[rank]);
+        }
+        for (int low = (first + size) / 2, high = (count - 1 + size) / 2; low > 0; low /= 2, high /= 2) {
+            for (int node = low; node <= high; node++) {
+                pull(node);
+            }
+        }
+    }
+
+    /**
+     * @return A key that orders the slots by their value and then by their grid position, like the sorted order.
+     */
+    private static long sortKey(float value, int position) {
+        int bits = Float.floatToIntBits(value + 0.0f); //-0 and 0 are the same value.
+        bits ^= (bits >> 31) & 0x7FFFFFFF; //Negative values are ordered from the smallest as well.
+        return ((long) bits << 32) | position;
+    }
+
+    /**
+     * Updates the index after the capacity or the product of a slot has changed, for example when its last product
+     * is bought or when it is refilled.
+     *
+     * @param row    Row of the slot.
+     * @param column Column of the slot.
+     */
+    public void update(int row, int column) {
+        if (stale) {
+            return;
+        }
+        int position = row * columns + column;
+        int rank = rankOf[position];
+        if (rank == PENDING) { //Its leaf is set when it is sorted in.
+            return;
+        }
+        if (rank == -1) { //A product was placed to an empty slot, its value is sorted in by the next search.
+            if (machine[row][column].product != null) {
+                addPending(position);
+            }
+            return;
+        }
+        setLeaf(rank, position);
+        for (int node = (rank + size) / 2; node > 0; node /= 2) {
+            pull(node);
+        }
+    }
+
+    /**
+     * Marks the index to be built again by the next search, after the slots were changed without {@link #update}.
+     */
+    public void invalidate() {
+        stale = true;
+    }
+
+    /**
+     * @return True if the next search changes the index first: it builds it again or sorts in new slots.
+     */
+    public boolean isStale() {
+        return stale || pendingCount > 0;
+    }
+
+    /**
+     * Finds the first slot in grid order whose value is between the bounds and which either has products or costs
+     * more than the given money.
+     *
+     * @param lowerBound The lowest accepted value, inclusive.
+     * @param upperBound The highest accepted value, inclusive.
+     * @param money      The money the customer has inserted.
+     * @return The grid position (row * columns + column) of the slot, or -1 if there is no such slot.
+     */
+    public int find(float lowerBound, float upperBound, int money) {
+        if (stale) {
+            build();
+        } else if (pendingCount > 0) {
+            merge();
+        }
+        int from = firstRank(lowerBound, false);
+        int to = firstRank(upperBound, true);
+
+        int best = NONE;
+        for (int l = from + size, r = to + size; l < r; l /= 2, r /= 2) {
+            if ((l & 1) == 1) {
+                best = Math.min(best, minStocked[l++]);
+            }
+            if ((r & 1) == 1) {
+                best = Math.min(best, minStocked[--r]);
+            }
+        }
+        //An empty slot before it also stops the scan if its product is too expensive.
+        for (int l = from + size, r = to + size; l < r; l /= 2, r /= 2) {
+            if ((l & 1) == 1) {
+                best = firstDepleted(l++, money, best);
+            }
+            if ((r & 1) == 1) {
+                best = firstDepleted(--r, money, best);
+            }
+        }
+        return best == NONE ? -1 : best;
+    }
+
+    /**
+     * Searches a node of the segment tree for an empty slot that costs more than the money and comes before best.
+     * A node is only searched further when some of its empty slots cost more than the money and some do not; if all
+     * do, its first empty slot is the answer.
+     *
+     * @param node  The node of the segment tree.
+     * @param money The money the customer has inserted.
+     * @param best  The smallest grid position found so far.
+     * @return The smaller one of best and the grid position found in the node.
+     */
+    private int firstDepleted(int node, int money, int best) {
+        if (maxDepletedPrice[node] <= money || minDepleted[node] >= best) {
+            return best;
+        }
+        if (minDepletedPrice[node] > money) {
+            return minDepleted[node];
+        }
+        int left = 2 * node;
+        int right = 2 * node + 1;
+        if (minDepleted[right] < minDepleted[left]) { //The child that may have the smaller position first.
+            left = right;
+            right = 2 * node;
+        }
+        best = firstDepleted(left, money, best);
+        return firstDepleted(right, money, best);
+    }
+
+    /**
+     * Finds the first rank whose value is not below (or above, if inclusive) the given value with a binary search.
+     *
+     * @param value     The value that is searched.
+     * @param inclusive True if the ranks with a value equal to the given value should be skipped as well.
+     * @return The first rank after the searched values.
+     */
+    private int firstRank(float value, boolean inclusive) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < value || (inclusive && values[middle] <= value)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private float valueAt(int position) {
+        return nutrient.of(machine[position / columns][position % columns].product);
+    }
+
+    private void setLeaf(int rank, int position) {
+        Slot slot = machine[position / columns][position % columns];
+        int leaf = rank + size;
+        boolean stocked = slot.capacity > 0;
+        minStocked[leaf] = stocked ? position : NONE;
+        minDepleted[leaf] = stocked ? NONE : position;
+        minDepletedPrice[leaf] = stocked ? Integer.MAX_VALUE : slot.product.getPrice();
+        maxDepletedPrice[leaf] = stocked ? Integer.MIN_VALUE : slot.product.getPrice();
+    }
+
+    private void pull(int node) {
+        minStocked[node] = Math.min(minStocked[2 * node], minStocked[2 * node + 1]);
+        minDepleted[node] = Math.min(minDepleted[2 * node], minDepleted[2 * node + 1]);
+        minDepletedPrice[node] = Math.min(minDepletedPrice[2 * node], minDepletedPrice[2 * node + 1]);
+        maxDepletedPrice[node] = Math.max(maxDepletedPrice[2 * node], maxDepletedPrice[2 * node + 1]);
+    }
+}
@@ -0,0 +1,302 @@
+import java.util.Arrays;
+
+/**
+ * A k-d tree over the slots of the machine that hold a product, with the four nutrient values and the price of the
+ * product as the coordinates of a slot. It finds the slots for a {@link CompoundQuery}, which gives a range of values
+ * for every attribute, without checking every slot.
+ *
+ * The tree is kept in arrays in the order of its nodes: the slots of a subtree are the slots between two places, and
+ * the node of the subtree is the slot in the middle, with the slots of the smaller half before it and of the larger
+ * half after it. Each node keeps the box that holds all the values of its subtree and, like {@link NutrientIndex}, the
+ * smallest grid position of a slot with products in its subtree. A search skips the subtrees whose box is outside the
+ * query or whose first stocked slot comes after the best slot found so far, and does not go into the subtrees whose
+ * box is inside the query.
+ *
+ * A slot that gets a product after the tree was built is not placed into it at once: it is kept in a short list of
+ * pending slots that a search checks one by one, and the tree is built again with them only when the list is full.
+ * Its size grows with the square root of the slots in the tree, so a fill mixed with queries does not build the tree
+ * for every new slot, and the list stays short to check.
+ */
+public class NutrientTree {
+    private static final int NONE = Integer.MAX_VALUE;
+    private static final int DIMENSIONS = CompoundQuery.ATTRIBUTES;
+    private static final int PENDING = -2; // Place of a slot that is in the list of pending slots.
+    private static final int MIN_PENDING = 64; // Pending slots that are kept before the tree is built again.
+
+    private final Slot[][] machine;
+    private final int columns;
+
+    private int count; // Number of slots in the tree.
+    private int[] positions; // Grid position of the slot at each place, in the order of the nodes.
+    private float[] points; // Values of the slot at each place, DIMENSIONS values for each.
+    private float[] lowerBounds; // Lowest values in the subtree of each node, DIMENSIONS values for each.
+    private float[] upperBounds; // Highest values in the subtree of each node, DIMENSIONS values for each.
+    private int[] minStocked; // Smallest grid position of a slot with products in the subtree of each node.
+    private int[] placeOf; // Place of each grid position in the tree, -1 if the slot has no product, or PENDING.
+    private int[] pending; // Grid positions of the slots that got a product after the tree was built.
+    private float[] pendingPoints; // Values of the pending slots, DIMENSIONS values for each.
+    private int pendingCount;
+    private boolean stale; // True if too many products were placed to new slots and the tree must be built again.
+
+    /**
+     * Builds the tree from the current state of the machine.
+     *
+     * @param machine A 2D array of {@link Slot} objects representing the machine slots.
+     */
+    public NutrientTree(Slot[][] machine) {
+        this.machine = machine;
+        this.columns = machine.length == 0 ? 0 : machine[0].length;
+        build();
+    }
+
+    /**
+     * Places the slots that hold a product into the tree, splitting each subtree at the median of the attribute whose
+     * values are the most spread in it.
+     */
+    private void build() {
+        placeOf = new int[machine.length * columns];
+        Arrays.fill(placeOf, -1);
+        count = 0;
+        positions = new int[machine.length * columns];
+        for (int position = 0; position < positions.length; position++) {
+            if (slotAt(position).product != null) {
+                positions[count++] = position;
+            }
+        }
+        positions = Arrays.copyOf(positions, count);
+        points = new float[count * DIMENSIONS];
+        for (int place = 0; place < count; place++) {
+            Product product = slotAt(positions[place]).product;
+            for (int d = 0; d < DIMENSIONS; d++) {
+                points[place * DIMENSIONS + d] = CompoundQuery.valueOf(product, d);
+            }
+        }
+        lowerBounds = new float[count * DIMENSIONS];
+        upperBounds = new float[count * DIMENSIONS];
+        minStocked = new int[count];
+        split(0, count);
+        for (int place = 0; place < count; place++) {
+            placeOf[positions[place]] = place;
+        }
+        int maxPending = Math.max(MIN_PENDING, 4 * (int) Math.sqrt(count));
+        pending = new int[maxPending];
+        pendingPoints = new float[maxPending * DIMENSIONS];
+        pendingCount = 0;
+        stale = false;
+    }
+
+    /**
+     * Builds the subtree of the slots between from and to, and returns the smallest stocked grid position in it.
+     */
+    private int split(int from, int to) {
+        if (from >= to) {
+            return NONE;
+        }
+        int node = (from + to) >>> 1;
+        int widest = 0;
+        float widestSpread = -1;
+        for (int d = 0; d < DIMENSIONS; d++) {
+            float lower = Float.POSITIVE_INFINITY;
+            float upper = Float.NEGATIVE_INFINITY;
+            for (int place = from; place < to; place++) {
+                float value = points[place * DIMENSIONS + d];
+                lower = Math.min(lower, value);
+                upper = Math.max(upper, value);
+            }
+            lowerBounds[node * DIMENSIONS + d] = lower;
+            upperBounds[node * DIMENSIONS + d] = upper;
+            if (upper - lower > widestSpread) {
+                widestSpread = upper - lower;
+                widest = d;
+            }
+        }
+        select(from, to - 1, node, widest);
+        int stocked = Math.min(split(from, node), split(node + 1, to));
+        minStocked[node] = Math.min(stocked, stockedPosition(node));
+        return minStocked[node];
+    }
+
+    /**
+     * Moves the slots between from and to (inclusive) so that the slot at the given place has the value it would have
+     * if they were sorted by the attribute, with no larger value before it and no smaller value after it.
+     */
+    private void select(int from, int to, int place, int attribute) {
+        while (from < to) {
+            float pivot = points[((from + to) >>> 1) * DIMENSIONS + attribute];
+            int i = from;
+            int j = to;
+            while (i <= j) {
+                while (points[i * DIMENSIONS + attribute] < pivot) {
+                    i++;
+                }
+                while (points[j * DIMENSIONS + attribute] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (place <= j) {
+                to = j;
+            } else if (place >= i) {
+                from = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void swap(int a, int b) {
+        int position = positions[a];
+        positions[a] = positions[b];
+        positions[b] = position;
+        for (int d = 0; d < DIMENSIONS; d++) {
+            float value = points[a * DIMENSIONS + d];
+            points[a * DIMENSIONS + d] = points[b * DIMENSIONS + d];
+            points[b * DIMENSIONS + d] = value;
+        }
+    }
+
+    /**
+     * Updates the tree after the capacity or the product of a slot has changed, for example when its last product
+     * is bought or when it is refilled.
+     *
+     * @param position Grid position of the slot.
+     */
+    public void update(int position) {
+        if (stale) {
+            return;
+        }
+        int place = placeOf[position];
+        if (place == -1 && slotAt(position).product != null) { //A product was placed to an empty slot.
+            addPending(position);
+        } else if (place >= 0) { //A pending slot is checked with its capacity by every search.
+            pull(0, count, place);
+        }
+    }
+
+    /**
+     * Keeps a slot that got a product in the list of pending slots, or marks the tree to be built again if the list is
+     * full.
+     */
+    private void addPending(int position) {
+        if (pendingCount == pending.length) {
+            stale = true;
+            return;
+        }
+        Product product = slotAt(position).product;
+        for (int d = 0; d < DIMENSIONS; d++) {
+            pendingPoints[pendingCount * DIMENSIONS + d] = CompoundQuery.valueOf(product, d);
+        }
+        pending[pendingCount++] = position;
+        placeOf[position] = PENDING;
+    }
+
+    /**
+     * Updates the smallest stocked grid position of the nodes from the root down to the given place.
+     */
+    private int pull(int from, int to, int place) {
+        int node = (from + to) >>> 1;
+        int left = place < node ? pull(from, node, place) : minOf(from, node);
+        int right = place > node ? pull(node + 1, to, place) : minOf(node + 1, to);
+        minStocked[node] = Math.min(Math.min(left, right), stockedPosition(node));
+        return minStocked[node];
+    }
+
+    private int minOf(int from, int to) {
+        return from < to ? minStocked[(from + to) >>> 1] : NONE;
+    }
+
+    /**
+     * Marks the tree to be built again by the next search, after the slots were changed without {@link #update}.
+     */
+    public void invalidate() {
+        stale = true;
+    }
+
+    /**
+     * @return True if products were placed to more new slots than the tree keeps pending, and the tree will be built
+     * again by the next search.
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * Finds the first slot in grid order that has products and whose values are all within the query.
+     *
+     * @param query The {@link CompoundQuery} that gives the accepted values.
+     * @return The grid position (row * columns + column) of the slot, or -1 if there is no such slot.
+     */
+    public int find(CompoundQuery query) {
+        if (stale) {
+            build();
+        }
+        int best = find(query, 0, count, NONE);
+        for (int i = 0; i < pendingCount; i++) {
+            int position = pending[i];
+            if (position < best && slotAt(position).capacity > 0 && matches(pendingPoints, i, query)) {
+                best = position;
+            }
+        }
+        return best == NONE ? -1 : best;
+    }
+
+    /**
+     * Searches the subtree of the slots between from and to.
+     *
+     * @return The smaller one of best and the grid position found in the subtree.
+     */
+    private int find(CompoundQuery query, int from, int to, int best) {
+        if (from >= to) {
+            return best;
+        }
+        int node = (from + to) >>> 1;
+        if (minStocked[node] >= best) { //Nothing in the subtree comes before the slot found so far.
+            return best;
+        }
+        boolean inside = true;
+        for (int d = 0; d < DIMENSIONS; d++) {
+            float lower = query.getLowerBound(d);
+            float upper = query.getUpperBound(d);
+            float nodeLower = lowerBounds[node * DIMENSIONS + d];
+            float nodeUpper = upperBounds[node * DIMENSIONS + d];
+            if (nodeUpper < lower || nodeLower > upper) {
+                return best;
+            }
+            inside &= nodeLower >= lower && nodeUpper <= upper;
+        }
+        if (inside) { //Every slot of the subtree matches, so its first stocked slot is the answer.
+            return minStocked[node];
+        }
+        if (stockedPosition(node) < best && matches(points, node, query)) {
+            best = positions[node];
+        }
+        int left = minOf(from, node);
+        int right = minOf(node + 1, to);
+        if (left <= right) { //The half with the earlier slot is searched first, so the other one is skipped more often.
+            best = find(query, from, node, best);
+            return find(query, node + 1, to, best);
+        }
+        best = find(query, node + 1, to, best);
+        return find(query, from, node, best);
+    }
+
+    private static boolean matches(float[] points, int place, CompoundQuery query) {
+        for (int d = 0; d < DIMENSIONS; d++) {
+            float value = points[place * DIMENSIONS + d];
+            if (value < query.getLowerBound(d) || value > query.getUpperBound(d)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int stockedPosition(int place) {
+        return slotAt(positions[place]).capacity > 0 ? positions[place] : NONE;
+    }
+
+    private Slot slotAt(int position) {
+        return machine[position / columns][position % columns];
+    }
+}
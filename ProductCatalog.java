@@ -0,0 +1,69 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps one {@link Product} object for each product name that has been loaded into the machine. Every product also
+ * gets an ID, which is the order it was first seen in, so a product can be found by its name with a hash lookup or
+ * by its ID with an array lookup.
+ */
+public class ProductCatalog {
+    private final Map<String, Integer> ids = new HashMap<>(); // ID of each product name.
+    private final List<Product> products = new ArrayList<>(); // Products in the order of their IDs.
+
+    /**
+     * Returns the product with the given name if it is already in the catalog; otherwise, creates a new product with
+     * the given values, adds it to the catalog and returns it.
+     *
+     * @param name         The name of the product.
+     * @param price        The price of the product.
+     * @param protein      The protein content of the product.
+     * @param carbohydrate The carbohydrate content of the product.
+     * @param fat          The fat content of the product.
+     * @return The {@link Product} object found in or added to the catalog.
+     */
+    public Product getOrCreate(String name, int price, float protein, float carbohydrate, float fat) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return products.get(id);
+        }
+        Product newProduct = new Product(name, price, protein, carbohydrate, fat, 1);
+        ids.put(name, products.size());
+        products.add(newProduct);
+        return newProduct;
+    }
+
+    /**
+     * @param name The name of the product.
+     * @return The {@link Product} with the given name, or null if there is no such product.
+     */
+    public Product get(String name) {
+        Integer id = ids.get(name);
+        return id == null ? null : products.get(id);
+    }
+
+    /**
+     * @param id The ID of the product.
+     * @return The {@link Product} with the given ID.
+     */
+    public Product get(int id) {
+        return products.get(id);
+    }
+
+    /**
+     * @param name The name of the product.
+     * @return The ID of the product with the given name, or -1 if there is no such product.
+     */
+    public int idOf(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @return Number of different products in the catalog.
+     */
+    public int size() {
+        return products.size();
+    }
+}
@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The product file in a binary format that is filled into the machine without parsing any text. It is written from
+ * the text product file by {@link #convert} (or {@link ColumnarConverter}) and filled by
+ * {@link GMMOutput#fill(TransactionLog, ProductColumns, Machine)}.
+ *
+ * The file starts with a header (the magic number, the format version, the number of lines and the number of
+ * different names), followed by the name dictionary (each name in UTF-8 after its length) and one fixed-width record
+ * for each line of the text file: the index of the name in the dictionary, the price, the protein, the carbohydrate
+ * and the fat. The file ends with the CRC32 of everything before it. The byte order is described at
+ * {@link ColumnarConverter}.
+ *
+ * The records are read directly from the memory mapped file; only the names are decoded when the file is opened.
+ */
+public class ProductColumns {
+    private static final int MAGIC = 0x474D4D50; // "GMMP"
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+    private static final int RECORD_SIZE = 2 * Integer.BYTES + 3 * Float.BYTES;
+
+    private final ByteBuffer buffer;
+    private final String[] names; // The name dictionary.
+    private final int records; // Number of lines of the text file.
+    private final int recordStart; // Place of the first record in the buffer.
+
+    private ProductColumns(ByteBuffer buffer, String[] names, int records, int recordStart) {
+        this.buffer = buffer;
+        this.names = names;
+        this.records = records;
+        this.recordStart = recordStart;
+    }
+
+    /**
+     * Converts a text product file to the binary format. The lines are parsed like {@link GMMOutput#fill} does, so a
+     * line that the fill could not read stops the conversion.
+     *
+     * @param textPath   Path to the text product file.
+     * @param binaryPath Path to the binary file that is written.
+     * @return Number of lines converted, or -1 if an error occurred.
+     */
+    public static int convert(String textPath, String binaryPath) {
+        Map<String, Integer> ids = new HashMap<>();
+        List<byte[]> names = new ArrayList<>();
+        long namesSize = 0;
+        ByteBuffer records = ByteBuffer.allocate(1024 * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        int count = 0;
+        try (MappedFileInput input = new MappedFileInput(textPath, false, false)) {
+            for (CharSequence line : input) {
+                String[] parts = line.toString().split("\t");
+                String[] foodValues = parts[2].split(" ");
+                Integer id = ids.get(parts[0]);
+                if (id == null) {
+                    id = names.size();
+                    ids.put(parts[0], id);
+                    names.add(parts[0].getBytes(StandardCharsets.UTF_8));
+                    namesSize += Integer.BYTES + names.get(id).length;
+                }
+                if (records.remaining() < RECORD_SIZE) {
+                    records = ByteBuffer.allocate(records.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN).put(records.flip());
+                }
+                records.putInt(id).putInt(Integer.parseInt(parts[1])).putFloat(Float.parseFloat(foodValues[0]))
+                        .putFloat(Float.parseFloat(foodValues[1])).putFloat(Float.parseFloat(foodValues[2]));
+                count++;
+            }
+        } catch (RuntimeException e) { //The line cannot be filled, so it cannot be converted either.
+            e.printStackTrace();
+            return -1;
+        }
+
+        long size = HEADER_SIZE + namesSize + records.position() + Long.BYTES;
+        if (size > Integer.MAX_VALUE) {
+            System.err.println("The product file is too large for the binary format.");
+            return -1;
+        }
+        ByteBuffer buffer = ColumnarConverter.allocate((int) size, MAGIC, VERSION);
+        buffer.putInt(count).putInt(names.size());
+        for (byte[] name : names) {
+            buffer.putInt(name.length).put(name);
+        }
+        buffer.put(records.flip());
+        return ColumnarConverter.write(buffer, binaryPath) == 0 ? count : -1;
+    }
+
+    /**
+     * @param path Path to a product file.
+     * @return True if the file starts with the magic number of the binary format.
+     */
+    public static boolean isColumnar(String path) {
+        return ColumnarConverter.hasMagic(path, MAGIC);
+    }
+
+    /**
+     * Opens a binary product file.
+     *
+     * @param path Path to the binary product file.
+     * @return The opened file, or null if it cannot be read or is not valid.
+     */
+    public static ProductColumns open(String path) {
+        try {
+            ByteBuffer buffer = ColumnarConverter.map(path, MAGIC, VERSION);
+            int records = buffer.getInt();
+            String[] names = new String[buffer.getInt()];
+            for (int id = 0; id < names.length; id++) {
+                byte[] name = new byte[buffer.getInt()];
+                buffer.get(name);
+                names[id] = new String(name, StandardCharsets.UTF_8);
+            }
+            if (records < 0 || (long) records * RECORD_SIZE != buffer.remaining()) {
+                throw new IOException("The file has a wrong number of records: " + path);
+            }
+            ProductColumns columns = new ProductColumns(buffer, names, records, buffer.position());
+            for (int i = 0; i < records; i++) {
+                if (columns.nameId(i) < 0 || columns.nameId(i) >= names.length) {
+                    throw new IOException("The record " + i + " has a wrong name: " + path);
+                }
+            }
+            return columns;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return Number of records, which is the number of lines of the text file.
+     */
+    public int size() {
+        return records;
+    }
+
+    /**
+     * @return Number of different names.
+     */
+    public int nameCount() {
+        return names.length;
+    }
+
+    /**
+     * @param record The index of a record.
+     * @return The index of the name of the record in the dictionary; records with the same name have the same index.
+     */
+    public int nameId(int record) {
+        return buffer.getInt(recordStart + record * RECORD_SIZE);
+    }
+
+    public String getName(int record) {
+        return names[nameId(record)];
+    }
+
+    public int getPrice(int record) {
+        return buffer.getInt(recordStart + record * RECORD_SIZE + Integer.BYTES);
+    }
+
+    public float getProtein(int record) {
+        return buffer.getFloat(recordStart + record * RECORD_SIZE + 2 * Integer.BYTES);
+    }
+
+    public float getCarbonhydrate(int record) {
+        return buffer.getFloat(recordStart + record * RECORD_SIZE + 2 * Integer.BYTES + Float.BYTES);
+    }
+
+    public float getFat(int record) {
+        return buffer.getFloat(recordStart + record * RECORD_SIZE + 2 * Integer.BYTES + 2 * Float.BYTES);
+    }
+}
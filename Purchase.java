@@ -1,16 +1,33 @@
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * Represents one line of the purchase file. An object can be reused for many lines: {@link PurchaseParser} writes
+ * the inserted coins to an int array that grows when needed, so parsing a line does not create new objects.
+ */
 public class Purchase {
     private String Cash;
     private List<Integer> Money;
     private String Choice;
     private int Value;
+    private int[] coins = new int[8]; // Inserted coins in the order they are written, including the rejected ones.
+    private int coinCount;
+    private int validTotal; // Total of the accepted coins.
+    private CompoundQuery query; // Conditions of a QUERY purchase, created for the first one.
+    private int slot = -1; // Grid position of the slot the machine found for a nutrient or query choice, -1 if none.
+
     public Purchase(String cash, List<Integer> money, String choice, int value) {
         Cash = cash;
         Money = money;
         Choice = choice;
         Value = value;
     }
+
+    /**
+     * Constructs an empty purchase that is going to be filled by {@link PurchaseParser}.
+     */
+    public Purchase() {
+    }
     public void setMoney(List<Integer> money) {
         Money = money;
     }
@@ -46,4 +63,80 @@ public class Purchase {
     public void setValue(int value) {
         Value = value;
     }
+
+    /**
+     * Removes all the coins and sets the total of the accepted coins to 0.
+     */
+    public void clearCoins() {
+        coinCount = 0;
+        validTotal = 0;
+    }
+
+    /**
+     * Adds an inserted coin to the purchase.
+     *
+     * @param coin     Value of the coin.
+     * @param accepted True if the machine accepts the coin, so that it is added to the total.
+     */
+    public void addCoin(int coin, boolean accepted) {
+        if (coinCount == coins.length) {
+            coins = Arrays.copyOf(coins, coinCount * 2);
+        }
+        coins[coinCount++] = coin;
+        if (accepted) {
+            validTotal += coin;
+        }
+    }
+
+    /**
+     * Replaces the coins of the purchase with a part of an array, for a purchase that is read from columns instead
+     * of being parsed.
+     *
+     * @param source     The array that holds the coins.
+     * @param from       Place of the first coin in the array.
+     * @param count      Number of coins.
+     * @param validTotal Total of the coins that the machine accepts.
+     */
+    public void setCoins(int[] source, int from, int count, int validTotal) {
+        if (count > coins.length) {
+            coins = new int[Math.max(count, coins.length * 2)];
+        }
+        System.arraycopy(source, from, coins, 0, count);
+        this.coinCount = count;
+        this.validTotal = validTotal;
+    }
+
+    public int getCoinCount() {
+        return coinCount;
+    }
+
+    public int getCoin(int index) {
+        return coins[index];
+    }
+
+    public int getValidTotal() {
+        return validTotal;
+    }
+
+    /**
+     * @return Grid position of the slot that the machine found for the last nutrient or QUERY choice of this purchase,
+     * also when the product could not be bought from it, or -1 if no slot was found.
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    public void setSlot(int slot) {
+        this.slot = slot;
+    }
+
+    /**
+     * @return The conditions of the purchase if its choice is QUERY. The same object is filled again for every line.
+     */
+    public CompoundQuery getQuery() {
+        if (query == null) {
+            query = new CompoundQuery();
+        }
+        return query;
+    }
 }
@@ -0,0 +1,281 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The purchase file in a column-oriented binary format, which fills a {@link Purchase} without parsing any text. It is
+ * written from the text purchase file by {@link #convert} (or {@link ColumnarConverter}) and read by
+ * {@link GMMOutput#purchase(TransactionLog, Machine, PurchaseColumns)}.
+ *
+ * The file starts with a header (the magic number, the format version, the number of lines, the number of coins and
+ * the number of raw lines), followed by the columns: the choice code of each line as a byte (padded to a multiple of
+ * four bytes), the value of each line, the total of the accepted coins of each line, the end of the coins of each
+ * line in the coin column, the coins of all lines one after another, and the raw lines (each in UTF-8 after its
+ * length). The file ends with the CRC32 of everything before it. The byte order is described at
+ * {@link ColumnarConverter}.
+ *
+ * A line whose text is exactly what its parts give back (CASH, the coins separated by single spaces, a nutrient or
+ * NUMBER, and the value) is kept in the columns. Every other line, for example a QUERY, an unknown choice or a line
+ * that cannot be parsed, is kept as raw text with the RAW choice code and the index of the text as its value; it is
+ * parsed by {@link PurchaseParser} when it is read. So the log is the same as the one the text file gives.
+ *
+ * The columns are copied from the memory mapped file into primitive arrays with bulk reads when the file is opened.
+ * The text of a line is only needed for the log; it is built again in a buffer that is reused for every line, so an
+ * object should be read by one thread at a time.
+ */
+public class PurchaseColumns implements Iterable<CharSequence> {
+    private static final int MAGIC = 0x474D4D42; // "GMMB"
+    public static final int VERSION = 1;
+    private static final int HEADER_SIZE = 5 * Integer.BYTES;
+    // The choices of the choice codes; the code of a nutrient is its ordinal.
+    private static final String[] CHOICES = {"PROTEIN", "CARB", "FAT", "CALORIE", "NUMBER"};
+    private static final int RAW = CHOICES.length;
+    private static final String CASH = "CASH";
+
+    private final byte[] choices; // Choice code of each line.
+    private final int[] values; // Value of each line, or the index of its text if it is raw.
+    private final int[] totals; // Total of the accepted coins of each line.
+    private final int[] coinEnds; // End of the coins of each line in the coin column.
+    private final int[] coins; // The coins of all lines one after another.
+    private final String[] raw; // The lines that are kept as text.
+    private final StringBuilder line = new StringBuilder(); // The text of the last line that was built.
+
+    private PurchaseColumns(byte[] choices, int[] values, int[] totals, int[] coinEnds, int[] coins, String[] raw) {
+        this.choices = choices;
+        this.values = values;
+        this.totals = totals;
+        this.coinEnds = coinEnds;
+        this.coins = coins;
+        this.raw = raw;
+    }
+
+    /**
+     * Converts a text purchase file to the binary format.
+     *
+     * @param textPath   Path to the text purchase file.
+     * @param binaryPath Path to the binary file that is written.
+     * @return Number of lines converted, or -1 if an error occurred.
+     */
+    public static int convert(String textPath, String binaryPath) {
+        int count = 0;
+        byte[] choices = new byte[1024];
+        int[] values = new int[1024];
+        int[] totals = new int[1024];
+        int[] coinEnds = new int[1024];
+        int[] coins = new int[1024];
+        int coinCount = 0;
+        List<byte[]> rawLines = new ArrayList<>();
+        long rawSize = 0;
+        Purchase purchase = new Purchase();
+        StringBuilder text = new StringBuilder();
+        try (MappedFileInput input = new MappedFileInput(textPath, false, false)) {
+            for (CharSequence line : input) {
+                if (count == values.length) {
+                    choices = Arrays.copyOf(choices, count * 2);
+                    values = Arrays.copyOf(values, count * 2);
+                    totals = Arrays.copyOf(totals, count * 2);
+                    coinEnds = Arrays.copyOf(coinEnds, count * 2);
+                }
+                int code = choiceCode(line, purchase, text);
+                if (code == RAW) {
+                    values[count] = rawLines.size();
+                    rawLines.add(line.toString().getBytes(StandardCharsets.UTF_8));
+                    rawSize += Integer.BYTES + rawLines.get(rawLines.size() - 1).length;
+                } else {
+                    values[count] = purchase.getValue();
+                    totals[count] = purchase.getValidTotal();
+                    if (coinCount + purchase.getCoinCount() > coins.length) {
+                        coins = Arrays.copyOf(coins, Math.max(coins.length * 2, coinCount + purchase.getCoinCount()));
+                    }
+                    for (int k = 0; k < purchase.getCoinCount(); k++) {
+                        coins[coinCount++] = purchase.getCoin(k);
+                    }
+                }
+                choices[count] = (byte) code;
+                coinEnds[count] = coinCount;
+                count++;
+            }
+        }
+
+        long size = HEADER_SIZE + padded(count) + 3L * count * Integer.BYTES + (long) coinCount * Integer.BYTES + rawSize + Long.BYTES;
+        if (size > Integer.MAX_VALUE) {
+            System.err.println("The purchase file is too large for the binary format.");
+            return -1;
+        }
+        ByteBuffer buffer = ColumnarConverter.allocate((int) size, MAGIC, VERSION);
+        buffer.putInt(count).putInt(coinCount).putInt(rawLines.size());
+        buffer.put(choices, 0, count).position(buffer.position() + padded(count) - count);
+        for (int[] column : new int[][]{values, totals, coinEnds}) {
+            buffer.asIntBuffer().put(column, 0, count);
+            buffer.position(buffer.position() + count * Integer.BYTES);
+        }
+        buffer.asIntBuffer().put(coins, 0, coinCount);
+        buffer.position(buffer.position() + coinCount * Integer.BYTES);
+        for (byte[] rawLine : rawLines) {
+            buffer.putInt(rawLine.length).put(rawLine);
+        }
+        return ColumnarConverter.write(buffer, binaryPath) == 0 ? count : -1;
+    }
+
+    /**
+     * Parses a line and decides how it is kept.
+     *
+     * @return The choice code of the line if its parts give back its text exactly, or RAW.
+     */
+    private static int choiceCode(CharSequence line, Purchase purchase, StringBuilder text) {
+        try {
+            PurchaseParser.parse(line, purchase);
+        } catch (RuntimeException e) { //The line is parsed again when it is read, which throws the same exception.
+            return RAW;
+        }
+        int code = Arrays.asList(CHOICES).indexOf(purchase.getChoice());
+        if (code == -1 || !purchase.getCash().equals(CASH)) {
+            return RAW;
+        }
+        text.setLength(0);
+        text.append(CASH).append('\t');
+        for (int k = 0; k < purchase.getCoinCount(); k++) {
+            text.append(k == 0 ? "" : " ").append(purchase.getCoin(k));
+        }
+        text.append('\t').append(CHOICES[code]).append('\t').append(purchase.getValue());
+        return text.toString().contentEquals(line) ? code : RAW;
+    }
+
+    private static int padded(int bytes) {
+        return (bytes + 3) & ~3;
+    }
+
+    /**
+     * @param path Path to a purchase file.
+     * @return True if the file starts with the magic number of the binary format.
+     */
+    public static boolean isColumnar(String path) {
+        return ColumnarConverter.hasMagic(path, MAGIC);
+    }
+
+    /**
+     * Opens a binary purchase file and checks that its columns fit together.
+     *
+     * @param path Path to the binary purchase file.
+     * @return The opened file, or null if it cannot be read or is not valid.
+     */
+    public static PurchaseColumns open(String path) {
+        try {
+            ByteBuffer buffer = ColumnarConverter.map(path, MAGIC, VERSION);
+            int lines = buffer.getInt();
+            int coinCount = buffer.getInt();
+            String[] raw = new String[buffer.getInt()];
+            if (lines < 0 || coinCount < 0 || padded(lines) + 3L * lines * Integer.BYTES + (long) coinCount * Integer.BYTES > buffer.remaining()) {
+                throw new IOException("The columns do not fit in the file: " + path);
+            }
+            byte[] choices = new byte[lines];
+            int[] values = new int[lines];
+            int[] totals = new int[lines];
+            int[] coinEnds = new int[lines];
+            int[] coins = new int[coinCount];
+            buffer.get(choices).position(buffer.position() + padded(lines) - lines);
+            for (int[] column : new int[][]{values, totals, coinEnds, coins}) {
+                buffer.asIntBuffer().get(column);
+                buffer.position(buffer.position() + column.length * Integer.BYTES);
+            }
+            for (int i = 0; i < raw.length; i++) {
+                byte[] text = new byte[buffer.getInt()];
+                buffer.get(text);
+                raw[i] = new String(text, StandardCharsets.UTF_8);
+            }
+            int previousEnd = 0;
+            for (int i = 0; i < lines; i++) {
+                if (choices[i] < 0 || choices[i] > RAW || coinEnds[i] < previousEnd || coinEnds[i] > coinCount
+                        || (choices[i] == RAW && (values[i] < 0 || values[i] >= raw.length))) {
+                    throw new IOException("The line " + i + " has wrong columns: " + path);
+                }
+                previousEnd = coinEnds[i];
+            }
+            return new PurchaseColumns(choices, values, totals, coinEnds, coins, raw);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return Number of lines of the text file.
+     */
+    public int size() {
+        return choices.length;
+    }
+
+    /**
+     * Fills the purchase from the columns of a line. A raw line is parsed instead.
+     *
+     * @param index    The index of the line.
+     * @param purchase The {@link Purchase} that is going to be filled.
+     * @throws IllegalArgumentException If the line is raw and cannot be parsed, like {@link PurchaseParser#parse}.
+     */
+    public void read(int index, Purchase purchase) {
+        int code = choices[index];
+        if (code == RAW) {
+            PurchaseParser.parse(raw[values[index]], purchase);
+            return;
+        }
+        purchase.setCash(CASH);
+        int first = coinStart(index);
+        purchase.setCoins(coins, first, coinEnds[index] - first, totals[index]);
+        purchase.setChoice(CHOICES[code]);
+        purchase.setValue(values[index]);
+    }
+
+    /**
+     * Gives the text of a line, which is only needed for the log; it is built again from the columns.
+     *
+     * @param index The index of the line.
+     * @return The text of the line, valid until the next line is built.
+     */
+    public CharSequence line(int index) {
+        int code = choices[index];
+        if (code == RAW) {
+            return raw[values[index]];
+        }
+        line.setLength(0);
+        line.append(CASH).append('\t');
+        int first = coinStart(index);
+        for (int k = first; k < coinEnds[index]; k++) {
+            line.append(k == first ? "" : " ").append(coins[k]);
+        }
+        line.append('\t').append(CHOICES[code]).append('\t').append(values[index]);
+        return line;
+    }
+
+    /**
+     * Gives the text of every line, so the file can be used where the lines of a text file are expected, for example
+     * by {@link PurchasePipeline}. The same buffer is returned for every line.
+     */
+    @Override
+    public Iterator<CharSequence> iterator() {
+        return new Iterator<>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < choices.length;
+            }
+
+            @Override
+            public CharSequence next() {
+                if (next >= choices.length) {
+                    throw new NoSuchElementException();
+                }
+                return line(next++);
+            }
+        };
+    }
+
+    private int coinStart(int index) {
+        return index == 0 ? 0 : coinEnds[index - 1];
+    }
+}
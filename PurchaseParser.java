@@ -0,0 +1,127 @@
+/**
+ * Parses the lines of the purchase file into a reusable {@link Purchase} object. A line has four fields separated by
+ * tabs: the payment type, the inserted coins separated by spaces, the choice and the wanted value, which is a list of
+ * conditions for the QUERY choice (see {@link CompoundQuery}). The line is read
+ * only once and the numbers are parsed directly from it, so unlike splitting the line no strings, boxed integers or
+ * lists are created for a line.
+ */
+public class PurchaseParser {
+    // The coins the machine accepts: 1, 5, 10, 20, 50, 100 and 200 TL.
+    private static final boolean[] ACCEPTED = new boolean[201];
+    // The choices are shared instead of being cut from the line.
+    private static final String QUERY = "QUERY";
+    private static final String[] CHOICES = {"PROTEIN", "CARB", "FAT", "CALORIE", "NUMBER", QUERY};
+    private static final String CASH = "CASH";
+
+    static {
+        for (int coin : new int[]{1, 5, 10, 20, 50, 100, 200}) {
+            ACCEPTED[coin] = true;
+        }
+    }
+
+    /**
+     * @param coin Value of the coin.
+     * @return True if the machine accepts the coin.
+     */
+    public static boolean isAccepted(int coin) {
+        return coin >= 0 && coin < ACCEPTED.length && ACCEPTED[coin];
+    }
+
+    /**
+     * Parses a line of the purchase file into the given purchase, replacing what it held before.
+     *
+     * @param line     A line of the purchase file.
+     * @param purchase The {@link Purchase} that is going to be filled.
+     * @throws NumberFormatException    If a coin or the value is not a number.
+     * @throws IllegalArgumentException If the line has less than four fields or the query cannot be understood.
+     */
+    public static void parse(CharSequence line, Purchase purchase) {
+        int start = 0;
+        int end = next(line, '\t', start, line.length());
+        purchase.setCash(text(line, start, end, CASH));
+
+        start = end + 1;
+        end = next(line, '\t', start, line.length());
+        parseCoins(line, start, end, purchase);
+
+        start = end + 1;
+        end = next(line, '\t', start, line.length());
+        purchase.setChoice(choice(line, start, end));
+
+        start = end + 1;
+        if (start > line.length()) {
+            throw new IllegalArgumentException("The purchase has no value: " + line);
+        }
+        end = next(line, '\t', start, line.length());
+        if (purchase.getChoice() == QUERY) { //The coins are parsed before, so CASH in the query is known.
+            purchase.getQuery().parse(line, start, end, purchase.getValidTotal());
+            purchase.setValue(0);
+            return;
+        }
+        purchase.setValue(Integer.parseInt(line, start, end, 10));
+    }
+
+    /**
+     * Parses the coins between start and end. Empty coins at the end are ignored, just like splitting the field by spaces.
+     */
+    private static void parseCoins(CharSequence line, int start, int end, Purchase purchase) {
+        if (start >= end) {
+            throw new NumberFormatException("The purchase has no coins: " + line);
+        }
+        purchase.clearCoins();
+        int emptyCoin = -1; // Place of an empty coin; it is an error only if another coin comes after it.
+        while (start <= end) {
+            int coinEnd = next(line, ' ', start, end);
+            if (coinEnd == start) {
+                emptyCoin = emptyCoin == -1 ? start : emptyCoin;
+            } else {
+                if (emptyCoin != -1) {
+                    throw new NumberFormatException("Empty coin in purchase: " + line);
+                }
+                int coin = Integer.parseInt(line, start, coinEnd, 10);
+                purchase.addCoin(coin, isAccepted(coin));
+            }
+            start = coinEnd + 1;
+        }
+    }
+
+    /**
+     * Returns the choice between start and end, using the shared string if it is a known choice.
+     */
+    private static String choice(CharSequence line, int start, int end) {
+        for (String choice : CHOICES) {
+            if (matches(line, start, end, choice)) {
+                return choice;
+            }
+        }
+        return line.subSequence(start, end).toString();
+    }
+
+    private static String text(CharSequence line, int start, int end, String known) {
+        return matches(line, start, end, known) ? known : line.subSequence(start, end).toString();
+    }
+
+    private static boolean matches(CharSequence line, int start, int end, String text) {
+        if (end - start != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (line.charAt(start + i) != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The place of the first separator at or after start, or end if there is none before it.
+     */
+    private static int next(CharSequence line, char separator, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (line.charAt(i) == separator) {
+                return i;
+            }
+        }
+        return end;
+    }
+}
@@ -0,0 +1,324 @@
+import java.io.Writer;
+
+/**
+ * Processes the purchase file like {@link GMMOutput#purchase}, but in stages that run on several threads at once:
+ * <ol>
+ * <li>The calling thread reads the lines into batches.</li>
+ * <li>Worker threads parse the lines of a batch into purchases.</li>
+ * <li>A single thread buys the products in the order of the lines. It is the only thread that changes the machine,
+ * so the results are the same as when the file is processed on one thread.</li>
+ * <li>Worker threads write the messages of a batch into the text of the batch.</li>
+ * <li>A single thread writes the text of the batches to the log in the order of the lines.</li>
+ * </ol>
+ * The stages are connected by {@link BoundedQueue}s. The batches come from a fixed pool and are reused after they are
+ * written, so the reader waits when the later stages fall behind and the memory use does not grow with the file. The
+ * queues share one {@link Signal}, which is also signaled when a batch is parsed or formatted and when the pipeline
+ * stops, so a waiting thread blocks whatever it waits for.
+ *
+ * The log is the same as the one {@link GMMOutput#purchase} writes. If a line cannot be parsed, the lines before it are
+ * processed and written, and the exception of the parser is thrown.
+ */
+public class PurchasePipeline {
+    public static final int BATCH_SIZE = 1024; // Lines in a batch.
+
+    private final Machine machine;
+    private final BoundedQueue<Batch> free; // Batches the reader can fill.
+    private final BoundedQueue<Batch> parse; // Batches to parse, in any order.
+    private final BoundedQueue<Batch> decide; // Batches in the order of the lines, for the buying thread.
+    private final BoundedQueue<Batch> format; // Bought batches to write the messages of, in any order.
+    private final BoundedQueue<Batch> write; // Bought batches in the order of the lines, for the writing thread.
+    private final Signal progress = new Signal(); // Signaled on every change the threads wait for.
+    private final long linesBefore; // Purchase lines that were done before the pipeline, by a run that was interrupted.
+    private volatile boolean done; // Set when the last batch was written or a stage failed.
+    private volatile Throwable failure;
+
+    /**
+     * A batch of lines with everything the stages work out for them.
+     */
+    private static class Batch {
+        final String[] lines = new String[BATCH_SIZE];
+        final Purchase[] purchases = new Purchase[BATCH_SIZE];
+        final int[] results = new int[BATCH_SIZE];
+        final int[][] changes = new int[BATCH_SIZE][CoinInventory.DENOMINATIONS.length];
+        final StringBuilder text = new StringBuilder();
+        final TransactionLog log = new TransactionLog(new TextWriter(text)); // Writes the messages into the text.
+        int count;
+        boolean last; // True for the last batch of the file.
+        RuntimeException error; // The exception of the first line that could not be parsed.
+        int errorLine;
+        volatile boolean parsed;
+        volatile boolean formatted;
+
+        Batch() {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                purchases[i] = new Purchase();
+            }
+        }
+
+        void reset() {
+            count = 0;
+            last = false;
+            error = null;
+            parsed = false;
+            formatted = false;
+        }
+    }
+
+    private PurchasePipeline(Machine machine, int batches) {
+        this.machine = machine;
+        this.linesBefore = machine.getLinesDone(Machine.PURCHASE_FILE);
+        this.free = new BoundedQueue<>(batches, progress);
+        this.parse = new BoundedQueue<>(batches, progress);
+        this.decide = new BoundedQueue<>(batches, progress);
+        this.format = new BoundedQueue<>(batches, progress);
+        this.write = new BoundedQueue<>(batches, progress);
+        for (int i = 0; i < batches; i++) {
+            free.offer(new Batch());
+        }
+    }
+
+    /**
+     * Handles the purchases of the file with the given number of worker threads.
+     *
+     * @param log             The {@link TransactionLog} that the transaction messages are written to.
+     * @param machine         The {@link Machine} that the products are bought from.
+     * @param purchaseContent The lines of the purchase file. They are read on the calling thread.
+     * @param workers         Number of threads that parse the lines and write the messages.
+     * @return 0, the same status as {@link GMMOutput#purchase}.
+     */
+    public static int purchase(TransactionLog log, Machine machine, Iterable<? extends CharSequence> purchaseContent, int workers) {
+        PurchasePipeline pipeline = new PurchasePipeline(machine, 2 * workers + 4);
+        Thread[] threads = new Thread[workers + 2];
+        for (int i = 0; i < workers; i++) {
+            threads[i] = new Thread(pipeline::work, "purchase-worker-" + i);
+        }
+        threads[workers] = new Thread(pipeline::decide, "purchase-decide");
+        threads[workers + 1] = new Thread(() -> pipeline.write(log), "purchase-write");
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        pipeline.read(purchaseContent);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pipeline.done = true;
+                pipeline.progress.signal();
+            }
+        }
+        if (pipeline.failure instanceof RuntimeException) {
+            throw (RuntimeException) pipeline.failure;
+        } else if (pipeline.failure instanceof Error) {
+            throw (Error) pipeline.failure;
+        }
+        return 0;
+    }
+
+    private boolean stopped() {
+        return done || failure != null;
+    }
+
+    /**
+     * Reads the lines into batches and hands them to the parsing and buying stages.
+     */
+    private void read(Iterable<? extends CharSequence> purchaseContent) {
+        Batch batch = null;
+        for (CharSequence line : purchaseContent) {
+            if (batch == null) {
+                batch = free.take(this::stopped);
+                if (batch == null) {
+                    return;
+                }
+                batch.reset();
+            }
+            batch.lines[batch.count++] = line.toString(); //The line view is reused, so the workers get a copy.
+            if (batch.count == BATCH_SIZE) {
+                if (!submit(batch)) {
+                    return;
+                }
+                batch = null;
+            }
+        }
+        if (batch == null) {
+            batch = free.take(this::stopped);
+            if (batch == null) {
+                return;
+            }
+            batch.reset();
+        }
+        batch.last = true;
+        submit(batch);
+    }
+
+    private boolean submit(Batch batch) {
+        return parse.put(batch, this::stopped) && decide.put(batch, this::stopped);
+    }
+
+    /**
+     * Parses and formats batches until the last batch is written.
+     */
+    private void work() {
+        try {
+            int round = 0;
+            while (!done) {
+                Batch batch = format.poll(); //Formatting first lets the written batches go back to the reader sooner.
+                if (batch != null) {
+                    format(batch);
+                    round = 0;
+                } else if ((batch = parse.poll()) != null) {
+                    parse(batch);
+                    round = 0;
+                } else {
+                    progress.await(round++, () -> done || format.hasElement() || parse.hasElement());
+                }
+            }
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+
+    private void parse(Batch batch) {
+        for (int i = 0; i < batch.count; i++) {
+            try {
+                PurchaseParser.parse(batch.lines[i], batch.purchases[i]);
+            } catch (RuntimeException e) { //It is thrown when the buying stage reaches this line.
+                batch.error = e;
+                batch.errorLine = i;
+                break;
+            }
+        }
+        batch.parsed = true;
+        progress.signal();
+    }
+
+    private void format(Batch batch) {
+        batch.text.setLength(0);
+        for (int i = 0; i < batch.count; i++) {
+            GMMOutput.writePurchase(batch.log, machine, batch.lines[i], batch.purchases[i], batch.results[i], batch.changes[i]);
+        }
+        batch.formatted = true;
+        progress.signal();
+    }
+
+    /**
+     * Buys the products of the batches in the order of the lines.
+     */
+    private void decide() {
+        try {
+            Metrics metrics = machine.getMetrics();
+            while (true) {
+                Batch batch = decide.take(() -> done);
+                if (batch == null || !await(batch, true)) {
+                    return;
+                }
+                int count = batch.error != null ? batch.errorLine : batch.count;
+                for (int i = 0; i < count; i++) {
+                    long start = metrics != null ? System.nanoTime() : 0;
+                    batch.results[i] = GMMOutput.buy(machine, batch.purchases[i], batch.changes[i]);
+                    if (metrics != null) {
+                        GMMOutput.recordPurchase(metrics, batch.purchases[i], batch.results[i], System.nanoTime() - start);
+                    }
+                    GMMOutput.recordSale(machine, batch.purchases[i], batch.results[i]);
+                }
+                if (batch.error != null) { //The lines before the error are still written, and the reader stops.
+                    batch.count = count;
+                    batch.last = true;
+                    failure = batch.error;
+                    progress.signal();
+                }
+                if (!format.put(batch, () -> done) || !write.put(batch, () -> done) || batch.last) {
+                    return;
+                }
+            }
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Writes the text of the batches to the log in the order of the lines. The buying thread journals the lines as
+     * done before they are written, so the lines in the log are journaled here after every batch.
+     */
+    private void write(TransactionLog log) {
+        try {
+            long written = linesBefore;
+            while (true) {
+                Batch batch = write.take(() -> done);
+                if (batch == null || !await(batch, false)) {
+                    return;
+                }
+                log.write(batch.text, false);
+                written += batch.count;
+                GMMOutput.logged(log, machine, Machine.PURCHASE_FILE, written);
+                boolean last = batch.last;
+                free.offer(batch);
+                if (last) {
+                    done = true;
+                    progress.signal();
+                    return;
+                }
+            }
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Waits until the batch is parsed or formatted.
+     *
+     * @return False if the pipeline stopped first.
+     */
+    private boolean await(Batch batch, boolean parsed) {
+        for (int round = 0; parsed ? !batch.parsed : !batch.formatted; round++) {
+            if (done) {
+                return false;
+            }
+            progress.await(round, () -> done || (parsed ? batch.parsed : batch.formatted));
+        }
+        return true;
+    }
+
+    private void fail(Throwable e) {
+        failure = e;
+        done = true;
+        progress.signal();
+    }
+
+    /**
+     * A writer that appends to a string builder without the locking of {@link java.io.StringWriter}. It is also used
+     * by {@link PurchaseServer} to write the reply of a request.
+     */
+    static class TextWriter extends Writer {
+        private final StringBuilder text;
+
+        TextWriter(StringBuilder text) {
+            this.text = text;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            text.append(buffer, offset, length);
+        }
+
+        @Override
+        public void write(String string, int offset, int length) {
+            text.append(string, offset, offset + length);
+        }
+
+        @Override
+        public void write(int character) {
+            text.append((char) character);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,352 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A local network service that takes purchase requests over TCP, so a kiosk can use the machine while it is running.
+ * The protocol is a line protocol: a request is one line in the format of the purchase file, for example
+ * <pre>
+ * CASH	100 50	PROTEIN	30
+ * </pre>
+ * and its reply is the messages the purchase writes to the log (the INPUT line, the rejected coins, and the PURCHASE,
+ * INFO and RETURN lines), followed by an empty line. A request that cannot be parsed is answered with its INPUT line
+ * and an ERROR line. Empty request lines are ignored. A client may send several requests without waiting for their
+ * replies; the replies come in the order of the requests.
+ *
+ * The connections are served by a few event loops, each a thread with its own {@link Selector}, so many thousands of
+ * connections are served without a thread for each of them. A loop buys the products on the machine as the lines
+ * arrive, like {@link GMMOutput#purchase} does, and writes the replies without blocking; it stops reading from a
+ * connection until the replies it has not taken yet are sent. The machine can be used by several loops at once.
+ */
+public class PurchaseServer implements AutoCloseable {
+    public static final int MAX_LINE = 4096; // Longest request line in bytes.
+    private static final int BUFFER_SIZE = 16 * 1024; // Bytes read from a connection at once.
+    private static final int BACKLOG = 4096; // Connections that may wait to be accepted.
+
+    private final Machine machine;
+    private final TransactionLog log;
+    private final ServerSocketChannel server;
+    private final Loop[] loops;
+    private final Thread[] threads;
+    private volatile boolean closed;
+
+    /**
+     * Starts the service on the loopback address.
+     *
+     * @param machine The {@link Machine} that the products are bought from.
+     * @param log     The {@link TransactionLog} that the replies are also written to, or null to write them only to the clients.
+     * @param port    The port to listen on, or 0 for any free port.
+     * @param loops   Number of event loop threads.
+     * @throws IOException If the port cannot be opened.
+     */
+    public PurchaseServer(Machine machine, TransactionLog log, int port, int loops) throws IOException {
+        this.machine = machine;
+        this.log = log;
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        server.configureBlocking(false);
+        this.loops = new Loop[Math.max(1, loops)];
+        this.threads = new Thread[this.loops.length];
+        for (int i = 0; i < threads.length; i++) {
+            this.loops[i] = new Loop(Selector.open()); //Every loop accepts connections, the first one that is woken gets it.
+            server.register(this.loops[i].selector, SelectionKey.OP_ACCEPT);
+            threads[i] = new Thread(this.loops[i], "purchase-server-" + i);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * @return The port the service listens on.
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Stops the loops and closes every connection. The requests that were read before are answered if the replies can
+     * be sent without waiting. Calling it more than once has no effect.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Loop loop : loops) {
+            loop.selector.wakeup();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The state of one connection.
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        byte[] line = new byte[256]; // The bytes of the line that has not ended yet.
+        int lineLength;
+        ByteBuffer output = ByteBuffer.allocate(1024); // Replies that are not sent yet.
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * An event loop: accepts connections, reads their requests, buys the products and sends the replies.
+     */
+    private class Loop implements Runnable {
+        final Selector selector;
+        final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+        final Purchase purchase = new Purchase(); //Filled again for every request, like the lines of a file.
+        final int[] change = new int[CoinInventory.DENOMINATIONS.length];
+        final StringBuilder text = new StringBuilder(); // The request line as characters.
+        final StringBuilder reply = new StringBuilder();
+        final TransactionLog replyLog = new TransactionLog(new PurchasePipeline.TextWriter(reply));
+        final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        Loop(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            if (!key.isValid()) {
+                                continue;
+                            }
+                            if (key.isAcceptable()) {
+                                accept();
+                            } else if (key.isReadable()) {
+                                read(key);
+                            } else if (key.isWritable()) {
+                                send(key);
+                            }
+                        } catch (IOException e) {
+                            if (key.attachment() != null) { //The client is gone, only its connection is closed.
+                                close(key);
+                            } else { //A connection could not be accepted, for example when no file can be opened.
+                                e.printStackTrace();
+                            }
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (!closed) {
+                    e.printStackTrace();
+                }
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() != null) {
+                        close(key);
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel = server.accept();
+            if (channel == null) { //Another loop has accepted it.
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true); //A reply is sent at once, not with the next one.
+            channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            Connection connection = (Connection) key.attachment();
+            input.clear();
+            if (connection.channel.read(input) == -1) {
+                close(key);
+                return;
+            }
+            byte[] bytes = input.array();
+            for (int i = 0; i < input.position(); i++) {
+                byte b = bytes[i];
+                if (b == '\n') {
+                    handle(connection, connection.line, connection.lineLength);
+                    connection.lineLength = 0;
+                } else if (connection.lineLength == MAX_LINE) { //The client does not speak the protocol.
+                    close(key);
+                    return;
+                } else {
+                    if (connection.lineLength == connection.line.length) {
+                        connection.line = Arrays.copyOf(connection.line, Math.min(MAX_LINE, 2 * connection.line.length));
+                    }
+                    connection.line[connection.lineLength++] = b;
+                }
+            }
+            send(key);
+        }
+
+        /**
+         * Buys the product of a request line and adds its reply to the output of the connection.
+         */
+        private void handle(Connection connection, byte[] line, int length) {
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            if (length == 0) {
+                return;
+            }
+            CharSequence request = decode(line, length);
+            reply.setLength(0);
+            Metrics metrics = machine.getMetrics();
+            long start = metrics != null ? System.nanoTime() : 0;
+            try {
+                PurchaseParser.parse(request, purchase);
+                int result = GMMOutput.buy(machine, purchase, change);
+                GMMOutput.writePurchase(replyLog, machine, request, purchase, result, change);
+                if (metrics != null) {
+                    GMMOutput.recordPurchase(metrics, purchase, result, System.nanoTime() - start);
+                }
+                GMMOutput.recordSale(machine, purchase, result);
+            } catch (RuntimeException e) { //Only this request fails, unlike a line of the purchase file.
+                reply.setLength(0);
+                replyLog.write("INPUT: ", false);
+                replyLog.write(request, true);
+                replyLog.write("ERROR: " + e.getMessage(), true);
+            }
+            if (log != null) {
+                synchronized (log) {
+                    log.write(reply, false);
+                }
+            }
+            reply.append('\n');
+            encode(connection);
+        }
+
+        /**
+         * Gives the characters of a line: ASCII bytes are copied as they are, like {@link MappedFileInput} does, and
+         * other lines are decoded as UTF-8.
+         */
+        private CharSequence decode(byte[] line, int length) {
+            text.setLength(0);
+            for (int i = 0; i < length; i++) {
+                if (line[i] < 0) {
+                    return new String(line, 0, length, StandardCharsets.UTF_8);
+                }
+                text.append((char) line[i]);
+            }
+            return text;
+        }
+
+        private void encode(Connection connection) {
+            CharBuffer chars = CharBuffer.wrap(reply);
+            encoder.reset();
+            while (true) {
+                CoderResult result = encoder.encode(chars, connection.output, true);
+                if (!result.isOverflow()) {
+                    result = encoder.flush(connection.output);
+                }
+                if (!result.isOverflow()) {
+                    return;
+                }
+                ByteBuffer larger = ByteBuffer.allocate(2 * connection.output.capacity());
+                connection.output = larger.put(connection.output.flip());
+            }
+        }
+
+        /**
+         * Sends as much of the output as the connection takes. The connection is read again only when all is sent.
+         */
+        private void send(SelectionKey key) throws IOException {
+            Connection connection = (Connection) key.attachment();
+            ByteBuffer output = connection.output.flip();
+            if (output.hasRemaining()) {
+                connection.channel.write(output);
+            }
+            output.compact();
+            key.interestOps(output.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Fills a machine from a product file and serves purchase requests on it until the process is stopped. The log of
+     * the filling, the replies of the requests and the state of the machine at the start and at the end are written to
+     * the output file. The machine is set up by the same system properties as {@link Main}, and gmm.server.loops sets
+     * the number of event loops (the number of processors if not set).
+     *
+     * The method expects three command-line arguments: the product file, the output file and the port. The number of
+     * rows, columns and products per slot may follow, like for {@link Main}.
+     *
+     * @param args An array of {@link String} containing command-line arguments.
+     * @throws IOException If the port cannot be opened.
+     */
+    public static void main(String[] args) throws IOException {
+        Machine machine = args.length >= 6
+                ? new Machine(Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5]))
+                : new Machine();
+        Metrics metrics = Main.configure(machine, args[1]);
+        TransactionLog log = TransactionLog.fromSystemProperties(args[1]);
+        try (MappedFileInput productContent = new MappedFileInput(args[0], false, false)) {
+            GMMOutput.fill(log, productContent, machine);
+        }
+        GMMOutput.writeMachine(log, machine);
+        log.checkpoint();
+
+        PurchaseServer server = new PurchaseServer(machine, log, Integer.parseInt(args[2]),
+                Integer.getInteger("gmm.server.loops", Runtime.getRuntime().availableProcessors()));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> { //The state at the end is written when the process is stopped.
+            server.close();
+            GMMOutput.writeMachine(log, machine);
+            log.close();
+            if (metrics != null) {
+                metrics.close();
+            }
+            if (machine.getAnalytics() != null) {
+                machine.getAnalytics().write(System.getProperty("gmm.analytics"));
+            }
+        }));
+        System.out.println("Listening on port " + server.getPort());
+    }
+}
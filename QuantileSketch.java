@@ -0,0 +1,152 @@
+import java.util.Arrays;
+
+/**
+ * Estimates the quantiles of a stream of values, such as the median of the requested protein values, without keeping
+ * every value. The values are kept in levels of at most k values each; a value of level h stands for 2^h values of the
+ * stream. When a level is full, it is sorted and every second value (starting at the first or the second by chance)
+ * moves to the next level, which halves the values it holds (the compaction of the KLL sketch by Z. Karnin, K. Lang
+ * and E. Liberty). The rank of an estimated quantile is off by about levels / k of the count, where the number of
+ * levels grows with the logarithm of the count, so a billion values need about 22 levels of k values.
+ *
+ * Sketches with the same k can be merged, for example the sketches of several threads. The chance is taken from a
+ * generator with a fixed seed, so the same values always give the same estimates. It is not safe to use from several
+ * threads at once.
+ */
+public class QuantileSketch {
+    public static final int DEFAULT_K = 512;
+    private static final int MAX_LEVELS = 64; // More than the levels of 2^63 values.
+
+    private final int k;
+    private final double[][] levels = new double[MAX_LEVELS][];
+    private final int[] sizes = new int[MAX_LEVELS];
+    private int levelCount;
+    private long count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private long random = 0x2545F4914F6CDD1DL; // State of the xorshift generator of the compactions.
+
+    /**
+     * Constructs a sketch with the default k, which keeps the rank error below about 5% even for billions of values.
+     */
+    public QuantileSketch() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k Most values in a level, at least 2.
+     */
+    public QuantileSketch(int k) {
+        this.k = Math.max(2, k);
+    }
+
+    /**
+     * Adds a value of the stream.
+     *
+     * @param value The value.
+     */
+    public void add(double value) {
+        insert(0, value);
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    private void insert(int level, double value) {
+        while (level >= levelCount) {
+            levels[levelCount++] = new double[k];
+        }
+        levels[level][sizes[level]++] = value;
+        if (sizes[level] == k) {
+            compact(level);
+        }
+    }
+
+    /**
+     * Moves every second value of a full level to the next level. An odd value that is left stays in the level.
+     */
+    private void compact(int level) {
+        double[] values = levels[level];
+        int size = sizes[level];
+        Arrays.sort(values, 0, size);
+        random ^= random << 13;
+        random ^= random >>> 7;
+        random ^= random << 17;
+        int start = (int) (random & 1);
+        sizes[level] = 0;
+        for (int pair = 0; pair < size / 2; pair++) { //The other value of each pair is dropped.
+            insert(level + 1, values[2 * pair + start]);
+        }
+        if (size % 2 == 1) { //The largest value has no pair.
+            values[sizes[level]++] = values[size - 1];
+        }
+    }
+
+    /**
+     * @return Number of values added.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Estimates the value at a quantile.
+     *
+     * @param quantile The quantile between 0 and 1, for example 0.99.
+     * @return The estimated value, the exact minimum and maximum for 0 and 1, or NaN if nothing was added.
+     */
+    public double getQuantile(double quantile) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (quantile <= 0) {
+            return min;
+        }
+        if (quantile >= 1) {
+            return max;
+        }
+        int total = 0;
+        for (int level = 0; level < levelCount; level++) {
+            total += sizes[level];
+        }
+        double[] values = new double[total];
+        int[] valueLevels = new int[total];
+        Integer[] order = new Integer[total];
+        for (int level = 0, n = 0; level < levelCount; level++) {
+            for (int i = 0; i < sizes[level]; i++, n++) {
+                values[n] = levels[level][i];
+                valueLevels[n] = level;
+                order[n] = n;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+        double rank = quantile * count; //A compaction keeps the total weight, so the weights add up to the count.
+        long seen = 0;
+        for (int i = 0; i < total; i++) {
+            seen += 1L << valueLevels[order[i]];
+            if (seen >= rank) {
+                return values[order[i]];
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Adds the values of another sketch to this one.
+     *
+     * @param other The other {@link QuantileSketch}.
+     * @throws IllegalArgumentException If the sketches do not have the same k.
+     */
+    public void merge(QuantileSketch other) {
+        if (other.k != k) {
+            throw new IllegalArgumentException("Only sketches with the same k can be merged.");
+        }
+        for (int level = 0; level < other.levelCount; level++) {
+            for (int i = 0; i < other.sizes[level]; i++) {
+                insert(level, other.levels[level][i]);
+            }
+        }
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+}
@@ -0,0 +1,369 @@
+import java.util.Arrays;
+
+/**
+ * Remembers the slot that a nutrient purchase such as PROTEIN 30 was resolved to, so the same request does not search
+ * the machine again. Purchases are skewed to a few values, so most of them are answered by the cache.
+ *
+ * The result of a search also depends on the money: an empty slot within the range that comes before the first
+ * stocked slot and costs more than the money is found instead (as insufficient money). So an entry keeps the first
+ * stocked slot within the range (or that there is none) together with the least money the search found it with; no
+ * empty slot before it costs more than that. A request with at least that much money gets the same slot. An entry also
+ * keeps the empty slot that a search with less money found, which is found again with any money from that money up to
+ * its price. Other requests are misses and are searched as before, so the results are always the same as the search
+ * without the cache.
+ *
+ * An entry is removed when the slot it points to becomes empty, and when a slot within its range before that slot
+ * (or anywhere, if nothing was found) gets a product or is changed in another way; {@link Machine} reports these
+ * changes through {@link #changed}. A result that was searched while such a change happened is not kept. The entries
+ * of a slot are kept in a list of the slot, and the entries whose range holds the value of a product are found in the
+ * hash table by the whole values within the range of it, so a change costs about the same whatever the capacity.
+ *
+ * The cache holds a fixed number of entries in primitive arrays and evicts the least recently used one when it is full.
+ * It is safe to use from several threads; every method holds the lock of the cache for a short time.
+ */
+public class QueryCache {
+    public static final int DEFAULT_CAPACITY = 1024;
+    // Returned by get when the request is not answered by the cache.
+    public static final int MISS = Integer.MIN_VALUE;
+    private static final int NONE = -1; // The end of a list of entries.
+    private static final int RANGE = 5; // Accepted distance from the wanted value, like Machine#buyByNutrient.
+    private static final Nutrient[] NUTRIENTS = Nutrient.values();
+
+    private final int capacity;
+    private final long[] keys; // Nutrient ordinal and wanted value of each entry.
+    private final int[] positions; // First stocked slot of each entry, or -1 if there is none.
+    private final long[] moneys; // The least money the search found that slot with, Long.MAX_VALUE if it is not known.
+    private final int[] emptyPositions; // An empty slot that a search with less money found, or NONE.
+    private final int[] emptyMoneys; // The least money the search found that empty slot with.
+    private final int[] emptyPrices; // The price of that empty slot; it is found with less money than this.
+    private final int[] buckets; // First entry of each bucket of the hash table.
+    private final int[] nextInBucket; // Next entry in the same bucket, or in the list of free entries.
+    private final int[] slotHeads; // First entry of each slot, the last one for the entries that found nothing.
+    private final int[] nextOfSlot; // Next entry of the same slot.
+    private final int[] previousOfSlot;
+    private final int[] newer; // The LRU list, from the most recently used entry (head) to the least (tail).
+    private final int[] older;
+    private int head;
+    private int tail;
+    private int free; // First entry that is not used.
+    private int size;
+    private volatile long generation; // Changed with every change of the slots.
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param capacity Number of entries the cache holds.
+     * @param slots    Number of slots in the machine.
+     */
+    public QueryCache(int capacity, int slots) {
+        this.capacity = Math.max(1, capacity);
+        this.keys = new long[this.capacity];
+        this.positions = new int[this.capacity];
+        this.moneys = new long[this.capacity];
+        this.emptyPositions = new int[this.capacity];
+        this.emptyMoneys = new int[this.capacity];
+        this.emptyPrices = new int[this.capacity];
+        this.buckets = new int[Integer.highestOneBit(2 * this.capacity - 1) << 1];
+        this.nextInBucket = new int[this.capacity];
+        this.slotHeads = new int[slots + 1];
+        this.nextOfSlot = new int[this.capacity];
+        this.previousOfSlot = new int[this.capacity];
+        this.newer = new int[this.capacity];
+        this.older = new int[this.capacity];
+        reset();
+    }
+
+    private void reset() {
+        Arrays.fill(buckets, NONE);
+        Arrays.fill(slotHeads, NONE);
+        for (int entry = 0; entry < capacity; entry++) {
+            nextInBucket[entry] = entry + 1 < capacity ? entry + 1 : NONE;
+        }
+        free = 0;
+        head = NONE;
+        tail = NONE;
+        size = 0;
+    }
+
+    /**
+     * Answers a request from the cache.
+     *
+     * @param nutrient The {@link Nutrient} the product is chosen by.
+     * @param value    The wanted value of the nutrient.
+     * @param money    The money the customer has inserted.
+     * @return The grid position of the slot the search would find, -1 if it would find nothing, or {@link #MISS}.
+     */
+    public synchronized int get(Nutrient nutrient, int value, int money) {
+        int entry = entryOf(key(nutrient, value));
+        int position = MISS;
+        if (entry != NONE && money >= moneys[entry]) {
+            position = positions[entry];
+        } else if (entry != NONE && emptyPositions[entry] != NONE && money >= emptyMoneys[entry] && money < emptyPrices[entry]) {
+            position = emptyPositions[entry];
+        }
+        if (position == MISS) {
+            misses++;
+            return MISS;
+        }
+        hits++;
+        if (entry != head) { //Moves the entry to the head of the LRU list.
+            unlinkLru(entry);
+            linkLru(entry);
+        }
+        return position;
+    }
+
+    /**
+     * @return The number that changes with every change of the slots; it is given to {@link #put} to tell whether the
+     * slots changed during the search.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Keeps the result of a search that found a stocked slot or nothing, unless the slots changed after the given
+     * generation.
+     *
+     * @param nutrient   The {@link Nutrient} the product is chosen by.
+     * @param value      The wanted value of the nutrient.
+     * @param money      The money of the search.
+     * @param position   The stocked slot the search found, or -1 if it found nothing.
+     * @param generation The generation read before the search.
+     */
+    public synchronized void put(Nutrient nutrient, int value, int money, int position, long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        int entry = entryOf(nutrient, value);
+        if (positions[entry] == position) { //The same slot was found with less money.
+            moneys[entry] = Math.min(moneys[entry], money);
+        } else {
+            unlinkSlot(entry);
+            positions[entry] = position;
+            moneys[entry] = money;
+            linkSlot(entry);
+        }
+    }
+
+    /**
+     * Keeps the result of a search that found an empty slot which costs more than the money, unless the slots changed
+     * after the given generation.
+     *
+     * @param nutrient   The {@link Nutrient} the product is chosen by.
+     * @param value      The wanted value of the nutrient.
+     * @param money      The money of the search.
+     * @param position   The empty slot the search found.
+     * @param price      The price of the product in that slot.
+     * @param generation The generation read before the search.
+     */
+    public synchronized void putEmpty(Nutrient nutrient, int value, int money, int position, int price, long generation) {
+        if (generation != this.generation) {
+            return;
+        }
+        int entry = entryOf(nutrient, value);
+        if (emptyPositions[entry] == position) {
+            emptyMoneys[entry] = Math.min(emptyMoneys[entry], money);
+        } else {
+            emptyPositions[entry] = position;
+            emptyMoneys[entry] = money;
+            emptyPrices[entry] = price;
+        }
+    }
+
+    /**
+     * Finds the entry of a value, or adds one that does not know its stocked slot yet.
+     */
+    private int entryOf(Nutrient nutrient, int value) {
+        long key = key(nutrient, value);
+        int entry = entryOf(key);
+        if (entry != NONE) {
+            return entry;
+        }
+        if (free == NONE) { //Evicts the least recently used entry.
+            remove(tail);
+            evictions++;
+        }
+        entry = free;
+        free = nextInBucket[entry];
+        keys[entry] = key;
+        positions[entry] = -1; //Kept with the entries that found nothing, so every change within the range removes it.
+        moneys[entry] = Long.MAX_VALUE;
+        emptyPositions[entry] = NONE;
+        int bucket = bucketOf(key);
+        nextInBucket[entry] = buckets[bucket];
+        buckets[bucket] = entry;
+        linkSlot(entry);
+        linkLru(entry);
+        size++;
+        return entry;
+    }
+
+    /**
+     * Removes the entries that a change of a slot may make wrong: the entries of the slot itself, and the entries whose
+     * range holds the value of the product in the slot and which point to a later slot or to no slot. It is called
+     * after the machine has updated its indexes for the change.
+     *
+     * @param position Grid position of the slot that became empty, got a product or was stocked again.
+     * @param product  The {@link Product} in the slot, or null if it has none.
+     */
+    public synchronized void changed(int position, Product product) {
+        generation++;
+        for (int entry = slotHeads[position]; entry != NONE; ) {
+            int next = nextOfSlot[entry];
+            remove(entry);
+            invalidations++;
+            entry = next;
+        }
+        if (product == null) {
+            return;
+        }
+        for (Nutrient nutrient : NUTRIENTS) {
+            float nutrientValue = nutrient.of(product);
+            //The wanted values whose range may hold the value, with one more on each side for the rounding.
+            long first = Math.max(Integer.MIN_VALUE, (long) Math.floor(nutrientValue) - RANGE - 1);
+            long last = Math.min(Integer.MAX_VALUE, (long) Math.ceil(nutrientValue) + RANGE + 1);
+            for (long value = first; value <= last; value++) {
+                int entry = entryOf(key(nutrient, (int) value));
+                if (entry != NONE && (positions[entry] == -1 || positions[entry] > position)
+                        && nutrientValue >= (int) value - RANGE && nutrientValue <= (int) value + RANGE) {
+                    remove(entry);
+                    invalidations++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes every entry, for example after the machine was rebuilt from its slots.
+     */
+    public synchronized void clear() {
+        generation++;
+        invalidations += size;
+        reset();
+    }
+
+    private void remove(int entry) {
+        int bucket = bucketOf(keys[entry]);
+        if (buckets[bucket] == entry) {
+            buckets[bucket] = nextInBucket[entry];
+        } else {
+            int previous = buckets[bucket];
+            while (nextInBucket[previous] != entry) {
+                previous = nextInBucket[previous];
+            }
+            nextInBucket[previous] = nextInBucket[entry];
+        }
+        unlinkSlot(entry);
+        unlinkLru(entry);
+        nextInBucket[entry] = free;
+        free = entry;
+        size--;
+    }
+
+    private void linkSlot(int entry) {
+        int slot = positions[entry] == -1 ? slotHeads.length - 1 : positions[entry];
+        previousOfSlot[entry] = NONE;
+        nextOfSlot[entry] = slotHeads[slot];
+        if (slotHeads[slot] != NONE) {
+            previousOfSlot[slotHeads[slot]] = entry;
+        }
+        slotHeads[slot] = entry;
+    }
+
+    private void unlinkSlot(int entry) {
+        int slot = positions[entry] == -1 ? slotHeads.length - 1 : positions[entry];
+        if (previousOfSlot[entry] == NONE) {
+            slotHeads[slot] = nextOfSlot[entry];
+        } else {
+            nextOfSlot[previousOfSlot[entry]] = nextOfSlot[entry];
+        }
+        if (nextOfSlot[entry] != NONE) {
+            previousOfSlot[nextOfSlot[entry]] = previousOfSlot[entry];
+        }
+    }
+
+    private void linkLru(int entry) {
+        newer[entry] = NONE;
+        older[entry] = head;
+        if (head != NONE) {
+            newer[head] = entry;
+        }
+        head = entry;
+        if (tail == NONE) {
+            tail = entry;
+        }
+    }
+
+    private void unlinkLru(int entry) {
+        if (newer[entry] == NONE) {
+            head = older[entry];
+        } else {
+            older[newer[entry]] = older[entry];
+        }
+        if (older[entry] == NONE) {
+            tail = newer[entry];
+        } else {
+            newer[older[entry]] = newer[entry];
+        }
+    }
+
+    private int entryOf(long key) {
+        for (int entry = buckets[bucketOf(key)]; entry != NONE; entry = nextInBucket[entry]) {
+            if (keys[entry] == key) {
+                return entry;
+            }
+        }
+        return NONE;
+    }
+
+    private int bucketOf(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & (buckets.length - 1);
+    }
+
+    private static long key(Nutrient nutrient, int value) {
+        return ((long) nutrient.ordinal() << 32) | (value & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return Number of entries in the cache.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Number of requests that were searched, including the ones whose entry needed more money.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return Number of entries removed because of a change of the slots.
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * @return The share of the requests answered by the cache, between 0 and 1.
+     */
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+}
@@ -0,0 +1,410 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Sales analytics of a machine in a fixed amount of memory, however many purchases are recorded: the sales and the
+ * revenue of each product and each slot, the change paid out, the outcomes of the requests of each choice (such as
+ * the rate of "product not found"), the distributions of the requested nutrient values and the same counts for
+ * tumbling windows of requests.
+ *
+ * The counters of the products and the slots are exact. The products are known by name up to {@link #MAX_PRODUCTS};
+ * more products are counted together as other products. The requested nutrient values are approximate: a
+ * {@link CountMinSketch} counts how often each value was requested, and a {@link QuantileSketch} for each nutrient
+ * estimates the quantiles. A window is a fixed number of consecutive requests, and the last windows are kept.
+ *
+ * The purchases are recorded in the process, through {@link Machine#setAnalytics}, or read from an existing log by
+ * {@link LogAnalyzer}. Analytics that were recorded on several threads can be merged. Recording holds the lock of the
+ * object, so a machine that is used by several threads records its purchases one at a time.
+ */
+public class SalesAnalytics {
+    public static final int MAX_PRODUCTS = 4096;
+    public static final long DEFAULT_WINDOW = 100_000; // Requests in a window.
+    public static final int DEFAULT_WINDOWS = 64; // Windows that are kept.
+    private static final String[] CHOICES = {"PROTEIN", "CARB", "FAT", "CALORIE", "NUMBER", "QUERY"};
+    private static final Metrics.Outcome[] OUTCOMES = Metrics.Outcome.values();
+    private static final Nutrient[] NUTRIENTS = Nutrient.values();
+
+    private final int slots;
+    private final long windowSize;
+    private long requests; // Requests recorded in the process, which number them.
+
+    private final long[] outcomes = new long[CHOICES.length * OUTCOMES.length]; // For each choice and outcome.
+    private long revenue;
+    private long changePaid; // Change given with the sales.
+    private long refunded; // Money returned for the requests without a sale.
+
+    private final String[] productNames = new String[MAX_PRODUCTS];
+    private final int[] productTable = new int[2 * MAX_PRODUCTS]; // Index + 1 of the product of each hash, or 0.
+    private final long[] productSales = new long[MAX_PRODUCTS + 1]; // The last one for the other products.
+    private final long[] productRevenue = new long[MAX_PRODUCTS + 1];
+    private int productCount;
+    private final long[] slotSales;
+    private final long[] slotRevenue;
+
+    private final CountMinSketch[] requestedValues = new CountMinSketch[NUTRIENTS.length];
+    private final QuantileSketch[] valueQuantiles = new QuantileSketch[NUTRIENTS.length];
+
+    private final long[] windowIndexes; // Index of the window kept in each place of the ring, or -1.
+    private final long[] windowRequests;
+    private final long[] windowSales;
+    private final long[] windowRevenue;
+    private final long[] windowNotFound;
+
+    /**
+     * Constructs analytics with the default windows.
+     *
+     * @param slots Number of slots in the machine.
+     */
+    public SalesAnalytics(int slots) {
+        this(slots, DEFAULT_WINDOW, DEFAULT_WINDOWS);
+    }
+
+    /**
+     * @param slots      Number of slots in the machine.
+     * @param windowSize Requests in a window.
+     * @param windows    Number of the last windows that are kept.
+     */
+    public SalesAnalytics(int slots, long windowSize, int windows) {
+        this.slots = slots;
+        this.windowSize = Math.max(1, windowSize);
+        this.slotSales = new long[slots];
+        this.slotRevenue = new long[slots];
+        for (int i = 0; i < NUTRIENTS.length; i++) {
+            requestedValues[i] = new CountMinSketch();
+            valueQuantiles[i] = new QuantileSketch();
+        }
+        windows = Math.max(1, windows);
+        this.windowIndexes = new long[windows];
+        Arrays.fill(windowIndexes, -1);
+        this.windowRequests = new long[windows];
+        this.windowSales = new long[windows];
+        this.windowRevenue = new long[windows];
+        this.windowNotFound = new long[windows];
+    }
+
+    /**
+     * Starts the analytics of a machine if the system property gmm.analytics is set to the path of the report, which
+     * {@link Main#run} writes at the end of the run. gmm.analytics.window sets the requests in a window.
+     *
+     * @param slots Number of slots in the machine.
+     * @return The analytics, or null if they are off.
+     */
+    public static SalesAnalytics fromSystemProperties(int slots) {
+        if (System.getProperty("gmm.analytics") == null) {
+            return null;
+        }
+        return new SalesAnalytics(slots, Long.getLong("gmm.analytics.window", DEFAULT_WINDOW), DEFAULT_WINDOWS);
+    }
+
+    /**
+     * Records a purchase that was made in the process. Requests with an unknown choice are not recorded.
+     *
+     * @param purchase The parsed {@link Purchase}.
+     * @param result   The result of {@link GMMOutput#buy}.
+     * @param product  The {@link Product} that was sold, or null if there was no sale.
+     */
+    public synchronized void record(Purchase purchase, int result, Product product) {
+        long sequence = requests++; //Every request is numbered, like every INPUT line of the log.
+        if (result == GMMOutput.UNKNOWN_CHOICE) {
+            return;
+        }
+        Nutrient nutrient = Nutrient.fromChoice(purchase.getChoice());
+        int choice = nutrient != null ? nutrient.ordinal() : purchase.getChoice().equals("NUMBER") ? Metrics.NUMBER : Metrics.QUERY;
+        Metrics.Outcome outcome = Metrics.Outcome.of(result);
+        record(sequence, choice, purchase.getValue(), outcome, result, product != null ? product.getName() : null,
+                product != null ? product.getPrice() : 0, purchase.getValidTotal());
+    }
+
+    /**
+     * Records a request.
+     *
+     * @param sequence Number of the request from the first one, which tells its window.
+     * @param choice   Index of the choice: the ordinal of the {@link Nutrient}, {@link Metrics#NUMBER} or {@link Metrics#QUERY}.
+     * @param value    The wanted value of the request.
+     * @param outcome  The {@link Metrics.Outcome} of the request.
+     * @param slot     Grid position of the slot of the sale, or -1 if it is not known.
+     * @param product  Name of the product that was sold, or null.
+     * @param price    Price of the product that was sold.
+     * @param money    The accepted money of the request.
+     */
+    synchronized void record(long sequence, int choice, int value, Metrics.Outcome outcome, int slot, CharSequence product,
+                             int price, int money) {
+        outcomes[choice * OUTCOMES.length + outcome.ordinal()]++;
+        if (choice < NUTRIENTS.length) {
+            requestedValues[choice].add(value, 1);
+            valueQuantiles[choice].add(value);
+        }
+        boolean sale = outcome == Metrics.Outcome.PURCHASE;
+        if (sale) {
+            revenue += price;
+            changePaid += money - price;
+            int index = product != null ? productIndex(product) : MAX_PRODUCTS;
+            productSales[index]++;
+            productRevenue[index] += price;
+            if (slot >= 0 && slot < slots) {
+                slotSales[slot]++;
+                slotRevenue[slot] += price;
+            }
+        } else {
+            refunded += money;
+        }
+        int window = window(sequence / windowSize);
+        if (window >= 0) {
+            windowRequests[window]++;
+            windowSales[window] += sale ? 1 : 0;
+            windowRevenue[window] += sale ? price : 0;
+            windowNotFound[window] += outcome == Metrics.Outcome.NOT_FOUND ? 1 : 0;
+        }
+    }
+
+    /**
+     * Finds the place of a window in the ring. A newer window takes the place of an older one.
+     *
+     * @return The place, or -1 if the window is older than the one in its place.
+     */
+    private int window(long index) {
+        int place = (int) (index % windowIndexes.length);
+        if (windowIndexes[place] > index) {
+            return -1;
+        }
+        if (windowIndexes[place] < index) {
+            windowIndexes[place] = index;
+            windowRequests[place] = 0;
+            windowSales[place] = 0;
+            windowRevenue[place] = 0;
+            windowNotFound[place] = 0;
+        }
+        return place;
+    }
+
+    /**
+     * Finds the index of a product by its name, adding it if there is room.
+     *
+     * @return The index, or {@link #MAX_PRODUCTS} for the other products.
+     */
+    private int productIndex(CharSequence name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            hash = 31 * hash + name.charAt(i);
+        }
+        int mask = productTable.length - 1;
+        for (int place = (hash ^ (hash >>> 16)) & mask; ; place = (place + 1) & mask) {
+            int index = productTable[place] - 1;
+            if (index == -1) {
+                if (productCount == MAX_PRODUCTS) {
+                    return MAX_PRODUCTS;
+                }
+                productNames[productCount] = name.toString();
+                productTable[place] = ++productCount;
+                return productCount - 1;
+            }
+            if (equals(productNames[index], name)) {
+                return index;
+            }
+        }
+    }
+
+    private static boolean equals(String name, CharSequence other) {
+        if (name.length() != other.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != other.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds what another object recorded to this one, for example the analytics of another thread. Both must have the
+     * same number of slots and windows.
+     *
+     * @param other The other {@link SalesAnalytics}.
+     */
+    public synchronized void merge(SalesAnalytics other) {
+        synchronized (other) {
+            for (int i = 0; i < outcomes.length; i++) {
+                outcomes[i] += other.outcomes[i];
+            }
+            revenue += other.revenue;
+            changePaid += other.changePaid;
+            refunded += other.refunded;
+            for (int i = 0; i <= other.productCount; i++) {
+                int index = i < other.productCount ? productIndex(other.productNames[i]) : MAX_PRODUCTS;
+                int from = i < other.productCount ? i : MAX_PRODUCTS;
+                productSales[index] += other.productSales[from];
+                productRevenue[index] += other.productRevenue[from];
+            }
+            for (int slot = 0; slot < Math.min(slots, other.slots); slot++) {
+                slotSales[slot] += other.slotSales[slot];
+                slotRevenue[slot] += other.slotRevenue[slot];
+            }
+            for (int i = 0; i < NUTRIENTS.length; i++) {
+                requestedValues[i].merge(other.requestedValues[i]);
+                valueQuantiles[i].merge(other.valueQuantiles[i]);
+            }
+            for (int place = 0; place < other.windowIndexes.length; place++) {
+                int window = other.windowIndexes[place] >= 0 ? window(other.windowIndexes[place]) : -1;
+                if (window >= 0) {
+                    windowRequests[window] += other.windowRequests[place];
+                    windowSales[window] += other.windowSales[place];
+                    windowRevenue[window] += other.windowRevenue[place];
+                    windowNotFound[window] += other.windowNotFound[place];
+                }
+            }
+            requests += other.requests;
+        }
+    }
+
+    /**
+     * @param choice  Index of the choice, like {@link #record(long, int, int, Metrics.Outcome, int, CharSequence, int, int)}.
+     * @param outcome The {@link Metrics.Outcome}.
+     * @return Number of requests of the choice with the outcome.
+     */
+    public synchronized long getCount(int choice, Metrics.Outcome outcome) {
+        return outcomes[choice * OUTCOMES.length + outcome.ordinal()];
+    }
+
+    /**
+     * @return Number of recorded requests.
+     */
+    public synchronized long getRequests() {
+        long total = 0;
+        for (long count : outcomes) {
+            total += count;
+        }
+        return total;
+    }
+
+    public synchronized long getRevenue() {
+        return revenue;
+    }
+
+    public synchronized long getChangePaid() {
+        return changePaid;
+    }
+
+    /**
+     * @param name Name of a product.
+     * @return Number of sales of the product, or -1 if it is not known.
+     */
+    public synchronized long getProductSales(String name) {
+        for (int i = 0; i < productCount; i++) {
+            if (productNames[i].equals(name)) {
+                return productSales[i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param slot Grid position of the slot.
+     * @return Number of sales from the slot.
+     */
+    public synchronized long getSlotSales(int slot) {
+        return slotSales[slot];
+    }
+
+    /**
+     * Writes the analytics as text: the totals, the outcomes and the not found rate of each choice, the sales and the
+     * revenue of each product (the highest revenue first) and slot, the quantiles and the most requested values of each
+     * nutrient, and the windows from the oldest to the newest.
+     *
+     * @return The analytics as text.
+     */
+    public synchronized String getText() {
+        StringBuilder text = new StringBuilder();
+        long total = getRequests();
+        text.append(String.format(Locale.ROOT, "requests=%d revenue=%d changePaid=%d refunded=%d%n", total, revenue,
+                changePaid, refunded));
+        text.append(String.format(Locale.ROOT, "%-8s %12s", "CHOICE", "REQUESTS"));
+        for (Metrics.Outcome outcome : OUTCOMES) {
+            if (outcome != Metrics.Outcome.REJECTED_COIN) {
+                text.append(String.format(Locale.ROOT, " %18s", outcome));
+            }
+        }
+        text.append(String.format(Locale.ROOT, " %14s%n", "NOT_FOUND_RATE"));
+        for (int choice = 0; choice < CHOICES.length; choice++) {
+            long choiceTotal = 0;
+            StringBuilder counts = new StringBuilder();
+            for (Metrics.Outcome outcome : OUTCOMES) {
+                if (outcome != Metrics.Outcome.REJECTED_COIN) {
+                    choiceTotal += getCount(choice, outcome);
+                    counts.append(String.format(Locale.ROOT, " %18d", getCount(choice, outcome)));
+                }
+            }
+            double notFoundRate = choiceTotal == 0 ? 0 : (double) getCount(choice, Metrics.Outcome.NOT_FOUND) / choiceTotal;
+            text.append(String.format(Locale.ROOT, "%-8s %12d%s %14.4f%n", CHOICES[choice], choiceTotal, counts, notFoundRate));
+        }
+        Integer[] products = new Integer[productCount + 1];
+        for (int i = 0; i < productCount; i++) {
+            products[i] = i;
+        }
+        products[productCount] = MAX_PRODUCTS;
+        //The highest revenue first; the order the products were seen in depends on the threads.
+        Arrays.sort(products, 0, productCount, (a, b) -> productRevenue[a] != productRevenue[b]
+                ? Long.compare(productRevenue[b], productRevenue[a]) : productNames[a].compareTo(productNames[b]));
+        for (int index : products) {
+            if (productSales[index] != 0) {
+                text.append("product ").append(index < MAX_PRODUCTS ? productNames[index] : "(other products)")
+                        .append(": sales=").append(productSales[index]).append(" revenue=").append(productRevenue[index]).append('\n');
+            }
+        }
+        for (int slot = 0; slot < slots; slot++) {
+            if (slotSales[slot] != 0) {
+                text.append("slot ").append(slot).append(": sales=").append(slotSales[slot]).append(" revenue=")
+                        .append(slotRevenue[slot]).append('\n');
+            }
+        }
+        for (Nutrient nutrient : NUTRIENTS) {
+            QuantileSketch quantiles = valueQuantiles[nutrient.ordinal()];
+            if (quantiles.getCount() == 0) {
+                continue;
+            }
+            text.append(String.format(Locale.ROOT, "requested %s: p50=%.0f p90=%.0f p99=%.0f top:", nutrient,
+                    quantiles.getQuantile(0.5), quantiles.getQuantile(0.9), quantiles.getQuantile(0.99)));
+            CountMinSketch values = requestedValues[nutrient.ordinal()];
+            for (long value : values.getTopKeys(10)) {
+                text.append(' ').append(value).append('x').append(values.estimate(value));
+            }
+            text.append('\n');
+        }
+        int[] places = new int[windowIndexes.length];
+        int count = 0;
+        for (int place = 0; place < windowIndexes.length; place++) {
+            if (windowIndexes[place] >= 0) {
+                places[count++] = place;
+            }
+        }
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = places[i];
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(windowIndexes[a], windowIndexes[b]));
+        for (int place : order) {
+            text.append(String.format(Locale.ROOT, "window %d: requests=%d sales=%d revenue=%d notFound=%d%n",
+                    windowIndexes[place], windowRequests[place], windowSales[place], windowRevenue[place],
+                    windowNotFound[place]));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes the text of the analytics to a file.
+     *
+     * @param path Path to the file.
+     */
+    public void write(String path) {
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8))) {
+            writer.print(getText());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
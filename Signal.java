@@ -0,0 +1,57 @@
+import java.util.function.BooleanSupplier;
+
+/**
+ * Lets threads wait until another thread makes a condition true. A waiting thread spins at first, then yields and at
+ * last blocks on the monitor of the signal until a thread that changed something calls {@link #signal()}, so it reacts
+ * quickly to a change that comes soon but does not use the processor while nothing happens.
+ *
+ * A thread that changes the state must do it with a volatile write (or an atomic operation that is one) before it
+ * calls {@link #signal()}; a lazy or plain write could be missed by a thread that is going to block, which would then
+ * wait until the next signal. {@link #signal()} only takes the monitor when a thread is blocked.
+ */
+public class Signal {
+    private static final int SPINS = 100;
+    private static final int YIELDS = 200;
+
+    private volatile int blocked; // Threads blocked in await, changed only while holding the monitor.
+
+    /**
+     * Waits once for the condition: spins or yields in the first rounds, and blocks until the condition is true after
+     * them. The caller checks the condition again, so it may also return before the condition is true.
+     *
+     * @param round How many times the thread has waited for the same thing.
+     * @param ready The condition, including the conditions the caller stops on.
+     */
+    public void await(int round, BooleanSupplier ready) {
+        if (round < SPINS) {
+            Thread.onSpinWait();
+        } else if (round < YIELDS) {
+            Thread.yield();
+        } else {
+            synchronized (this) {
+                blocked++;
+                try {
+                    //The count is written before the condition is read, so a change after this read is signaled.
+                    while (!ready.getAsBoolean()) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    blocked--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wakes the threads that are blocked in {@link #await}, after the state they wait for was changed.
+     */
+    public void signal() {
+        if (blocked > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,360 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Simulates a machine over a long time, for example weeks of operation, as a sequence of discrete events. Restock
+ * deliveries and purchases come from timestamped streams: every line starts with its time in seconds since the start
+ * of the simulation and a tab, followed by a line in the format of the product file or the purchase file, for example
+ * <pre>
+ * 3600	Protein Bar	45	20.0 25.0 8.0
+ * 3642	CASH	50 20	PROTEIN	20
+ * </pre>
+ * The lines of a stream must not go back in time. A restock line is placed like a line of {@link GMMOutput#fill} and a
+ * purchase line is bought like a line of {@link GMMOutput#purchase}, so the log has the same messages. If the machine
+ * is full, the rest of the delivery (the lines of the stream with the same time) is not placed, like the rest of a
+ * product file. The state of the machine can also be written every given number of seconds.
+ *
+ * The events are taken in the order of their times from a priority queue that holds only the next event of every
+ * stream, so the memory does not grow with the number of events and the streams can be as long as the files are.
+ * Events at the same time are taken as deliveries, purchases and then snapshots, each in the order of their streams.
+ */
+public class Simulator {
+    // The kinds of events, in the order they are taken at the same time.
+    public static final int RESTOCK = 0;
+    public static final int PURCHASE = 1;
+    public static final int SNAPSHOT = 2;
+
+    private final Machine machine;
+    private final TransactionLog log;
+    private final Metrics metrics; // Null if the metrics are off.
+    private final PriorityQueue<Source> events = new PriorityQueue<>(Comparator.comparingLong((Source source) -> source.time)
+            .thenComparingInt(source -> source.kind).thenComparingInt(source -> source.order));
+    private final Purchase purchase = new Purchase(); //Filled again for every purchase, like the lines of a file.
+    private final int[] change = new int[CoinInventory.DENOMINATIONS.length];
+    private final long[] counts = new long[3]; // Events taken of each kind.
+    private int sources;
+    private int streams; // Restock and purchase streams that have not ended.
+    private long time; // Time of the last event in seconds.
+    private long nanos; // Time spent running the events.
+
+    /**
+     * The next event of a stream. It is put back to the queue with its next time after it has happened.
+     */
+    private abstract static class Source {
+        final int kind;
+        final int order; // The order the stream was added in.
+        long time;
+
+        Source(int kind, int order) {
+            this.kind = kind;
+            this.order = order;
+        }
+
+        /**
+         * Runs the event.
+         */
+        abstract void fire();
+
+        /**
+         * Moves to the next event of the stream.
+         *
+         * @return False if the stream has ended.
+         */
+        abstract boolean advance();
+    }
+
+    /**
+     * A stream of timestamped restock or purchase lines.
+     */
+    private class LineSource extends Source {
+        final String name;
+        final Iterator<? extends CharSequence> lines;
+        final LineRest rest = new LineRest(); // The line after its time.
+        long lineNumber;
+        long fullAt = -1; // Time of the delivery that found the machine full.
+
+        LineSource(int kind, int order, String name, Iterable<? extends CharSequence> lines) {
+            super(kind, order);
+            this.name = name;
+            this.lines = lines.iterator();
+        }
+
+        @Override
+        void fire() {
+            if (kind == PURCHASE) {
+                GMMOutput.purchaseLine(log, machine, rest, purchase, metrics, change);
+            } else if (time != fullAt && GMMOutput.fillLine(log, machine, rest) == -1) {
+                fullAt = time;
+            }
+        }
+
+        @Override
+        boolean advance() {
+            while (lines.hasNext()) {
+                CharSequence line = lines.next();
+                lineNumber++;
+                if (line.length() == 0) {
+                    continue;
+                }
+                long lineTime = 0;
+                int i = 0;
+                for (; i < line.length() && line.charAt(i) != '\t'; i++) { //The time is read from the line without copying it.
+                    char c = line.charAt(i);
+                    if (c < '0' || c > '9' || lineTime > (Long.MAX_VALUE - 9) / 10) {
+                        throw new IllegalArgumentException("Line " + lineNumber + " of " + name + " does not start with a time: " + line);
+                    }
+                    lineTime = lineTime * 10 + (c - '0');
+                }
+                if (i == 0 || i == line.length()) {
+                    throw new IllegalArgumentException("Line " + lineNumber + " of " + name + " does not start with a time: " + line);
+                }
+                if (lineTime < time) {
+                    throw new IllegalArgumentException("Line " + lineNumber + " of " + name + " goes back in time: " + line);
+                }
+                time = lineTime;
+                rest.set(line, i + 1);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Writes the state of the machine at every multiple of the interval.
+     */
+    private class SnapshotSource extends Source {
+        final long interval;
+
+        SnapshotSource(int order, long interval) {
+            super(SNAPSHOT, order);
+            this.interval = interval;
+            this.time = interval;
+        }
+
+        @Override
+        void fire() {
+            log.write("SNAPSHOT: " + time, true);
+            GMMOutput.writeMachine(log, machine);
+        }
+
+        @Override
+        boolean advance() {
+            Source next = events.peek();
+            if (streams == 0 || next == null) {
+                return false;
+            }
+            //The same state is not written again and again while nothing happens.
+            time += interval * Math.max(1, (next.time - time) / interval);
+            return true;
+        }
+    }
+
+    /**
+     * The part of a line after its time, read from the line without copying it.
+     */
+    private static class LineRest implements CharSequence {
+        private CharSequence line;
+        private int offset;
+
+        void set(CharSequence line, int offset) {
+            this.line = line;
+            this.offset = offset;
+        }
+
+        @Override
+        public int length() {
+            return line.length() - offset;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return line.charAt(offset + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return line.subSequence(offset + start, offset + end);
+        }
+
+        @Override
+        public String toString() {
+            return line.subSequence(offset, line.length()).toString();
+        }
+    }
+
+    /**
+     * @param machine The {@link Machine} that is simulated.
+     * @param log     The {@link TransactionLog} that the transaction messages and the snapshots are written to.
+     */
+    public Simulator(Machine machine, TransactionLog log) {
+        this.machine = machine;
+        this.log = log;
+        this.metrics = machine.getMetrics();
+    }
+
+    /**
+     * Adds a stream of restock deliveries.
+     *
+     * @param name  Name of the stream in the error messages, for example its path.
+     * @param lines The timestamped lines in the format of the product file. They are consumed one by one.
+     * @throws IllegalArgumentException If the first line does not start with a time.
+     */
+    public void addRestocks(String name, Iterable<? extends CharSequence> lines) {
+        add(new LineSource(RESTOCK, sources++, name, lines));
+    }
+
+    /**
+     * Adds a stream of purchases.
+     *
+     * @param name  Name of the stream in the error messages, for example its path.
+     * @param lines The timestamped lines in the format of the purchase file. They are consumed one by one.
+     * @throws IllegalArgumentException If the first line does not start with a time.
+     */
+    public void addPurchases(String name, Iterable<? extends CharSequence> lines) {
+        add(new LineSource(PURCHASE, sources++, name, lines));
+    }
+
+    /**
+     * Writes the state of the machine every given number of seconds until the other streams end, after the events of
+     * the same second. Each state is written after a SNAPSHOT line with its time.
+     *
+     * @param interval Seconds between the snapshots, more than 0.
+     * @throws IllegalArgumentException If the interval is not more than 0.
+     */
+    public void addSnapshots(long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("The snapshot interval must be more than 0 seconds: " + interval);
+        }
+        events.add(new SnapshotSource(sources++, interval));
+    }
+
+    private void add(LineSource source) {
+        if (source.advance()) {
+            events.add(source);
+            streams++;
+        }
+    }
+
+    /**
+     * Runs the events of all streams in the order of their times until every stream has ended.
+     *
+     * @return Number of events that were run.
+     * @throws IllegalArgumentException If a line does not start with a time or goes back in time, or a purchase line
+     *                                  cannot be parsed, like {@link GMMOutput#purchase}.
+     */
+    public long run() {
+        long start = System.nanoTime();
+        try {
+            Source source;
+            while ((source = events.poll()) != null) {
+                if (source.kind == SNAPSHOT && streams == 0) { //The state at the end is written by the caller.
+                    break;
+                }
+                time = source.time;
+                source.fire();
+                counts[source.kind]++;
+                if (source.advance()) {
+                    events.add(source);
+                } else if (source.kind != SNAPSHOT) {
+                    streams--;
+                }
+            }
+        } finally {
+            nanos += System.nanoTime() - start;
+        }
+        return getEvents();
+    }
+
+    /**
+     * @return Number of events that were run.
+     */
+    public long getEvents() {
+        return counts[RESTOCK] + counts[PURCHASE] + counts[SNAPSHOT];
+    }
+
+    /**
+     * @param kind {@link #RESTOCK}, {@link #PURCHASE} or {@link #SNAPSHOT}.
+     * @return Number of events of the kind that were run.
+     */
+    public long getEvents(int kind) {
+        return counts[kind];
+    }
+
+    /**
+     * @return Time of the last event in seconds since the start of the simulation.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Prints the number of events, the simulated time and the events run per second of real time.
+     *
+     * @param out The stream the report is printed to.
+     */
+    public void report(PrintStream out) {
+        double seconds = nanos / 1e9;
+        out.printf("Simulated %d events (%d restocks, %d purchases, %d snapshots) over %d d %02d:%02d:%02d in %.3f s%n",
+                getEvents(), counts[RESTOCK], counts[PURCHASE], counts[SNAPSHOT], time / 86_400, time / 3_600 % 24,
+                time / 60 % 60, time % 60, seconds);
+        out.printf("Throughput: %.0f simulated events/s%n", getEvents() / Math.max(seconds, 1e-9));
+    }
+
+    /**
+     * Simulates a machine from timestamped restock and purchase files and writes the log, the snapshots and the state of
+     * the machine at the end to the output file. The machine is set up by the same system properties as {@link Main}.
+     *
+     * The method expects the output file first, followed by any number of pairs: "restock" and a restock file,
+     * "purchase" and a purchase file, or "snapshot" and the seconds between the snapshots. The number of rows, columns
+     * and products per slot may follow, like for {@link Main}. For example:
+     * <pre>
+     * java Simulator output.txt restock deliveries.txt purchase kiosk1.txt purchase kiosk2.txt snapshot 86400
+     * </pre>
+     *
+     * @param args An array of {@link String} containing command-line arguments.
+     */
+    public static void main(String[] args) {
+        int i = 1;
+        while (i + 1 < args.length && (args[i].equals("restock") || args[i].equals("purchase") || args[i].equals("snapshot"))) {
+            i += 2;
+        }
+        Machine machine = args.length >= i + 3
+                ? new Machine(Integer.parseInt(args[i]), Integer.parseInt(args[i + 1]), Integer.parseInt(args[i + 2]))
+                : new Machine();
+        Metrics metrics = Main.configure(machine, args[0]);
+        List<MappedFileInput> inputs = new ArrayList<>();
+        try (TransactionLog log = TransactionLog.fromSystemProperties(args[0])) {
+            Simulator simulator = new Simulator(machine, log);
+            for (int k = 1; k < i; k += 2) {
+                if (args[k].equals("snapshot")) {
+                    simulator.addSnapshots(Long.parseLong(args[k + 1]));
+                    continue;
+                }
+                MappedFileInput input = new MappedFileInput(args[k + 1], true, false);
+                inputs.add(input);
+                if (args[k].equals("restock")) {
+                    simulator.addRestocks(args[k + 1], input);
+                } else {
+                    simulator.addPurchases(args[k + 1], input);
+                }
+            }
+            simulator.run();
+            GMMOutput.writeMachine(log, machine);
+            simulator.report(System.out);
+        } finally {
+            for (MappedFileInput input : inputs) {
+                input.close();
+            }
+            if (metrics != null) {
+                metrics.close();
+            }
+            if (machine.getAnalytics() != null) {
+                machine.getAnalytics().write(System.getProperty("gmm.analytics"));
+            }
+        }
+    }
+}
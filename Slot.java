@@ -1,3 +1,5 @@
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
  * Represents a slot in a vending machine. Each slot can hold a product and tracks the capacity
  * (i.e., the number of units of the product it contains). The capacity is initially set to 0,
@@ -5,10 +7,13 @@
  * are loaded into the machine.
  */
 public class Slot{
+    // Updates the capacity atomically, so every slot works as its own lock when products are bought at the same time.
+    private static final AtomicIntegerFieldUpdater<Slot> CAPACITY = AtomicIntegerFieldUpdater.newUpdater(Slot.class, "capacity");
+
     // The product placed in this slot.
     Product product;
     // The number of product in this slot.
-    int capacity;
+    volatile int capacity;
 
     /**
      * Constructs an empty Slot with no product and a capacity of 0.
@@ -18,4 +23,31 @@ public class Slot{
         this.product = product; // Initializes the slot with no product.
         this.capacity = 0; // Initializes the slot as empty.
     }
+
+    /**
+     * Adds one product to the slot atomically.
+     *
+     * @return The capacity after the product was added.
+     */
+    public int add() {
+        return CAPACITY.incrementAndGet(this);
+    }
+
+    /**
+     * Takes one product from the slot if there is any left. The capacity is decreased atomically, so two buyers
+     * can never both take the last product.
+     *
+     * @return The capacity before the product was taken, or 0 if the slot was already empty.
+     */
+    public int take() {
+        while (true) {
+            int current = capacity;
+            if (current <= 0) {
+                return 0;
+            }
+            if (CAPACITY.compareAndSet(this, current, current - 1)) {
+                return current;
+            }
+        }
+    }
 }
@@ -0,0 +1,126 @@
+import java.util.Arrays;
+
+/**
+ * Keeps the slots of a machine as parallel arrays of primitives, indexed by grid position, so the nutrient values
+ * of the whole machine can be scanned in order without following a reference to a {@link Product} for every slot.
+ * A slot without a product has NaN as its nutrient values, which never match.
+ *
+ * The arrays are a copy of the slots that the machine updates together with its {@link NutrientIndex}es: when a
+ * product is placed to a slot and when a slot becomes empty or stocked again. The capacity is copied at these times,
+ * so only whether it is above 0 is always up to date.
+ *
+ * The first matching slot is found either by a scalar loop or, if the jdk.incubator.vector module is available (it is
+ * added with --add-modules jdk.incubator.vector), by {@link VectorScan}, which compares several slots at once. Both
+ * give the same slot as {@link NutrientIndex#find}.
+ */
+public class SlotArrays {
+    // True if the vector API can be used in this JVM.
+    public static final boolean VECTOR_AVAILABLE = vectorAvailable();
+
+    private final int[] capacity;
+    private final int[] price;
+    private final float[][] values = new float[Nutrient.values().length][]; // Values of each nutrient by its ordinal.
+
+    /**
+     * Creates the arrays of a machine that has no products yet.
+     *
+     * @param slots Number of slots in the machine.
+     */
+    public SlotArrays(int slots) {
+        this.capacity = new int[slots];
+        this.price = new int[slots];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new float[slots];
+            Arrays.fill(values[i], Float.NaN);
+        }
+    }
+
+    /**
+     * Copies a slot into the arrays.
+     *
+     * @param position Grid position of the slot.
+     * @param slot     The {@link Slot} that is copied.
+     */
+    public void update(int position, Slot slot) {
+        Product product = slot.product;
+        capacity[position] = slot.capacity;
+        price[position] = product == null ? 0 : product.getPrice();
+        for (Nutrient nutrient : Nutrient.values()) {
+            values[nutrient.ordinal()][position] = product == null ? Float.NaN : nutrient.of(product);
+        }
+    }
+
+    /**
+     * Finds the first slot in grid order whose nutrient value is between the bounds and which either has products or
+     * costs more than the given money, like {@link NutrientIndex#find}.
+     *
+     * @param nutrient   The {@link Nutrient} that is searched.
+     * @param lowerBound The lowest accepted value, inclusive.
+     * @param upperBound The highest accepted value, inclusive.
+     * @param money      The money the customer has inserted.
+     * @param vector     True to compare several slots at once if the vector API is available.
+     * @return The grid position of the slot, or -1 if there is no such slot.
+     */
+    public int find(Nutrient nutrient, float lowerBound, float upperBound, int money, boolean vector) {
+        float[] nutrientValues = values[nutrient.ordinal()];
+        if (vector && VECTOR_AVAILABLE) {
+            return VectorScan.firstMatch(nutrientValues, capacity, price, lowerBound, upperBound, money);
+        }
+        return firstMatch(nutrientValues, capacity, price, lowerBound, upperBound, money, 0);
+    }
+
+    /**
+     * Finds the first slot in grid order that has products and whose values are all within the query, like
+     * {@link NutrientTree#find}. The slots are checked one by one.
+     *
+     * @param query The {@link CompoundQuery} that gives the accepted values.
+     * @return The grid position of the slot, or -1 if there is no such slot.
+     */
+    public int find(CompoundQuery query) {
+        float lowestPrice = query.getLowerBound(CompoundQuery.PRICE);
+        float highestPrice = query.getUpperBound(CompoundQuery.PRICE);
+        for (int i = 0; i < capacity.length; i++) {
+            if (capacity[i] > 0 && price[i] >= lowestPrice && price[i] <= highestPrice && matches(query, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(CompoundQuery query, int position) {
+        for (int nutrient = 0; nutrient < values.length; nutrient++) {
+            float value = values[nutrient][position];
+            if (!(value >= query.getLowerBound(nutrient) && value <= query.getUpperBound(nutrient))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scans the slots from the given position one by one. {@link VectorScan} uses it for the slots after the last
+     * full vector.
+     *
+     * @return The grid position of the first matching slot, or -1 if there is none.
+     */
+    static int firstMatch(float[] values, int[] capacity, int[] price, float lowerBound, float upperBound, int money, int from) {
+        for (int i = from; i < values.length; i++) {
+            if (values[i] >= lowerBound && values[i] <= upperBound && (capacity[i] > 0 || price[i] > money)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Tries the vector scan once; it fails if the jdk.incubator.vector module is not added to the JVM.
+     */
+    private static boolean vectorAvailable() {
+        try {
+            VectorScan.firstMatch(new float[1], new int[1], new int[1], 0, 0, 0);
+            return true;
+        } catch (LinkageError e) { //The module is not there, so the scalar scan is used.
+            return false;
+        }
+    }
+}
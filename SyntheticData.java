@@ -0,0 +1,141 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Writes product and purchase files with random content in the same format as the input files of the machine.
+ * The same seed always gives the same file, so the files can be used to compare runs with each other.
+ */
+public class SyntheticData {
+    private static final String[] CHOICES = {"PROTEIN", "CARB", "FAT", "CALORIE", "NUMBER"};
+    private static final int[] PRICES = {10, 20, 30, 45, 60, 95, 120, 250};
+    private static final int[] COINS = {1, 5, 10, 20, 50, 100, 200};
+
+    /**
+     * Writes a product file. The products are named Product0, Product1 and so on, and a product has the same price
+     * and nutrient values on every line.
+     *
+     * @param path     Path to the file that is going to be written.
+     * @param lines    Number of lines in the file.
+     * @param products Number of different products.
+     * @param seed     Seed of the random values.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void writeProducts(String path, long lines, int products, long seed) throws IOException {
+        Random random = new Random(seed);
+        String[] values = new String[products]; // Price and nutrient values of each product.
+        for (int i = 0; i < products; i++) {
+            values[i] = PRICES[random.nextInt(PRICES.length)] + "\t" + decimal(random, 60) + " " + decimal(random, 80)
+                    + " " + decimal(random, 30);
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(path))) {
+            for (long line = 0; line < lines; line++) {
+                int product = random.nextInt(products);
+                writer.write("Product" + product + "\t" + values[product]);
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Writes a purchase file. Every line pays with one to four coins, some of which the machine does not accept.
+     *
+     * @param path   Path to the file that is going to be written.
+     * @param lines  Number of lines in the file.
+     * @param choice The choice of every line (PROTEIN, CARB, FAT, CALORIE, NUMBER or QUERY), or null for a random choice
+     *               on each line other than QUERY.
+     * @param slots  Number of slots in the machine; NUMBER choices are mostly within it.
+     * @param seed   Seed of the random values.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void writePurchases(String path, long lines, String choice, int slots, long seed) throws IOException {
+        Random random = new Random(seed);
+        StringBuilder line = new StringBuilder();
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(path))) {
+            for (long i = 0; i < lines; i++) {
+                line.setLength(0);
+                line.append("CASH\t");
+                int coins = 1 + random.nextInt(4);
+                for (int k = 0; k < coins; k++) {
+                    line.append(k == 0 ? "" : " ");
+                    line.append(random.nextInt(10) == 0 ? 3 + random.nextInt(40) : COINS[random.nextInt(COINS.length)]);
+                }
+                String lineChoice = choice != null ? choice : CHOICES[random.nextInt(CHOICES.length)];
+                line.append('\t').append(lineChoice).append('\t');
+                if (lineChoice.equals("QUERY")) {
+                    appendQuery(line, random);
+                } else {
+                    line.append(value(random, lineChoice, slots));
+                }
+                writer.write(line.toString());
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Writes a timestamped copy of a product or purchase file for {@link Simulator}: every line is written after its
+     * time in seconds and a tab. The lines are taken in batches that have the same time, such as the lines of one
+     * restock delivery, and the time between two batches is random with the given mean.
+     *
+     * @param path      Path to the file that is read.
+     * @param timedPath Path to the file that is going to be written.
+     * @param batch     Number of lines with the same time.
+     * @param meanGap   Mean number of seconds between two batches.
+     * @param seed      Seed of the random times.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void writeTimes(String path, String timedPath, int batch, int meanGap, long seed) throws IOException {
+        Random random = new Random(seed);
+        long time = 0;
+        long lines = 0;
+        try (MappedFileInput input = new MappedFileInput(path, true, false);
+             BufferedWriter writer = Files.newBufferedWriter(Paths.get(timedPath))) {
+            for (CharSequence line : input) {
+                if (lines++ % Math.max(1, batch) == 0) {
+                    time += random.nextInt(2 * Math.max(1, meanGap) + 1);
+                }
+                writer.write(Long.toString(time));
+                writer.write('\t');
+                writer.append(line);
+                writer.newLine();
+            }
+        }
+    }
+
+    private static int value(Random random, String choice, int slots) {
+        switch (choice) {
+            case "NUMBER":
+                return random.nextInt(slots + slots / 10 + 1) - 1; //Some numbers are out of the machine.
+            case "CALORIE":
+                return random.nextInt(800);
+            default:
+                return random.nextInt(80);
+        }
+    }
+
+    /**
+     * Appends one to three conditions of a compound query, each on a different attribute.
+     */
+    private static void appendQuery(StringBuilder line, Random random) {
+        String[] attributes = {"PROTEIN", "CARB", "FAT", "CALORIE", "PRICE"};
+        String[] operators = {"=", "<=", ">="};
+        int first = random.nextInt(attributes.length);
+        int conditions = 1 + random.nextInt(3);
+        for (int k = 0; k < conditions; k++) {
+            String attribute = attributes[(first + k) % attributes.length];
+            line.append(k == 0 ? "" : " ").append(attribute);
+            if (attribute.equals("PRICE")) {
+                line.append(random.nextBoolean() ? "<=CASH" : "<=" + PRICES[random.nextInt(PRICES.length)]);
+            } else {
+                line.append(operators[random.nextInt(operators.length)]).append(value(random, attribute, 0));
+            }
+        }
+    }
+
+    private static String decimal(Random random, int max) {
+        return random.nextInt(max) + "." + random.nextInt(10);
+    }
+}
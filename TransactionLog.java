@@ -0,0 +1,303 @@
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A long-lived writer for the transaction log of the machine. Unlike {@link FileOutput#writeToFile}, which opens,
+ * writes and closes the file for every single line, the log file is opened once per run and the content is kept
+ * in a buffer until it is flushed. The log should be closed at the end of the run so that nothing is left in the buffer.
+ */
+public class TransactionLog implements AutoCloseable {
+    // Default size of the buffer in characters.
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Decides when the buffered content is pushed to the file.
+     */
+    public enum FlushPolicy {
+        // Flushes only when the buffer is full, at a checkpoint and when the log is closed.
+        ON_CHECKPOINT,
+        // Flushes after every line, so the file is always up to date at the cost of more system calls.
+        EVERY_LINE
+    }
+
+    private FileOutputStream stream;
+    private Writer writer;
+    private final FlushPolicy flushPolicy;
+    private final char[] digits = new char[11]; // Used to write numbers without creating a string for them.
+    private final char[] chunk = new char[512]; // Used to write character sequences that are not strings.
+    private final boolean syncOnCheckpoint;
+
+    /**
+     * Opens a log that creates the file from zero and uses the default buffer size, flushing only at checkpoints.
+     *
+     * @param path Path for the file the log is going to be written.
+     */
+    public TransactionLog(String path) {
+        this(path, false, DEFAULT_BUFFER_SIZE, FlushPolicy.ON_CHECKPOINT, false);
+    }
+
+    /**
+     * Opens a log with the given settings.
+     *
+     * @param path             Path for the file the log is going to be written.
+     * @param append           Append status, true if wanted to append to file if it exists, false if wanted to create file from zero.
+     * @param bufferSize       Size of the buffer in characters.
+     * @param flushPolicy      The {@link FlushPolicy} that decides when the buffer is flushed.
+     * @param syncOnCheckpoint True if every checkpoint should also force the content to the disk (fsync).
+     */
+    public TransactionLog(String path, boolean append, int bufferSize, FlushPolicy flushPolicy, boolean syncOnCheckpoint) {
+        this.flushPolicy = flushPolicy;
+        this.syncOnCheckpoint = syncOnCheckpoint;
+        try {
+            stream = new FileOutputStream(path, append);
+            // Uses the default charset, just like the PrintStream in FileOutput, so the bytes are the same.
+            writer = new BufferedWriter(new OutputStreamWriter(stream, Charset.defaultCharset()), bufferSize);
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Opens a log that writes to the given writer instead of a file, for example to keep the messages of a batch of
+     * purchases in memory until they are written to the file in order. It flushes only at checkpoints.
+     *
+     * @param writer The {@link Writer} the log is written to.
+     */
+    public TransactionLog(Writer writer) {
+        this(writer, FlushPolicy.ON_CHECKPOINT, false);
+    }
+
+    /**
+     * Opens a log that writes to the given writer instead of a file with the given settings.
+     *
+     * @param writer           The {@link Writer} the log is written to.
+     * @param flushPolicy      The {@link FlushPolicy} that decides when the writer is flushed.
+     * @param syncOnCheckpoint True if every checkpoint should also force the content to the disk, which only an
+     *                         {@link AsyncLogWriter} can do.
+     */
+    public TransactionLog(Writer writer, FlushPolicy flushPolicy, boolean syncOnCheckpoint) {
+        this.flushPolicy = flushPolicy;
+        this.syncOnCheckpoint = syncOnCheckpoint;
+        this.writer = writer;
+    }
+
+    /**
+     * Opens the log of a run. The system property gmm.log.flush chooses the {@link FlushPolicy}: checkpoint (the
+     * default) or line, which flushes after every line. If gmm.log.sync is true, every checkpoint and the end of the
+     * run also wait until the content is on the disk (fsync).
+     *
+     * If gmm.log.async is true, the lines are written to the file by a writer thread (see {@link AsyncLogWriter}) with
+     * gmm.log.ring buffers of gmm.log.buffer bytes, and gmm.log.full chooses whether a full ring makes the run wait
+     * (block, the default) or drops the lines (drop). If gmm.log.gzip is true, the file is compressed with gzip by the
+     * writer thread, which also turns on gmm.log.async.
+     *
+     * @param path Path for the file the log is going to be written.
+     * @return The log, which writes to the file directly unless gmm.log.async or gmm.log.gzip is true.
+     */
+    public static TransactionLog fromSystemProperties(String path) {
+        return fromSystemProperties(path, 0);
+    }
+
+    /**
+     * Opens the log of a run like {@link #fromSystemProperties(String)}, but continues the file of a run that was
+     * interrupted: the file is cut after the given number of bytes and the log is appended to it.
+     *
+     * @param path Path for the file the log is going to be written.
+     * @param from Bytes of the file that are kept, 0 to create the file from zero.
+     * @return The log, which writes to the file directly unless gmm.log.async or gmm.log.gzip is true.
+     */
+    public static TransactionLog fromSystemProperties(String path, long from) {
+        boolean append = from > 0;
+        if (append) {
+            try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.WRITE)) {
+                channel.truncate(from); //The lines after it were written before the crash and are written again.
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        FlushPolicy flushPolicy = System.getProperty("gmm.log.flush", "checkpoint").equalsIgnoreCase("line")
+                ? FlushPolicy.EVERY_LINE : FlushPolicy.ON_CHECKPOINT;
+        boolean sync = Boolean.getBoolean("gmm.log.sync");
+        boolean gzip = Boolean.getBoolean("gmm.log.gzip");
+        if (!gzip && !Boolean.getBoolean("gmm.log.async")) {
+            return new TransactionLog(path, append, DEFAULT_BUFFER_SIZE, flushPolicy, sync);
+        }
+        AsyncLogWriter.FullPolicy fullPolicy = System.getProperty("gmm.log.full", "block").equalsIgnoreCase("drop")
+                ? AsyncLogWriter.FullPolicy.DROP : AsyncLogWriter.FullPolicy.BLOCK;
+        try {
+            return new TransactionLog(new AsyncLogWriter(path, append, gzip, fullPolicy,
+                    Integer.getInteger("gmm.log.ring", AsyncLogWriter.DEFAULT_SLOTS),
+                    Integer.getInteger("gmm.log.buffer", AsyncLogWriter.DEFAULT_SLOT_SIZE)), flushPolicy, sync);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new TransactionLog((Writer) null); //Like a file that could not be opened, nothing is written.
+        }
+    }
+
+    /**
+     * Writes the given content to the log.
+     *
+     * @param content Content that is going to be written to the log.
+     * @param newLine True if wanted to append a new line after content, false if vice versa.
+     */
+    public void write(String content, boolean newLine) {
+        if (writer == null) { //The file could not be opened, the error has already been printed.
+            return;
+        }
+        try {
+            writer.write(content);
+            endLine(newLine);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the given characters to the log. Unlike appending to the writer, it does not turn the characters into a
+     * string first, so a line view of {@link MappedFileInput} is copied directly.
+     *
+     * @param content Content that is going to be written to the log.
+     * @param newLine True if wanted to append a new line after content, false if vice versa.
+     */
+    public void write(CharSequence content, boolean newLine) {
+        if (content instanceof String) {
+            write((String) content, newLine);
+            return;
+        }
+        if (writer == null) {
+            return;
+        }
+        try {
+            for (int start = 0; start < content.length(); start += chunk.length) {
+                int length = Math.min(chunk.length, content.length() - start);
+                if (content instanceof StringBuilder) { //Copies the whole part at once, like a machine snapshot.
+                    ((StringBuilder) content).getChars(start, start + length, chunk, 0);
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        chunk[i] = content.charAt(start + i);
+                    }
+                }
+                writer.write(chunk, 0, length);
+            }
+            endLine(newLine);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the given number to the log in decimal, the same way string concatenation would write it.
+     *
+     * @param number  Number that is going to be written to the log.
+     * @param newLine True if wanted to append a new line after the number, false if vice versa.
+     */
+    public void write(int number, boolean newLine) {
+        if (number == Integer.MIN_VALUE) { //Its absolute value does not fit in an int.
+            write(Integer.toString(number), newLine);
+            return;
+        }
+        int start = digits.length;
+        int rest = Math.abs(number);
+        do {
+            digits[--start] = (char) ('0' + rest % 10);
+            rest /= 10;
+        } while (rest != 0);
+        if (number < 0) {
+            digits[--start] = '-';
+        }
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(digits, start, digits.length - start);
+            endLine(newLine);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes a new line if wanted and flushes it if the flush policy asks for it.
+     */
+    private void endLine(boolean newLine) throws IOException {
+        if (newLine) {
+            writer.write('\n');
+            if (flushPolicy == FlushPolicy.EVERY_LINE) {
+                writer.flush();
+            }
+        }
+    }
+
+    /**
+     * Flushes the buffered content to the file. If the log was opened with sync on checkpoint, it also waits until
+     * the content is actually written to the disk.
+     */
+    public void checkpoint() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            if (syncOnCheckpoint && writer instanceof AsyncLogWriter) {
+                ((AsyncLogWriter) writer).sync();
+            } else {
+                writer.flush();
+            }
+            if (syncOnCheckpoint && stream != null) {
+                stream.getFD().sync();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Flushes the buffered content and tells how long the file is with it, so a journal can record which lines the
+     * file holds.
+     *
+     * @return Bytes in the file, or -1 if it is not known: the log is compressed, not written to a file or closed.
+     */
+    public long position() {
+        if (writer == null) {
+            return -1;
+        }
+        try {
+            writer.flush();
+            if (stream != null) {
+                return stream.getChannel().position();
+            }
+            if (writer instanceof AsyncLogWriter) {
+                return ((AsyncLogWriter) writer).position();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
+    /**
+     * Flushes the remaining content and closes the file. Calling it more than once has no effect.
+     */
+    @Override
+    public void close() {
+        if (writer == null) {
+            return;
+        }
+        checkpoint();
+        try {
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            writer = null;
+            stream = null;
+        }
+    }
+}
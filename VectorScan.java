@@ -0,0 +1,42 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The nutrient scan of {@link SlotArrays} with the vector API: it compares as many slots at once as the CPU has
+ * lanes for 32-bit values. It needs the jdk.incubator.vector module, so it is only used through {@link SlotArrays},
+ * which falls back to the scalar scan when the module is not added.
+ */
+public class VectorScan {
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    // Has the same number of lanes as FLOATS, so the masks of both line up.
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    /**
+     * Finds the first slot whose value is between the bounds and which either has products or costs more than the
+     * money. See {@link SlotArrays#find}.
+     *
+     * @return The grid position of the slot, or -1 if there is no such slot.
+     */
+    public static int firstMatch(float[] values, int[] capacity, int[] price, float lowerBound, float upperBound, int money) {
+        int i = 0;
+        int end = FLOATS.loopBound(values.length);
+        for (; i < end; i += FLOATS.length()) {
+            FloatVector value = FloatVector.fromArray(FLOATS, values, i);
+            VectorMask<Float> inRange = value.compare(VectorOperators.GE, lowerBound)
+                    .and(value.compare(VectorOperators.LE, upperBound));
+            if (!inRange.anyTrue()) { //Many parts of the machine have no value in the range, so the ints are not loaded.
+                continue;
+            }
+            VectorMask<Integer> matches = inRange.cast(INTS)
+                    .and(IntVector.fromArray(INTS, capacity, i).compare(VectorOperators.GT, 0)
+                            .or(IntVector.fromArray(INTS, price, i).compare(VectorOperators.GT, money)));
+            if (matches.anyTrue()) { //anyTrue and firstTrue are compiled to single instructions, unlike toLong on JDK 17.
+                return i + matches.firstTrue();
+            }
+        }
+        return SlotArrays.firstMatch(values, capacity, price, lowerBound, upperBound, money, i);
+    }
+}
@@ -0,0 +1,323 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * Writes product and purchase files with realistic request distributions, in the formats that
+ * {@link GMMOutput#fill} and {@link GMMOutput#purchase} read, for end-to-end runs such as those of {@link Harness}.
+ * Unlike {@link SyntheticData}, whose values are uniform, the products, the choices and the requested values follow
+ * Zipf distributions: the item of rank r is drawn with a probability proportional to 1 / r^skew, so a few products,
+ * choices and values take most of the requests, as in real sales. A skew of 0 is uniform.
+ *
+ * The popular values and slots are spread over their range by a fixed shuffle instead of being the smallest ones.
+ * The order of popularity of the choices is given, for example "NUMBER,PROTEIN,CALORIE,CARB,FAT". Each coin is one
+ * that the machine does not accept with the given rate, and each NUMBER request is outside the machine with the given
+ * rate. The lines are written as bytes from a reused buffer, so files of billions of lines are written at the speed
+ * of the disk, and the same seed always gives the same files.
+ */
+public class WorkloadGenerator {
+    public static final String DEFAULT_CHOICES = "NUMBER,PROTEIN,CALORIE,CARB,FAT";
+    public static final double DEFAULT_SKEW = 1.0;
+    public static final double DEFAULT_INVALID_COIN_RATE = 0.05;
+    public static final double DEFAULT_OUT_OF_RANGE_RATE = 0.02;
+    private static final int[] PRICES = {10, 20, 30, 45, 60, 95, 120, 250};
+    private static final String[] ATTRIBUTES = {"PROTEIN", "CARB", "FAT", "CALORIE", "PRICE"};
+    private static final String[] OPERATORS = {"=", "<=", ">="};
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final String[] choices; // From the most popular to the least.
+    private final double productSkew;
+    private final double choiceSkew;
+    private final double valueSkew;
+    private final double invalidCoinRate;
+    private final double outOfRangeRate;
+    private final long seed;
+    private final byte[] line = new byte[512]; // The line being written; a line is much shorter.
+    private int length;
+
+    /**
+     * Draws ranks from a Zipf distribution by a binary search in its cumulative probabilities, and gives the item of
+     * each rank through a fixed shuffle of the items.
+     */
+    private static class Zipf {
+        final double[] cumulative;
+        final int[] items; // The item of each rank.
+
+        Zipf(int size, double skew, SplittableRandom random, boolean shuffle) {
+            cumulative = new double[size];
+            items = new int[size];
+            double sum = 0;
+            for (int rank = 0; rank < size; rank++) {
+                sum += 1 / Math.pow(rank + 1, skew);
+                cumulative[rank] = sum;
+                items[rank] = rank;
+            }
+            for (int rank = 0; rank < size; rank++) {
+                cumulative[rank] /= sum;
+            }
+            for (int i = size - 1; shuffle && i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int item = items[i];
+                items[i] = items[j];
+                items[j] = item;
+            }
+        }
+
+        int next(SplittableRandom random) {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+            rank = rank >= 0 ? rank : -rank - 1;
+            return items[Math.min(rank, items.length - 1)];
+        }
+    }
+
+    /**
+     * @param choices         The choices from the most popular to the least: PROTEIN, CARB, FAT, CALORIE, NUMBER or
+     *                        QUERY.
+     * @param productSkew     Zipf skew of the products in the product file.
+     * @param choiceSkew      Zipf skew of the choices.
+     * @param valueSkew       Zipf skew of the nutrient values and the slot numbers that are requested.
+     * @param invalidCoinRate Rate of the coins that the machine does not accept, between 0 and 1.
+     * @param outOfRangeRate  Rate of the NUMBER requests outside the machine, between 0 and 1.
+     * @param seed            Seed of the random values.
+     * @throws IllegalArgumentException If a choice is not known.
+     */
+    public WorkloadGenerator(String[] choices, double productSkew, double choiceSkew, double valueSkew,
+                             double invalidCoinRate, double outOfRangeRate, long seed) {
+        for (String choice : choices) {
+            if (!Arrays.asList("PROTEIN", "CARB", "FAT", "CALORIE", "NUMBER", "QUERY").contains(choice)) {
+                throw new IllegalArgumentException("Unknown choice: " + choice);
+            }
+        }
+        this.choices = choices.clone();
+        this.productSkew = productSkew;
+        this.choiceSkew = choiceSkew;
+        this.valueSkew = valueSkew;
+        this.invalidCoinRate = invalidCoinRate;
+        this.outOfRangeRate = outOfRangeRate;
+        this.seed = seed;
+    }
+
+    /**
+     * Creates a generator from the system properties gmm.workload.choices (the choices from the most popular to the
+     * least, separated by commas), gmm.workload.productSkew, gmm.workload.choiceSkew, gmm.workload.valueSkew,
+     * gmm.workload.invalidCoins, gmm.workload.outOfRange and gmm.workload.seed.
+     *
+     * @return The generator, with the defaults of the properties that are not set.
+     */
+    public static WorkloadGenerator fromSystemProperties() {
+        return new WorkloadGenerator(System.getProperty("gmm.workload.choices", DEFAULT_CHOICES).toUpperCase(Locale.ROOT).split(","),
+                doubleProperty("gmm.workload.productSkew", DEFAULT_SKEW), doubleProperty("gmm.workload.choiceSkew", DEFAULT_SKEW),
+                doubleProperty("gmm.workload.valueSkew", DEFAULT_SKEW),
+                doubleProperty("gmm.workload.invalidCoins", DEFAULT_INVALID_COIN_RATE),
+                doubleProperty("gmm.workload.outOfRange", DEFAULT_OUT_OF_RANGE_RATE), Long.getLong("gmm.workload.seed", 1));
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    /**
+     * Writes a product file. The products are named Product0, Product1 and so on, a product has the same price and
+     * nutrient values on every line, and the number of lines of a product follows the product skew.
+     *
+     * @param path     Path to the file that is going to be written.
+     * @param lines    Number of lines in the file.
+     * @param products Number of different products.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writeProducts(String path, long lines, int products) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed);
+        byte[][] values = new byte[products][]; // The line of each product.
+        for (int i = 0; i < products; i++) {
+            values[i] = ("Product" + i + "\t" + PRICES[random.nextInt(PRICES.length)] + "\t" + decimal(random, 60) + " "
+                    + decimal(random, 80) + " " + decimal(random, 30) + "\n").getBytes(StandardCharsets.US_ASCII);
+        }
+        Zipf productZipf = new Zipf(products, productSkew, random, true);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(Paths.get(path)), BUFFER_SIZE)) {
+            for (long i = 0; i < lines; i++) {
+                out.write(values[productZipf.next(random)]);
+            }
+        }
+    }
+
+    /**
+     * Writes a purchase file. Every line pays with one to four coins and makes a choice of the choice skew, with a
+     * nutrient value or a slot number of the value skew.
+     *
+     * @param path  Path to the file that is going to be written.
+     * @param lines Number of lines in the file.
+     * @param slots Number of slots in the machine, the range of the NUMBER requests.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writePurchases(String path, long lines, int slots) throws IOException {
+        SplittableRandom random = new SplittableRandom(seed + 1);
+        Zipf choiceZipf = new Zipf(choices.length, choiceSkew, random, false);
+        Zipf smallValues = new Zipf(80, valueSkew, random, true); // PROTEIN, CARB and FAT.
+        Zipf calories = new Zipf(800, valueSkew, random, true);
+        Zipf slotZipf = new Zipf(Math.max(1, slots), valueSkew, random, true);
+        byte[][] choiceBytes = new byte[choices.length][];
+        for (int i = 0; i < choices.length; i++) {
+            choiceBytes[i] = choices[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(Paths.get(path)), BUFFER_SIZE)) {
+            for (long i = 0; i < lines; i++) {
+                length = 0;
+                append("CASH\t");
+                int coins = 1 + random.nextInt(4);
+                for (int k = 0; k < coins; k++) {
+                    if (k > 0) {
+                        append(' ');
+                    }
+                    append(random.nextDouble() < invalidCoinRate ? invalidCoin(random)
+                            : CoinInventory.DENOMINATIONS[random.nextInt(CoinInventory.DENOMINATIONS.length)]);
+                }
+                int choice = choiceZipf.next(random);
+                append('\t');
+                append(choiceBytes[choice]);
+                append('\t');
+                switch (choices[choice]) {
+                    case "NUMBER":
+                        if (random.nextDouble() < outOfRangeRate) { //Before the first slot or after the last one.
+                            append(random.nextBoolean() ? -1 - random.nextInt(10) : slots + random.nextInt(Math.max(1, slots / 10)));
+                        } else {
+                            append(slotZipf.next(random));
+                        }
+                        break;
+                    case "CALORIE":
+                        append(calories.next(random));
+                        break;
+                    case "QUERY":
+                        appendQuery(random, smallValues, calories);
+                        break;
+                    default:
+                        append(smallValues.next(random));
+                }
+                append('\n');
+                out.write(line, 0, length);
+            }
+        }
+    }
+
+    /**
+     * Appends one to three conditions of a compound query, each on a different attribute.
+     */
+    private void appendQuery(SplittableRandom random, Zipf smallValues, Zipf calories) {
+        int first = random.nextInt(ATTRIBUTES.length);
+        int conditions = 1 + random.nextInt(3);
+        for (int k = 0; k < conditions; k++) {
+            String attribute = ATTRIBUTES[(first + k) % ATTRIBUTES.length];
+            if (k > 0) {
+                append(' ');
+            }
+            append(attribute);
+            if (attribute.equals("PRICE")) {
+                append("<=");
+                if (random.nextBoolean()) {
+                    append("CASH");
+                } else {
+                    append(PRICES[random.nextInt(PRICES.length)]);
+                }
+            } else {
+                append(OPERATORS[random.nextInt(OPERATORS.length)]);
+                append(attribute.equals("CALORIE") ? calories.next(random) : smallValues.next(random));
+            }
+        }
+    }
+
+    /**
+     * @return A coin between 2 and 199 TL that the machine does not accept.
+     */
+    private static int invalidCoin(SplittableRandom random) {
+        while (true) {
+            int coin = 2 + random.nextInt(198);
+            if (Arrays.binarySearch(CoinInventory.DENOMINATIONS, coin) < 0) {
+                return coin;
+            }
+        }
+    }
+
+    private void append(char c) {
+        line[length++] = (byte) c;
+    }
+
+    private void append(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            line[length++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void append(byte[] bytes) {
+        System.arraycopy(bytes, 0, line, length, bytes.length);
+        length += bytes.length;
+    }
+
+    /**
+     * Appends the digits of a number without creating a string.
+     */
+    private void append(int value) {
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int start = length;
+        do {
+            line[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = length - 1; i < j; i++, j--) { //The digits were written from the last one.
+            byte digit = line[i];
+            line[i] = line[j];
+            line[j] = digit;
+        }
+    }
+
+    private static String decimal(SplittableRandom random, int max) {
+        return random.nextInt(max) + "." + random.nextInt(10);
+    }
+
+    /**
+     * Writes a product file and a purchase file with the settings of the system properties (see
+     * {@link #fromSystemProperties()}).
+     *
+     * The method expects the following command-line arguments:
+     * <ol>
+     * <li>args[0], args[1]: The path to the product file and its number of lines, with an optional k, m or g suffix.</li>
+     * <li>args[2], args[3]: The path to the purchase file and its number of lines.</li>
+     * <li>args[4], args[5] (optional): The number of rows and columns of the machine, 6 and 4 if not given.</li>
+     * <li>args[6] (optional): The number of different products, twice the number of slots if not given.</li>
+     * </ol>
+     *
+     * @param args An array of {@link String} containing command-line arguments.
+     * @throws IOException If a file cannot be written.
+     */
+    public static void main(String[] args) throws IOException {
+        int slots = args.length >= 6 ? Integer.parseInt(args[4]) * Integer.parseInt(args[5]) : 24;
+        int products = args.length >= 7 ? Integer.parseInt(args[6]) : 2 * slots;
+        WorkloadGenerator generator = fromSystemProperties();
+        long start = System.nanoTime();
+        long productLines = parseLines(args[1]);
+        long purchaseLines = parseLines(args[3]);
+        generator.writeProducts(args[0], productLines, products);
+        generator.writePurchases(args[2], purchaseLines, slots);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf(Locale.ROOT, "Wrote %d product lines and %d purchase lines in %.3f s: %.0f lines/s%n",
+                productLines, purchaseLines, seconds, (productLines + purchaseLines) / seconds);
+    }
+
+    /**
+     * @return The number of lines, with an optional k, m or g suffix for thousands, millions or billions.
+     */
+    static long parseLines(String lines) {
+        String lower = lines.trim().toLowerCase(Locale.ROOT);
+        char suffix = lower.charAt(lower.length() - 1);
+        long factor = suffix == 'k' ? 1_000 : suffix == 'm' ? 1_000_000 : suffix == 'g' ? 1_000_000_000 : 1;
+        return Long.parseLong(factor == 1 ? lower : lower.substring(0, lower.length() - 1)) * factor;
+    }
+}
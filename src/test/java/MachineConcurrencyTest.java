@@ -0,0 +1,174 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Buys from one machine with 16 threads at the same time and checks that no product and no money is lost or made:
+ * every unit is sold exactly once, and the coins of the machine grow by the prices of the sales. All the threads
+ * search the same nutrient value, so they keep finding the same slot and many of them pay for its last product
+ * together; the ones whose {@link Slot#take()} fails cancel the payment and search again.
+ */
+public class MachineConcurrencyTest {
+    private static final int THREADS = 16;
+    private static final int ROWS = 16;
+    private static final int COLUMNS = 16;
+    private static final int CAPACITY = 2;
+
+    @Test
+    public void salesConserveStockAndMoney() throws InterruptedException {
+        for (int round = 0; round < 20; round++) {
+            Machine machine = new Machine(ROWS, COLUMNS, CAPACITY);
+            CoinInventory coins = new CoinInventory(10_000);
+            machine.setCoins(coins);
+            long stockValue = 0;
+            for (int position = 0; position < ROWS * COLUMNS; position++) {
+                Product product = new Product("P" + position, 5 + position % 40, 20, 10, 5, 1);
+                for (int unit = 0; unit < CAPACITY; unit++) {
+                    assertEquals(position, machine.load(product));
+                    stockValue += product.getPrice();
+                }
+            }
+            long coinsBefore = coins.getTotal();
+
+            AtomicInteger sold = new AtomicInteger();
+            AtomicLong revenue = new AtomicLong();
+            AtomicInteger[] soldFrom = new AtomicInteger[ROWS * COLUMNS];
+            for (int i = 0; i < soldFrom.length; i++) {
+                soldFrom[i] = new AtomicInteger();
+            }
+            run(THREADS, thread -> {
+                Purchase purchase = new Purchase();
+                purchase.addCoin(50, true);
+                purchase.addCoin(3, false); //Not accepted, so it is neither kept nor given back as change.
+                int[] change = new int[CoinInventory.DENOMINATIONS.length];
+                for (int request = 0; ; request++) {
+                    //Every fourth request of half of the threads is made by number, on the slot the others search.
+                    int position = thread % 2 == 0 && request % 4 == 0
+                            ? machine.buyByNumber(firstStocked(machine), purchase, change)
+                            : machine.buyByNutrient(Nutrient.PROTEIN, 20, purchase, change);
+                    if (position == Machine.NOT_FOUND) {
+                        return;
+                    }
+                    if (position >= 0) {
+                        assertEquals(50 - machine.getSlot(position).product.getPrice(), paid(change));
+                        sold.incrementAndGet();
+                        soldFrom[position].incrementAndGet();
+                        revenue.addAndGet(machine.getSlot(position).product.getPrice());
+                    } else {
+                        assertTrue(position == Machine.EMPTY_SLOT || position == Machine.INVALID_NUMBER,
+                                "Unexpected result " + position);
+                    }
+                }
+            });
+
+            assertEquals(ROWS * COLUMNS * CAPACITY, sold.get());
+            assertEquals(stockValue, revenue.get());
+            for (int position = 0; position < ROWS * COLUMNS; position++) {
+                assertEquals(CAPACITY, soldFrom[position].get(), "Units sold from slot " + position);
+                assertEquals(0, machine.getSlot(position).capacity);
+            }
+            assertEquals(coinsBefore + revenue.get(), coins.getTotal());
+            assertEquals(revenue.get(), coins.getInserted() - coins.getDispensed());
+            assertEquals(-1, machine.find(Nutrient.PROTEIN, 15, 25, 1000));
+        }
+    }
+
+    @Test
+    public void loadsAndSalesAtTheSameTimeConserveStock() throws InterruptedException {
+        Machine machine = new Machine(ROWS, COLUMNS, CAPACITY);
+        int units = ROWS * COLUMNS * CAPACITY;
+        AtomicInteger loaded = new AtomicInteger();
+        AtomicInteger sold = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(THREADS / 2);
+        run(THREADS, thread -> {
+            if (thread < THREADS / 2) { //Loads units of a few products while the other threads buy them.
+                try {
+                    for (int unit = thread; unit < units; unit += THREADS / 2) {
+                        if (machine.load(new Product("P" + unit % 7, 10, 20 + unit % 3, 10, 5, 1)) >= 0) {
+                            loaded.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    loading.countDown();
+                }
+                return;
+            }
+            while (true) {
+                boolean done = loading.getCount() == 0; //Read first, so nothing is loaded after the last search.
+                int position = machine.buyByNutrient(Nutrient.PROTEIN, 21, 100);
+                if (position >= 0) {
+                    sold.incrementAndGet();
+                } else if (done) {
+                    return;
+                }
+            }
+        });
+
+        int left = 0;
+        for (int position = 0; position < ROWS * COLUMNS; position++) {
+            left += machine.getSlot(position).capacity;
+        }
+        assertEquals(0, left);
+        assertEquals(loaded.get(), sold.get());
+    }
+
+    private static int firstStocked(Machine machine) {
+        for (int position = 0; position < machine.size(); position++) {
+            if (machine.getSlot(position).capacity > 0) {
+                return position;
+            }
+        }
+        return 0;
+    }
+
+    private static int paid(int[] change) {
+        int total = 0;
+        for (int i = 0; i < change.length; i++) {
+            total += change[i] * CoinInventory.DENOMINATIONS[i];
+        }
+        return total;
+    }
+
+    private interface Task {
+        void run(int thread);
+    }
+
+    /**
+     * Runs the task on the given number of threads, which start together, and fails with the first error of any of
+     * them.
+     */
+    private static void run(int threads, Task task) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> started = new ArrayList<>();
+        List<Throwable> errors = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int thread = i;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    task.run(thread);
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            worker.start();
+            started.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : started) {
+            worker.join();
+        }
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.get(0));
+        }
+    }
+}
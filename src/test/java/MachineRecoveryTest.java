@@ -0,0 +1,145 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Kills {@link Main} with a snapshot and a journal in the middle of the fill and in the middle of the purchases, starts
+ * it again each time and checks that the machine ends the same as after a run that was not interrupted: the stock of
+ * every slot, the coins and the snapshot, and the output file that the runs continue one after the other. A line
+ * processed twice or skipped would change them.
+ *
+ * The runs are separate processes that stop like a killed process, with {@link Runtime#halt}, as soon as the journal
+ * reaches a given size, so nothing is flushed or closed on the way out.
+ */
+public class MachineRecoveryTest {
+    private static final String[] SIZE = {"40", "40", "10"};
+    private static final int PURCHASES = 60_000;
+    private static final int KILLED = 137;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void restartAfterKillMatchesUninterruptedRun() throws Exception {
+        String products = directory.resolve("products.txt").toString();
+        String purchases = directory.resolve("purchases.txt").toString();
+        SyntheticData.writeProducts(products, 20_000, 300, 1);
+        SyntheticData.writePurchases(purchases, PURCHASES, null, 1600, 2);
+
+        //The same run without a crash, with a journal only, to learn how large the journal of the whole run is.
+        Path whole = directory.resolve("whole.journal");
+        run("whole", "whole.log", null, whole, products, purchases, Long.MAX_VALUE);
+        long journalSize = Files.size(whole);
+        Path reference = directory.resolve("reference.snap");
+        run("reference", "reference.log", reference, directory.resolve("reference.journal"), products, purchases,
+                Long.MAX_VALUE);
+
+        Path snapshot = directory.resolve("machine.snap");
+        Path journal = directory.resolve("machine.journal");
+        run("fill", "machine.log", snapshot, journal, products, purchases, journalSize / 10);
+        long[] done = linesDone(journal);
+        assertTrue(done[0] > 0 && done[0] < 16_000 && done[1] == 0, "Not killed during the fill: " + Arrays.toString(done));
+
+        run("purchases", "machine.log", snapshot, journal, products, purchases, journalSize * 6 / 10);
+        done = linesDone(journal);
+        assertTrue(done[1] > 0 && done[1] < PURCHASES, "Not killed during the purchases: " + Arrays.toString(done));
+
+        run("end", "machine.log", snapshot, journal, products, purchases, Long.MAX_VALUE);
+        Machine expected = MachineSnapshot.read(reference.toString());
+        Machine actual = MachineSnapshot.read(snapshot.toString());
+        assertNotNull(expected);
+        assertNotNull(actual);
+        int expectedStock = 0;
+        for (int position = 0; position < expected.size(); position++) {
+            Slot slot = actual.getSlot(position);
+            assertEquals(expected.getSlot(position).capacity, slot.capacity, "Stock of slot " + position);
+            assertEquals(expected.getSlot(position).product == null ? null : expected.getSlot(position).product.getName(),
+                    slot.product == null ? null : slot.product.getName(), "Product of slot " + position);
+            expectedStock += slot.capacity;
+        }
+        assertTrue(expectedStock < 16_000, "Nothing was sold");
+        assertEquals(expected.getCoins().getTotal(), actual.getCoins().getTotal(), "Money in the machine");
+        for (int i = 0; i < CoinInventory.DENOMINATIONS.length; i++) {
+            assertEquals(expected.getCoins().getCount(i), actual.getCoins().getCount(i),
+                    "Coins of " + CoinInventory.DENOMINATIONS[i] + " TL");
+        }
+        assertArrayEquals(Files.readAllBytes(reference), Files.readAllBytes(snapshot));
+        assertEquals(Files.readString(directory.resolve("reference.log")), Files.readString(directory.resolve("machine.log")),
+                "Output of the interrupted runs");
+    }
+
+    /**
+     * @return The lines of the product and the purchase file that are done in a copy of the journal.
+     */
+    private long[] linesDone(Path journal) throws IOException {
+        Path copy = directory.resolve("copy.journal");
+        Files.copy(journal, copy, StandardCopyOption.REPLACE_EXISTING);
+        Machine machine = new Machine(Integer.parseInt(SIZE[0]), Integer.parseInt(SIZE[1]), Integer.parseInt(SIZE[2]));
+        try (MachineJournal opened = MachineJournal.open(copy.toString(), machine, null)) {
+            assertNotNull(opened);
+            assertTrue(opened.getReplayed() > 0, "Nothing was journaled");
+        }
+        return new long[]{machine.getLinesDone(Machine.PRODUCT_FILE), machine.getLinesDone(Machine.PURCHASE_FILE)};
+    }
+
+    /**
+     * Runs {@link Main} in a new process, which is killed when the journal reaches the given size, and checks that it
+     * was killed, or that it ended normally if the size is {@link Long#MAX_VALUE}.
+     */
+    private void run(String name, String output, Path snapshot, Path journal, String products, String purchases,
+                     long killAt) throws Exception {
+        String classPath = location(Main.class) + File.pathSeparator + location(MachineRecoveryTest.class);
+        List<String> command = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(), "-cp", classPath,
+                "-Dgmm.coins=20", "-Dgmm.journal=" + journal, "-Dgmm.journal.batch=64"));
+        if (snapshot != null) {
+            command.add("-Dgmm.snapshot=" + snapshot);
+        }
+        command.addAll(List.of(Crash.class.getName(), Long.toString(killAt), journal.toString(), products, purchases,
+                directory.resolve(output).toString()));
+        command.addAll(List.of(SIZE));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(directory.resolve(name + ".out").toFile()).start();
+        assertTrue(process.waitFor(2, TimeUnit.MINUTES), "The run " + name + " did not end");
+        assertEquals(killAt == Long.MAX_VALUE ? 0 : KILLED, process.exitValue(),
+                "Exit code of the run " + name + ": " + Files.readString(directory.resolve(name + ".out")));
+    }
+
+    private static String location(Class<?> type) throws Exception {
+        return Path.of(type.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+    }
+
+    /**
+     * Runs {@link Main} with the arguments after the first two and halts the process as soon as the journal given by
+     * the second one reaches the size given by the first one.
+     */
+    public static class Crash {
+        public static void main(String[] args) {
+            long killAt = Long.parseLong(args[0]);
+            File journal = new File(args[1]);
+            Thread watcher = new Thread(() -> {
+                while (journal.length() < killAt) {
+                    Thread.onSpinWait();
+                }
+                Runtime.getRuntime().halt(KILLED);
+            });
+            watcher.setDaemon(true);
+            watcher.start();
+            Main.main(Arrays.copyOfRange(args, 2, args.length));
+        }
+    }
+}